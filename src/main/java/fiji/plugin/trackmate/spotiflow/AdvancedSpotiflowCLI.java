@@ -54,9 +54,15 @@ public class AdvancedSpotiflowCLI extends SpotiflowCLI implements HasInteractive
 
 	private final Flag doSubpixelLocalization;
 
+	private final String units;
+
+	private final double pixelSize;
+
 	public AdvancedSpotiflowCLI( final int nChannels, final String units, final double pixelSize )
 	{
 		super( nChannels );
+		this.units = units;
+		this.pixelSize = pixelSize;
 
 		// Custom model.
 		this.customModelFolder = addPathArgument()
@@ -137,6 +143,12 @@ public class AdvancedSpotiflowCLI extends SpotiflowCLI implements HasInteractive
 		arguments.add( 5, targetChannel );
 	}
 
+	@Override
+	public AdvancedSpotiflowCLI copy()
+	{
+		return copyValuesTo( new AdvancedSpotiflowCLI( nChannels, units, pixelSize ) );
+	}
+
 	@Override
 	public String getPreviewArgumentKey()
 	{
@@ -168,4 +180,9 @@ public class AdvancedSpotiflowCLI extends SpotiflowCLI implements HasInteractive
 	{
 		return minDistance;
 	}
+
+	public Flag estimateRadius()
+	{
+		return fitGaussian;
+	}
 }
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A shared queue of frames from which concurrent Spotiflow tasks pull
+ * batches, instead of receiving a fixed share of the frames up front.
+ * <p>
+ * Batches are sized with guided self-scheduling: each batch is a fraction
+ * of the frames that remain, divided by the number of consumers. The first
+ * batches are therefore the largest and amortize process startup, and the
+ * batches shrink towards the end of the run, so that all the consumers stay
+ * busy until the last frame even if some frames take longer than others.
+ * <p>
+ * The bounds on the batch size can be changed while the queue is consumed,
+ * for instance as the cost of each frame is measured.
+ *
+ * @param <E>
+ *            the type of frames in the queue.
+ */
+public class FrameBatchQueue< E >
+{
+
+	private final List< E > frames;
+
+	private final int nConsumers;
+
+	private int minBatchSize;
+
+	private int maxBatchSize = Integer.MAX_VALUE;
+
+	private int next = 0;
+
+	/**
+	 * Creates a queue over the specified frames.
+	 *
+	 * @param frames
+	 *            the frames to dispatch, in the order they will be handed
+	 *            out.
+	 * @param nConsumers
+	 *            the number of tasks that will pull from the queue.
+	 * @param minBatchSize
+	 *            the smallest batch the queue will hand out, except for the
+	 *            last one.
+	 */
+	public FrameBatchQueue( final Collection< E > frames, final int nConsumers, final int minBatchSize )
+	{
+		this.frames = new ArrayList<>( frames );
+		this.nConsumers = Math.max( 1, nConsumers );
+		this.minBatchSize = Math.max( 1, minBatchSize );
+	}
+
+	/**
+	 * Returns the next batch of frames, or an empty list if the queue is
+	 * exhausted.
+	 */
+	public synchronized List< E > next()
+	{
+		final int remaining = frames.size() - next;
+		if ( remaining <= 0 )
+			return Collections.emptyList();
+
+		final int guided = ( int ) Math.ceil( remaining / ( 2. * nConsumers ) );
+		final int size = Math.min( remaining, Math.min( maxBatchSize, Math.max( minBatchSize, guided ) ) );
+		final List< E > batch = new ArrayList<>( frames.subList( next, next + size ) );
+		next += size;
+		return batch;
+	}
+
+	/**
+	 * Puts back frames that were handed out but not processed, for instance
+	 * because the consumer that took them was lost. They are handed out
+	 * again before the frames that remain.
+	 *
+	 * @param batch
+	 *            the frames to put back.
+	 */
+	public synchronized void giveBack( final List< E > batch )
+	{
+		frames.subList( 0, next ).removeAll( batch );
+		next -= batch.size();
+		frames.addAll( next, batch );
+	}
+
+	/**
+	 * Sets the smallest batch the queue will hand out, except for the last
+	 * one.
+	 */
+	public synchronized void setMinBatchSize( final int minBatchSize )
+	{
+		this.minBatchSize = Math.max( 1, minBatchSize );
+	}
+
+	/**
+	 * Sets the largest batch the queue will hand out. Takes precedence over
+	 * the smallest batch size.
+	 */
+	public synchronized void setMaxBatchSize( final int maxBatchSize )
+	{
+		this.maxBatchSize = Math.max( 1, maxBatchSize );
+	}
+
+	public synchronized int getMinBatchSize()
+	{
+		return minBatchSize;
+	}
+
+	public synchronized int getMaxBatchSize()
+	{
+		return maxBatchSize;
+	}
+
+	/**
+	 * Returns the number of frames that have not been handed out yet.
+	 */
+	public synchronized int remaining()
+	{
+		return frames.size() - next;
+	}
+
+	public int size()
+	{
+		return frames.size();
+	}
+}
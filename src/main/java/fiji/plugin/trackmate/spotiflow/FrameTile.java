@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import net.imglib2.Interval;
+
+/**
+ * A unit of work of the Spotiflow detector: a whole frame, or one tile of a
+ * frame that is too large to be processed at once.
+ * <p>
+ * Tiles of a frame overlap. Each tile owns a core region, and the tiles'
+ * cores partition the frame: spots found in a tile are kept if they are in
+ * its core, or close enough to it that they could be the same spot as one
+ * found by the neighbor tile.
+ */
+public final class FrameTile
+{
+
+	private final long frame;
+
+	private final int index;
+
+	private final int nTiles;
+
+	private final Interval interval;
+
+	private final Interval core;
+
+	/**
+	 * Creates a tile.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param index
+	 *            the index of the tile in the frame.
+	 * @param nTiles
+	 *            the number of tiles in the frame.
+	 * @param interval
+	 *            the spatial interval of the tile, in image coordinates.
+	 * @param core
+	 *            the spatial interval owned by the tile, in image
+	 *            coordinates.
+	 */
+	public FrameTile( final long frame, final int index, final int nTiles, final Interval interval, final Interval core )
+	{
+		this.frame = frame;
+		this.index = index;
+		this.nTiles = nTiles;
+		this.interval = interval;
+		this.core = core;
+	}
+
+	/**
+	 * Creates a unit that covers a whole frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param interval
+	 *            the spatial interval of the frame, in image coordinates.
+	 */
+	public FrameTile( final long frame, final Interval interval )
+	{
+		this( frame, 0, 1, interval, interval );
+	}
+
+	public long getFrame()
+	{
+		return frame;
+	}
+
+	public int getIndex()
+	{
+		return index;
+	}
+
+	public int getNTiles()
+	{
+		return nTiles;
+	}
+
+	/**
+	 * Returns whether this unit covers its whole frame.
+	 */
+	public boolean isWholeFrame()
+	{
+		return nTiles == 1;
+	}
+
+	/**
+	 * Returns the spatial interval of the tile, in image coordinates.
+	 */
+	public Interval getInterval()
+	{
+		return interval;
+	}
+
+	/**
+	 * Returns the spatial interval owned by the tile, in image coordinates.
+	 */
+	public Interval getCore()
+	{
+		return core;
+	}
+}
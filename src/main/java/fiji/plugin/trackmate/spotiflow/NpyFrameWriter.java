@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Writes single frames of an {@link ImgPlus} as NumPy <code>.npy</code>
+ * files, that the Spotiflow worker can memory-map without decoding.
+ * <p>
+ * Frames are read straight from the image, without going through an
+ * intermediate {@link ij.ImagePlus}. When the image is backed by a
+ * {@link PlanarImg}, which is the case for images opened in ImageJ, rows
+ * are copied in bulk from the plane arrays. Otherwise pixels are copied
+ * one by one through a cursor. In both cases data is written with NIO
+ * bulk writes.
+ */
+public class NpyFrameWriter
+{
+
+	private static final byte[] MAGIC = new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 };
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private NpyFrameWriter()
+	{}
+
+	/**
+	 * Writes one frame of one channel of the specified image, cropped to the
+	 * spatial dimensions of the interval, as a <code>.npy</code> file.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to crop, with spatial dimensions first. Extra
+	 *            dimensions (time) are ignored.
+	 * @param channel
+	 *            the channel to write, 0-based.
+	 * @param frame
+	 *            the frame to write.
+	 * @param path
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void write(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final long frame,
+			final Path path ) throws IOException
+	{
+		final RandomAccessibleInterval< T > view = frameView( img, interval, channel, frame );
+		final T type = Util.getTypeFromInterval( img );
+		final String descr = descr( type );
+
+		// NumPy shape is in C order: slowest varying first.
+		final int n = view.numDimensions();
+		final long[] shape = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			shape[ n - 1 - d ] = view.dimension( d );
+
+		try (FileChannel channelOut = FileChannel.open( path,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			channelOut.write( header( descr, shape ) );
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( Math.max( BUFFER_SIZE, ( int ) view.dimension( 0 ) * 8 ) )
+					.order( ByteOrder.LITTLE_ENDIAN );
+			if ( !writePlanar( img, view, channel, frame, descr, buffer, channelOut ) )
+				writeCursor( view, descr, buffer, channelOut );
+			flush( buffer, channelOut );
+		}
+	}
+
+	/**
+	 * Returns a view on one frame of one channel of the specified image,
+	 * cropped to the spatial dimensions of the interval.
+	 */
+	public static < T > RandomAccessibleInterval< T > frameView(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final long frame )
+	{
+		final int cIdx = img.dimensionIndex( Axes.CHANNEL );
+		final int tIdx = img.dimensionIndex( Axes.TIME );
+		RandomAccessibleInterval< T > view = img;
+		// Slice the highest dimension first so that the other index holds.
+		if ( tIdx > cIdx )
+		{
+			view = Views.hyperSlice( view, tIdx, frame );
+			if ( cIdx >= 0 )
+				view = Views.hyperSlice( view, cIdx, channel );
+		}
+		else if ( cIdx > tIdx )
+		{
+			view = Views.hyperSlice( view, cIdx, channel );
+			if ( tIdx >= 0 )
+				view = Views.hyperSlice( view, tIdx, frame );
+		}
+
+		final int n = view.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			min[ d ] = interval.min( d );
+			max[ d ] = interval.max( d );
+		}
+		return Views.interval( view, min, max );
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	/**
+	 * Copies rows in bulk from the plane arrays of a planar image. Returns
+	 * <code>false</code> if the image is not planar or if its pixel type
+	 * does not match the storage array.
+	 */
+	private static < T > boolean writePlanar(
+			final ImgPlus< T > img,
+			final RandomAccessibleInterval< T > view,
+			final int channel,
+			final long frame,
+			final String descr,
+			final ByteBuffer buffer,
+			final FileChannel out ) throws IOException
+	{
+		final Img< T > container = img.getImg();
+		if ( !( container instanceof PlanarImg ) )
+			return false;
+		final PlanarImg< ?, ? > planar = ( PlanarImg< ?, ? > ) container;
+
+		final int xIdx = img.dimensionIndex( Axes.X );
+		final int yIdx = img.dimensionIndex( Axes.Y );
+		if ( xIdx != 0 || yIdx != 1 )
+			return false;
+
+		/*
+		 * Position of the frame in the dimensions beyond X and Y: the view
+		 * origin in the source coordinates, at the channel and frame the
+		 * view was sliced at.
+		 */
+		final long[] origin = sourcePosition( img, view, channel, frame );
+		if ( origin == null )
+			return false;
+
+		final long width = img.dimension( 0 );
+		final int zIdx = img.dimensionIndex( Axes.Z );
+		final long zMin = ( zIdx < 0 ) ? 0 : origin[ zIdx ];
+		final long zMax = ( zIdx < 0 ) ? 0 : zMin + view.dimension( 2 ) - 1;
+
+		for ( long z = zMin; z <= zMax; z++ )
+		{
+			if ( zIdx >= 0 )
+				origin[ zIdx ] = z;
+
+			int plane = 0;
+			long stride = 1;
+			for ( int d = 2; d < img.numDimensions(); d++ )
+			{
+				plane += origin[ d ] * stride;
+				stride *= img.dimension( d );
+			}
+			final Object array = planar.getPlane( plane ).getCurrentStorageArray();
+			if ( !matches( array, descr ) )
+				return false;
+
+			final int rowLength = ( int ) view.dimension( 0 );
+			final long yMin = origin[ 1 ];
+			final long yMax = yMin + view.dimension( 1 ) - 1;
+			for ( long y = yMin; y <= yMax; y++ )
+			{
+				final int offset = ( int ) ( y * width + origin[ 0 ] );
+				putRow( array, offset, rowLength, buffer, out );
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the position of the first pixel of the view in the source
+	 * image, or <code>null</code> if it cannot be determined. The view does
+	 * not have the channel and time axes, their position is the channel and
+	 * frame it was sliced at.
+	 */
+	private static < T > long[] sourcePosition( final ImgPlus< T > img, final RandomAccessibleInterval< T > view, final int channel, final long frame )
+	{
+		final long[] pos = new long[ img.numDimensions() ];
+		final int cIdx = img.dimensionIndex( Axes.CHANNEL );
+		final int tIdx = img.dimensionIndex( Axes.TIME );
+		int vd = 0;
+		for ( int d = 0; d < img.numDimensions(); d++ )
+		{
+			if ( d == cIdx )
+			{
+				pos[ d ] = channel;
+				continue;
+			}
+			if ( d == tIdx )
+			{
+				pos[ d ] = frame;
+				continue;
+			}
+			if ( vd >= view.numDimensions() )
+				return null;
+			pos[ d ] = view.min( vd++ );
+		}
+		return pos;
+	}
+
+	private static boolean matches( final Object array, final String descr )
+	{
+		switch ( descr )
+		{
+		case "|u1":
+		case "|i1":
+			return array instanceof byte[];
+		case "<u2":
+		case "<i2":
+			return array instanceof short[];
+		case "<u4":
+		case "<i4":
+			return array instanceof int[];
+		case "<f4":
+			return array instanceof float[];
+		case "<f8":
+			return array instanceof double[];
+		default:
+			return false;
+		}
+	}
+
+	private static void putRow( final Object array, final int offset, final int length, final ByteBuffer buffer, final FileChannel out ) throws IOException
+	{
+		if ( array instanceof byte[] )
+		{
+			ensure( buffer, length, out );
+			buffer.put( ( byte[] ) array, offset, length );
+		}
+		else if ( array instanceof short[] )
+		{
+			ensure( buffer, length * 2, out );
+			buffer.asShortBuffer().put( ( short[] ) array, offset, length );
+			buffer.position( buffer.position() + length * 2 );
+		}
+		else if ( array instanceof int[] )
+		{
+			ensure( buffer, length * 4, out );
+			buffer.asIntBuffer().put( ( int[] ) array, offset, length );
+			buffer.position( buffer.position() + length * 4 );
+		}
+		else if ( array instanceof float[] )
+		{
+			ensure( buffer, length * 4, out );
+			buffer.asFloatBuffer().put( ( float[] ) array, offset, length );
+			buffer.position( buffer.position() + length * 4 );
+		}
+		else
+		{
+			ensure( buffer, length * 8, out );
+			buffer.asDoubleBuffer().put( ( double[] ) array, offset, length );
+			buffer.position( buffer.position() + length * 8 );
+		}
+	}
+
+	private static < T extends RealType< T > > void writeCursor(
+			final RandomAccessibleInterval< T > view,
+			final String descr,
+			final ByteBuffer buffer,
+			final FileChannel out ) throws IOException
+	{
+		final Cursor< T > cursor = Views.flatIterable( view ).cursor();
+		while ( cursor.hasNext() )
+		{
+			ensure( buffer, 8, out );
+			final double v = cursor.next().getRealDouble();
+			switch ( descr )
+			{
+			case "|u1":
+			case "|i1":
+				buffer.put( ( byte ) ( int ) v );
+				break;
+			case "<u2":
+			case "<i2":
+				buffer.putShort( ( short ) ( int ) v );
+				break;
+			case "<u4":
+			case "<i4":
+				buffer.putInt( ( int ) ( long ) v );
+				break;
+			case "<f8":
+				buffer.putDouble( v );
+				break;
+			default:
+				buffer.putFloat( ( float ) v );
+				break;
+			}
+		}
+	}
+
+	private static void ensure( final ByteBuffer buffer, final int nBytes, final FileChannel out ) throws IOException
+	{
+		if ( buffer.remaining() < nBytes )
+			flush( buffer, out );
+	}
+
+	private static void flush( final ByteBuffer buffer, final FileChannel out ) throws IOException
+	{
+		buffer.flip();
+		while ( buffer.hasRemaining() )
+			out.write( buffer );
+		buffer.clear();
+	}
+
+	/**
+	 * Returns the NumPy type descriptor for the specified pixel type. Types
+	 * without a direct equivalent are written as 32-bit floats.
+	 */
+	static String descr( final Object type )
+	{
+		if ( type instanceof UnsignedByteType )
+			return "|u1";
+		if ( type instanceof ByteType )
+			return "|i1";
+		if ( type instanceof UnsignedShortType )
+			return "<u2";
+		if ( type instanceof ShortType )
+			return "<i2";
+		if ( type instanceof UnsignedIntType )
+			return "<u4";
+		if ( type instanceof IntType )
+			return "<i4";
+		if ( type instanceof DoubleType )
+			return "<f8";
+		if ( type instanceof FloatType )
+			return "<f4";
+		return "<f4";
+	}
+
+	/**
+	 * Builds a version 1.0 <code>.npy</code> header, padded so that the data
+	 * starts on a 64-byte boundary.
+	 */
+	static ByteBuffer header( final String descr, final long[] shape )
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append( "{'descr': '" ).append( descr ).append( "', 'fortran_order': False, 'shape': (" );
+		for ( final long s : shape )
+			sb.append( s ).append( ", " );
+		sb.append( "), }" );
+		final int unpadded = MAGIC.length + 2 + sb.length() + 1;
+		final int padding = ( 64 - unpadded % 64 ) % 64;
+		for ( int i = 0; i < padding; i++ )
+			sb.append( ' ' );
+		sb.append( '\n' );
+
+		final byte[] dict = sb.toString().getBytes( StandardCharsets.US_ASCII );
+		final ByteBuffer header = ByteBuffer.allocate( MAGIC.length + 2 + dict.length ).order( ByteOrder.LITTLE_ENDIAN );
+		header.put( MAGIC );
+		header.putShort( ( short ) dict.length );
+		header.put( dict );
+		header.flip();
+		return header;
+	}
+}
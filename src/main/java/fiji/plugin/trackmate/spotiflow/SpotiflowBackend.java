@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * A Spotiflow model loaded once, that runs inference on frames on request.
+ * Frames are given and results written as files in the staging area, with
+ * the same names <code>spotiflow-predict</code> would use.
+ * <p>
+ * Implementations are not expected to be thread-safe: each task of the
+ * detector uses its own backend.
+ *
+ * @see SpotiflowWorker
+ * @see SpotiflowRemoteWorker
+ */
+public interface SpotiflowBackend extends AutoCloseable
+{
+
+	/**
+	 * Detects spots in the specified image, and writes them as a CSV file.
+	 *
+	 * @param id
+	 *            an identifier for the request.
+	 * @param input
+	 *            the image file to process.
+	 * @param output
+	 *            the CSV file to write.
+	 * @return the number of spots detected, or -1 if unknown.
+	 * @throws IOException
+	 *             if inference fails, or if the backend is lost. In the
+	 *             latter case, {@link #isAlive()} returns <code>false</code>.
+	 */
+	public int predict( String id, Path input, Path output ) throws IOException;
+
+	/**
+	 * Runs the network on the specified image, and writes its raw outputs,
+	 * that can be read with {@link SpotiflowHeatmap#read(Path, Path, double)}.
+	 *
+	 * @param id
+	 *            an identifier for the request.
+	 * @param input
+	 *            the image file to process.
+	 * @param outputPrefix
+	 *            the path of the files to write, without their
+	 *            <code>.heatmap.npy</code> and <code>.flow.npy</code>
+	 *            suffixes.
+	 * @throws IOException
+	 *             if inference fails, or if the backend is lost.
+	 */
+	public void heatmap( String id, Path input, Path outputPrefix ) throws IOException;
+
+	/**
+	 * Returns the Spotiflow version the backend runs.
+	 */
+	public String getVersion();
+
+	/**
+	 * Returns the scale of the flow of the model, in pixels.
+	 */
+	public double getSigma();
+
+	/**
+	 * Returns <code>false</code> if the backend cannot take requests
+	 * anymore.
+	 */
+	public boolean isAlive();
+
+	/**
+	 * Sets the listener that receives the log output of the backend.
+	 */
+	public void setLineListener( Consumer< String > lineListener );
+
+	/**
+	 * Stops the backend now, without waiting for the current request.
+	 */
+	public void destroy();
+
+	/**
+	 * Stops the backend after its current request.
+	 */
+	@Override
+	public void close();
+}
@@ -0,0 +1,411 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+import fiji.plugin.trackmate.util.TMUtils;
+import fiji.plugin.trackmate.util.cli.TrackMateSettingsBuilder;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs Spotiflow detection headless on a list of movies, with the same
+ * detection settings, and writes the spots of each movie in the output
+ * folder, as a spot table or as a TrackMate file.
+ * <p>
+ * All the movies share the workers of the {@link SpotiflowWorkerPool}, so
+ * that the model is loaded and the processes started once for the whole
+ * list, not once per movie. The next movie is opened while the current one
+ * is detected. Idle workers are left in the pool at the end, for the next
+ * batch.
+ * <p>
+ * Can be run from the command line:
+ *
+ * <pre>
+ * java -cp ... fiji.plugin.trackmate.spotiflow.SpotiflowBatch \
+ *     [--advanced] [--xml] [--out folder] [--threads n] [--set KEY=value]... movie...
+ * </pre>
+ *
+ * where the <code>KEY</code>s are the ones of the TrackMate settings of the
+ * Spotiflow detectors, and values are converted to the type of their
+ * default.
+ */
+public class SpotiflowBatch
+{
+
+	/** Suffix of the spot tables, after the name of the movie. */
+	public static final String SPOT_TABLE_SUFFIX = "-spots.csv";
+
+	/** Suffix of the TrackMate files, after the name of the movie. */
+	public static final String XML_SUFFIX = ".xml";
+
+	private final boolean advanced;
+
+	private final Map< String, Object > settings;
+
+	private final Path outputFolder;
+
+	private boolean writeXml = false;
+
+	private int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+	private Logger logger = Logger.DEFAULT_LOGGER;
+
+	/**
+	 * Creates a batch.
+	 *
+	 * @param advanced
+	 *            whether the settings are the ones of the advanced Spotiflow
+	 *            detector, or of the base one.
+	 * @param settings
+	 *            the TrackMate settings of the detector, used for all movies.
+	 * @param outputFolder
+	 *            the folder in which results are written.
+	 */
+	public SpotiflowBatch( final boolean advanced, final Map< String, Object > settings, final Path outputFolder )
+	{
+		this.advanced = advanced;
+		this.settings = new HashMap<>( settings );
+		this.outputFolder = outputFolder;
+	}
+
+	/**
+	 * Sets whether results are written as TrackMate files, that can be
+	 * opened in TrackMate to track the spots, instead of spot tables.
+	 */
+	public void setWriteXml( final boolean writeXml )
+	{
+		this.writeXml = writeXml;
+	}
+
+	/**
+	 * Sets the number of tasks of each detection, and therefore the number
+	 * of workers kept in the pool.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Detects spots in the specified movies, one after the other. A movie
+	 * that cannot be opened or detected is reported and skipped.
+	 *
+	 * @param movies
+	 *            the image files to process.
+	 * @return the result of each movie, in the same order.
+	 * @throws IOException
+	 *             if the output folder cannot be created.
+	 */
+	public List< Result > run( final List< Path > movies ) throws IOException
+	{
+		Files.createDirectories( outputFolder );
+		final List< Result > results = new ArrayList<>( movies.size() );
+		final ExecutorService opener = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future< ImagePlus > next = movies.isEmpty() ? null : opener.submit( () -> IJ.openImage( movies.get( 0 ).toString() ) );
+			for ( int i = 0; i < movies.size(); i++ )
+			{
+				final Path movie = movies.get( i );
+				ImagePlus imp;
+				try
+				{
+					imp = next.get();
+				}
+				catch ( final InterruptedException | ExecutionException e )
+				{
+					imp = null;
+				}
+				if ( i + 1 < movies.size() )
+				{
+					final Path nextMovie = movies.get( i + 1 );
+					next = opener.submit( () -> IJ.openImage( nextMovie.toString() ) );
+				}
+
+				logger.log( "Movie " + ( i + 1 ) + " of " + movies.size() + ": " + movie.getFileName() + '\n' );
+				final Result result = ( imp == null )
+						? new Result( movie, null, -1, 0, "Could not open the image." )
+						: process( movie, imp );
+				if ( result.error != null )
+					logger.error( movie.getFileName() + ": " + result.error + '\n' );
+				else
+					logger.log( String.format( Locale.US, "Found %d spots in %.1f s, written to %s\n",
+							result.nSpots, result.processingTime / 1000., result.output ) );
+				results.add( result );
+			}
+		}
+		finally
+		{
+			opener.shutdownNow();
+		}
+		return results;
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private < T extends RealType< T > & NativeType< T > > Result process( final Path movie, final ImagePlus imp )
+	{
+		final SpotiflowCLI cli = advanced
+				? new AdvancedSpotiflowDetectorFactory<>().getConfigurator( imp )
+				: new SpotiflowDetectorFactory<>().getConfigurator( imp );
+		TrackMateSettingsBuilder.fromTrackMateSettings( settings, cli );
+
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
+		final SpotiflowDetector< T > detector = new SpotiflowDetector<>( img, spatioTemporal( img ), cli );
+		detector.setNumThreads( numThreads );
+		// One shared pool of workers, unless the model runs in the JVM.
+		detector.setUseWorker( true );
+		detector.setLogger( logger );
+		if ( !detector.checkInput() || !detector.process() )
+			return new Result( movie, null, -1, 0, detector.getErrorMessage() );
+
+		final SpotCollection spots = detector.getResult();
+		final String fname = movie.getFileName().toString();
+		final String name = ( fname.lastIndexOf( '.' ) > 0 ) ? fname.substring( 0, fname.lastIndexOf( '.' ) ) : fname;
+		final Path output = outputFolder.resolve( name + ( writeXml ? XML_SUFFIX : SPOT_TABLE_SUFFIX ) );
+		try
+		{
+			if ( writeXml )
+				writeXml( imp, spots, output );
+			else
+				writeSpotTable( spots, output );
+		}
+		catch ( final IOException e )
+		{
+			return new Result( movie, null, -1, detector.getProcessingTime(), "Could not write the results: " + e.getMessage() );
+		}
+		return new Result( movie, output, spots.getNSpots( false ), detector.getProcessingTime(), null );
+	}
+
+	private void writeXml( final ImagePlus imp, final SpotCollection spots, final Path output ) throws IOException
+	{
+		final Settings tmSettings = new Settings( imp );
+		tmSettings.detectorFactory = advanced ? new AdvancedSpotiflowDetectorFactory<>() : new SpotiflowDetectorFactory<>();
+		tmSettings.detectorSettings = new HashMap<>( settings );
+
+		spots.setVisible( true );
+		final Model model = new Model();
+		model.setPhysicalUnits( imp.getCalibration().getUnit(), imp.getCalibration().getTimeUnit() );
+		model.setSpots( spots, false );
+
+		final TmXmlWriter writer = new TmXmlWriter( output.toFile(), logger );
+		writer.appendModel( model );
+		writer.appendSettings( tmSettings );
+		writer.writeToFile();
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Writes the spots of a collection as a CSV table, one spot per line,
+	 * sorted by frame.
+	 */
+	static void writeSpotTable( final SpotCollection spots, final Path output ) throws IOException
+	{
+		final String[] features = new String[] { Spot.FRAME, Spot.POSITION_T, Spot.POSITION_X, Spot.POSITION_Y, Spot.POSITION_Z, Spot.RADIUS, Spot.QUALITY };
+		try (BufferedWriter writer = Files.newBufferedWriter( output ))
+		{
+			writer.write( String.join( ",", features ) );
+			writer.newLine();
+			for ( final Integer frame : spots.keySet() )
+			{
+				for ( final Spot spot : spots.iterable( frame, false ) )
+				{
+					for ( int i = 0; i < features.length; i++ )
+					{
+						if ( i > 0 )
+							writer.write( ',' );
+						final double value = spot.getFeature( features[ i ] ).doubleValue();
+						writer.write( features[ i ].equals( Spot.FRAME ) ? Integer.toString( ( int ) value ) : Double.toString( value ) );
+					}
+					writer.newLine();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the interval of an image, without its channel dimension, as
+	 * TrackMate gives it to detectors.
+	 */
+	private static Interval spatioTemporal( final ImgPlus< ? > img )
+	{
+		final int cIdx = img.dimensionIndex( Axes.CHANNEL );
+		final int n = img.numDimensions() - ( ( cIdx < 0 ) ? 0 : 1 );
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0, i = 0; d < img.numDimensions(); d++ )
+		{
+			if ( d == cIdx )
+				continue;
+			min[ i ] = img.min( d );
+			max[ i ] = img.max( d );
+			i++;
+		}
+		return new FinalInterval( min, max );
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		boolean advanced = false;
+		boolean xml = false;
+		Path out = Paths.get( "." );
+		int nThreads = -1;
+		final List< String > assignments = new ArrayList<>();
+		final List< Path > movies = new ArrayList<>();
+		for ( int i = 0; i < args.length; i++ )
+		{
+			switch ( args[ i ] )
+			{
+			case "--advanced":
+				advanced = true;
+				break;
+			case "--xml":
+				xml = true;
+				break;
+			case "--out":
+				out = Paths.get( args[ ++i ] );
+				break;
+			case "--threads":
+				nThreads = Integer.parseInt( args[ ++i ] );
+				break;
+			case "--set":
+				assignments.add( args[ ++i ] );
+				break;
+			default:
+				movies.add( Paths.get( args[ i ] ) );
+			}
+		}
+		if ( movies.isEmpty() )
+		{
+			System.err.println( "Usage: SpotiflowBatch [--advanced] [--xml] [--out folder] [--threads n] [--set KEY=value]... movie..." );
+			System.exit( 1 );
+		}
+
+		// Defaults of the detector, converted from the assignments.
+		final ImagePlus first = IJ.openImage( movies.get( 0 ).toString() );
+		final SpotiflowCLI cli = advanced
+				? new AdvancedSpotiflowDetectorFactory<>().getConfigurator( first )
+				: new SpotiflowDetectorFactory<>().getConfigurator( first );
+		final Map< String, Object > settings = new HashMap<>();
+		TrackMateSettingsBuilder.toTrackMateSettings( settings, cli );
+		for ( final String assignment : assignments )
+		{
+			final int eq = assignment.indexOf( '=' );
+			if ( eq < 0 )
+				throw new IllegalArgumentException( "Expected KEY=value, got " + assignment );
+			final String key = assignment.substring( 0, eq );
+			settings.put( key, convert( assignment.substring( eq + 1 ), settings.get( key ) ) );
+		}
+
+		final SpotiflowBatch batch = new SpotiflowBatch( advanced, settings, out );
+		batch.setWriteXml( xml );
+		if ( nThreads > 0 )
+			batch.setNumThreads( nThreads );
+		final List< Result > results = batch.run( movies );
+		SpotiflowWorkerPool.shutdown();
+		final long nFailed = results.stream().filter( r -> r.error != null ).count();
+		System.exit( nFailed == 0 ? 0 : 2 );
+	}
+
+	/**
+	 * Converts a value given as text to the type of the default value of the
+	 * same setting.
+	 */
+	private static Object convert( final String value, final Object defaultValue )
+	{
+		if ( defaultValue instanceof Integer )
+			return Integer.valueOf( value );
+		if ( defaultValue instanceof Double )
+			return Double.valueOf( value );
+		if ( defaultValue instanceof Boolean )
+			return Boolean.valueOf( value );
+		return value;
+	}
+
+	/**
+	 * The outcome of the detection in one movie.
+	 */
+	public static final class Result
+	{
+
+		/** The image file. */
+		public final Path movie;
+
+		/** The file the results were written to, or <code>null</code>. */
+		public final Path output;
+
+		/** The number of spots found, or -1 on error. */
+		public final int nSpots;
+
+		/** The detection time, in ms. */
+		public final long processingTime;
+
+		/** The error message, or <code>null</code> if the movie succeeded. */
+		public final String error;
+
+		private Result( final Path movie, final Path output, final int nSpots, final long processingTime, final String error )
+		{
+			this.movie = movie;
+			this.output = output;
+			this.nSpots = nSpots;
+			this.processingTime = processingTime;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Sizes the batches of frames handed out by a {@link FrameBatchQueue}, and
+ * the number of batches that run at once, from what a run measures.
+ * <p>
+ * The batch size trades the startup cost of each batch against load
+ * balance. The startup of a process and the inference time of each frame
+ * are averaged as batches complete, and the smallest batch is then made
+ * large enough that startup stays under a tenth of the time of a batch.
+ * Tiny frames therefore come in large batches, and workers, that pay no
+ * startup per batch, get frames one by one. The largest batch is bounded so
+ * that the batches of all the tasks fit in the staging quota, and so that
+ * the next batch fits in what is left of it.
+ * <p>
+ * The number of batches running at once is bounded by memory: another batch
+ * only starts if the free physical memory can hold the working memory of
+ * inference on one more frame. One batch may always run, so that the run
+ * progresses even when memory is short.
+ */
+public class SpotiflowBatchSizer
+{
+
+	/** The largest part of the time of a batch spent in startup. */
+	private static final double MAX_STARTUP_FRACTION = 0.1;
+
+	/** Weight of the last measure in the running averages. */
+	private static final double SMOOTHING = 0.3;
+
+	/**
+	 * Estimate of the memory inference needs per byte of input frame: the
+	 * frame converted to float, the network activations and its outputs.
+	 */
+	private static final long WORKING_BYTES_PER_INPUT_BYTE = 16;
+
+	/** Part of the free memory a new batch may use. */
+	private static final double MEMORY_HEADROOM = 0.8;
+
+	/** How often waiting tasks check the free memory again, in ms. */
+	private static final long MEMORY_POLL_INTERVAL = 200;
+
+	/**
+	 * How many times longer than expected a batch may take before it is
+	 * considered hung.
+	 */
+	private static final double TIMEOUT_FACTOR = 10.;
+
+	/**
+	 * The shortest timeout of a batch, in ns, so that a frame a bit slower
+	 * than the others is not mistaken for a hung process.
+	 */
+	private static final long MIN_TIMEOUT = TimeUnit.MINUTES.toNanos( 2 );
+
+	private final FrameBatchQueue< ? > queue;
+
+	private final int maxConcurrent;
+
+	private final long unitBytes;
+
+	private final LongSupplier freeMemory;
+
+	/** Share of the staging quota of one batch, in bytes, or 0 for no quota. */
+	private final long stagingShare;
+
+	private final LongSupplier stagingRoom;
+
+	/** Average startup time per batch, in ns, or 0 if none was measured. */
+	private double startupNanos = 0.;
+
+	/** Average inference time per frame, in ns, or 0 if none was measured. */
+	private double frameNanos = 0.;
+
+	private int running = 0;
+
+	private int peakRunning = 0;
+
+	private int nThrottled = 0;
+
+	private int smallestBatch = Integer.MAX_VALUE;
+
+	private int largestBatch = 0;
+
+	private boolean canceled = false;
+
+	/**
+	 * Creates a sizer for the specified queue, and sets its initial largest
+	 * batch size.
+	 *
+	 * @param queue
+	 *            the queue to size the batches of.
+	 * @param maxConcurrent
+	 *            the maximal number of batches that run at once, the number
+	 *            of tasks that pull from the queue.
+	 * @param unitBytes
+	 *            the size of the largest frame or tile in the queue, in
+	 *            bytes.
+	 * @param stagingQuota
+	 *            the maximal size of the frames staged on disk by all the
+	 *            tasks, in bytes, or 0 for no quota.
+	 */
+	public SpotiflowBatchSizer( final FrameBatchQueue< ? > queue, final int maxConcurrent, final long unitBytes, final long stagingQuota )
+	{
+		this( queue, maxConcurrent, unitBytes, stagingQuota, SpotiflowBatchSizer::freePhysicalMemory, SpotiflowStaging::getRemaining );
+	}
+
+	SpotiflowBatchSizer(
+			final FrameBatchQueue< ? > queue,
+			final int maxConcurrent,
+			final long unitBytes,
+			final long stagingQuota,
+			final LongSupplier freeMemory,
+			final LongSupplier stagingRoom )
+	{
+		this.queue = queue;
+		this.maxConcurrent = Math.max( 1, maxConcurrent );
+		this.unitBytes = Math.max( 1, unitBytes );
+		this.freeMemory = freeMemory;
+		this.stagingRoom = stagingRoom;
+		/*
+		 * Each task has a batch staged while it predicts the previous one.
+		 */
+		this.stagingShare = ( stagingQuota > 0 ) ? stagingQuota / ( 2L * this.maxConcurrent ) : 0;
+		if ( stagingShare > 0 )
+			queue.setMaxBatchSize( ( int ) Math.min( Integer.MAX_VALUE, stagingShare / this.unitBytes ) );
+	}
+
+	/**
+	 * Bounds the largest batch by what is left of the staging quota, so that
+	 * the next batch pulled from the queue can be staged without waiting for
+	 * the batches in flight. To be called before pulling a batch.
+	 */
+	public synchronized void boundBatchSize()
+	{
+		if ( stagingShare <= 0 )
+			return;
+		final long room = Math.min( stagingShare, stagingRoom.getAsLong() );
+		queue.setMaxBatchSize( ( int ) Math.min( Integer.MAX_VALUE, room / unitBytes ) );
+	}
+
+	/**
+	 * Records the startup time of a batch, the time before it starts
+	 * inference, and retunes the batch size.
+	 *
+	 * @param nanos
+	 *            the startup time, in ns.
+	 */
+	public synchronized void recordStartup( final long nanos )
+	{
+		startupNanos = average( startupNanos, nanos );
+		retune();
+	}
+
+	/**
+	 * Records the inference time of a batch, and retunes the batch size.
+	 *
+	 * @param nFrames
+	 *            the number of frames in the batch.
+	 * @param nanos
+	 *            the inference time of the whole batch, in ns.
+	 */
+	public synchronized void recordInference( final int nFrames, final long nanos )
+	{
+		if ( nFrames <= 0 )
+			return;
+		smallestBatch = Math.min( smallestBatch, nFrames );
+		largestBatch = Math.max( largestBatch, nFrames );
+		frameNanos = average( frameNanos, ( double ) nanos / nFrames );
+		retune();
+	}
+
+	/**
+	 * Returns how long a batch may run before it is considered hung: a
+	 * multiple of its expected startup and inference time, given the
+	 * batches measured so far.
+	 *
+	 * @param nFrames
+	 *            the number of frames in the batch.
+	 * @return the timeout in ns, or 0 if no batch was measured yet, and
+	 *         there is no telling how long one takes.
+	 */
+	public synchronized long timeout( final int nFrames )
+	{
+		if ( frameNanos <= 0. )
+			return 0;
+		final double expected = startupNanos + nFrames * frameNanos;
+		return Math.max( MIN_TIMEOUT, ( long ) Math.min( Long.MAX_VALUE / 2, TIMEOUT_FACTOR * expected ) );
+	}
+
+	/**
+	 * Waits until a batch may start, given the free memory and the batches
+	 * running already. Each call must be followed by a call to
+	 * {@link #release()} once the batch is done.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		boolean throttled = false;
+		while ( !canceled && running > 0 && ( running >= maxConcurrent || !fitsInMemory() ) )
+		{
+			throttled = true;
+			wait( MEMORY_POLL_INTERVAL );
+		}
+		if ( throttled )
+			nThrottled++;
+		running++;
+		peakRunning = Math.max( peakRunning, running );
+	}
+
+	/**
+	 * Signals that a batch started with {@link #acquire()} is done.
+	 */
+	public synchronized void release()
+	{
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Wakes up the tasks that wait for memory, and lets all of them through.
+	 */
+	public synchronized void cancel()
+	{
+		canceled = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns a one-line summary of the batches that ran.
+	 *
+	 * @param unitName
+	 *            the name of the units in the batches, frames or tiles.
+	 */
+	public synchronized String summary( final String unitName )
+	{
+		if ( largestBatch == 0 )
+			return "No batch ran.";
+		final String sizes = ( smallestBatch == largestBatch )
+				? "Ran batches of " + largestBatch
+				: "Ran batches of " + smallestBatch + " to " + largestBatch;
+		return sizes + " " + unitName + ", at most " + peakRunning + " at once"
+				+ ( ( nThrottled > 0 ) ? ", " + nThrottled + " delayed for lack of memory." : "." );
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private boolean fitsInMemory()
+	{
+		return freeMemory.getAsLong() * MEMORY_HEADROOM >= unitBytes * WORKING_BYTES_PER_INPUT_BYTE;
+	}
+
+	private void retune()
+	{
+		if ( startupNanos <= 0. || frameNanos <= 0. )
+			return;
+		final double minFrames = startupNanos * ( 1. - MAX_STARTUP_FRACTION ) / ( MAX_STARTUP_FRACTION * frameNanos );
+		queue.setMinBatchSize( ( int ) Math.min( Integer.MAX_VALUE, Math.ceil( minFrames ) ) );
+	}
+
+	private static double average( final double average, final double value )
+	{
+		return ( average <= 0. ) ? value : SMOOTHING * value + ( 1. - SMOOTHING ) * average;
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Returns the free physical memory of the machine, or the memory the JVM
+	 * can still allocate if the platform does not report it.
+	 */
+	private static long freePhysicalMemory()
+	{
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if ( os instanceof com.sun.management.OperatingSystemMXBean )
+			return ( ( com.sun.management.OperatingSystemMXBean ) os ).getFreeMemorySize();
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+	}
+}
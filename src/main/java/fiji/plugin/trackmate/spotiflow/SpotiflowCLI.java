@@ -21,8 +21,12 @@
  */
 package fiji.plugin.trackmate.spotiflow;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import fiji.plugin.trackmate.util.cli.CommonTrackMateArguments;
 import fiji.plugin.trackmate.util.cli.CondaCLIConfigurator;
+import fiji.plugin.trackmate.util.cli.TrackMateSettingsBuilder;
 
 public class SpotiflowCLI extends CondaCLIConfigurator
 {
@@ -41,8 +45,12 @@ public class SpotiflowCLI extends CondaCLIConfigurator
 	/** Store this field so that subclasses can remove it. */
 	protected final StringArgument estimateFitParametersNotShown;
 
+	protected final int nChannels;
+
 	public SpotiflowCLI( final int nChannels )
 	{
+		this.nChannels = nChannels;
+
 		// Folders to store input images and output results.
 		this.imageFolder = addPathArgument()
 				.name( "Input image folder path" )
@@ -109,6 +117,31 @@ public class SpotiflowCLI extends CondaCLIConfigurator
 		return targetChannel;
 	}
 
+	/**
+	 * Returns a new configurator with the values of this one, except for
+	 * the input and output folders, that are not set. Command lines that
+	 * need their own folders are built from a copy, so that this
+	 * configurator is never modified behind its user.
+	 *
+	 * @return a new configurator.
+	 */
+	public SpotiflowCLI copy()
+	{
+		return copyValuesTo( new SpotiflowCLI( nChannels ) );
+	}
+
+	/**
+	 * Copies the values of the arguments that have a key, that is all of
+	 * them except the folders, to the specified configurator.
+	 */
+	protected < C extends SpotiflowCLI > C copyValuesTo( final C copy )
+	{
+		final Map< String, Object > settings = new HashMap<>();
+		TrackMateSettingsBuilder.toTrackMateSettings( settings, this );
+		TrackMateSettingsBuilder.fromTrackMateSettings( settings, copy );
+		return copy;
+	}
+
 	@Override
 	protected String getCommand()
 	{
@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * A dedicated parser for the CSV files written by Spotiflow.
+ * <p>
+ * Column indices are resolved once from the header. Rows are then parsed
+ * straight from the file bytes: numbers are decoded without creating
+ * intermediate strings, and the columns we do not need are skipped. Large
+ * files are memory-mapped.
+ * <p>
+ * Numbers with at most 16 significant digits, a significand below
+ * 2<sup>53</sup> and a small exponent, which is what Spotiflow writes in
+ * most cases, are decoded exactly with a fast path. Other numbers fall back
+ * on {@link Double#parseDouble(String)}, so that the results are always
+ * identical to what a string-based reader gives, and so are the failures:
+ * an empty field, or one that {@link Double#parseDouble(String)} does not
+ * accept, throws a {@link NumberFormatException}.
+ */
+public class SpotiflowCSVParser
+{
+
+	/** FWHM to sigma ratio. */
+	private static final double FWHM_RATIO = 2. * Math.sqrt( 2. * Math.log( 2. ) );
+
+	/** Gaussian sigma to particle radius, in 2D. */
+	private static final double DIM_RATIO_2D = Math.sqrt( 2. );
+
+	/** Gaussian sigma to particle radius, in 3D. */
+	private static final double DIM_RATIO_3D = Math.sqrt( 3. );
+
+	/** Files larger than this are memory-mapped. */
+	private static final long MAP_THRESHOLD = 1L << 20;
+
+	private static final double[] POW10 = new double[ 23 ];
+	static
+	{
+		POW10[ 0 ] = 1.;
+		for ( int i = 1; i < POW10.length; i++ )
+			POW10[ i ] = POW10[ i - 1 ] * 10.;
+	}
+
+	private final double[] calibration;
+
+	/**
+	 * Creates a parser for CSV files of the specified image.
+	 *
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 */
+	public SpotiflowCSVParser( final double[] calibration )
+	{
+		this.calibration = calibration;
+	}
+
+	/**
+	 * Reads the spots in the specified CSV file. Positions and radius are
+	 * scaled by the calibration.
+	 *
+	 * @param csvFile
+	 *            the file to read.
+	 * @return the spots.
+	 * @throws IOException
+	 *             if the file cannot be read, or if it lacks the
+	 *             <code>x</code>, <code>y</code> or
+	 *             <code>probability</code> columns.
+	 */
+	public SpotiflowSpots read( final Path csvFile ) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open( csvFile, StandardOpenOption.READ ))
+		{
+			final long size = channel.size();
+			final ByteBuffer buffer;
+			if ( size > MAP_THRESHOLD )
+			{
+				buffer = channel.map( MapMode.READ_ONLY, 0, size );
+			}
+			else
+			{
+				buffer = ByteBuffer.allocate( ( int ) size );
+				while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 )
+				{}
+				buffer.flip();
+			}
+			return parse( buffer );
+		}
+	}
+
+	/**
+	 * Parses the spots in the specified buffer, from its position to its
+	 * limit. Each row is appended to the returned primitive arrays, without
+	 * creating a {@link Spot}.
+	 *
+	 * @throws IOException
+	 *             if the header lacks the <code>x</code>, <code>y</code> or
+	 *             <code>probability</code> columns, or if a row is
+	 *             incomplete.
+	 * @throws NumberFormatException
+	 *             if a field we read is not a number.
+	 */
+	public SpotiflowSpots parse( final ByteBuffer buffer ) throws IOException
+	{
+		final int limit = buffer.limit();
+		int pos = buffer.position();
+
+		/*
+		 * Header.
+		 */
+
+		final int headerEnd = lineEnd( buffer, pos, limit );
+		final String header = StandardCharsets.UTF_8.decode( buffer.duplicate().position( pos ).limit( headerEnd ) ).toString();
+		final String[] names = header.split( "," );
+		int xCol = -1, yCol = -1, zCol = -1, pCol = -1, fCol = -1;
+		for ( int i = 0; i < names.length; i++ )
+		{
+			switch ( names[ i ].trim().replace( "\"", "" ) )
+			{
+			case "x":
+				xCol = i;
+				break;
+			case "y":
+				yCol = i;
+				break;
+			case "z":
+				zCol = i;
+				break;
+			case "probability":
+				pCol = i;
+				break;
+			case "fwhm":
+				fCol = i;
+				break;
+			default:
+				break;
+			}
+		}
+		if ( xCol < 0 || yCol < 0 || pCol < 0 )
+			throw new IOException( "Missing x, y or probability column in CSV header: " + header );
+
+		final int nCols = names.length;
+		final boolean[] wanted = new boolean[ nCols ];
+		wanted[ xCol ] = true;
+		wanted[ yCol ] = true;
+		wanted[ pCol ] = true;
+		if ( zCol >= 0 )
+			wanted[ zCol ] = true;
+		if ( fCol >= 0 )
+			wanted[ fCol ] = true;
+		final double[] values = new double[ nCols ];
+
+		final double dimRatio = ( zCol < 0 ) ? DIM_RATIO_2D : DIM_RATIO_3D;
+		final double defaultRadius = 0.5 * calibration[ 0 ];
+
+		/*
+		 * Rows.
+		 */
+
+		final SpotiflowSpots spots = new SpotiflowSpots( 1024 );
+		pos = skipEol( buffer, headerEnd, limit );
+		while ( pos < limit )
+		{
+			final int eol = lineEnd( buffer, pos, limit );
+			if ( eol == pos )
+			{
+				pos = skipEol( buffer, eol, limit );
+				continue;
+			}
+
+			int col = 0;
+			int start = pos;
+			while ( start <= eol && col < nCols )
+			{
+				final int fieldEnd = fieldEnd( buffer, start, eol );
+				if ( wanted[ col ] )
+					values[ col ] = parseDouble( buffer, start, fieldEnd );
+				col++;
+				start = fieldEnd + 1;
+			}
+			if ( col <= Math.max( Math.max( xCol, yCol ), Math.max( pCol, Math.max( zCol, fCol ) ) ) )
+				throw new IOException( "Incomplete row in CSV file at byte " + pos + '.' );
+
+			final double x = values[ xCol ];
+			final double y = values[ yCol ];
+			final double quality = values[ pCol ];
+			final double z = ( zCol < 0 ) ? 0. : values[ zCol ];
+			final double r = ( fCol < 0 )
+					? defaultRadius
+					: values[ fCol ] / FWHM_RATIO * dimRatio * calibration[ 0 ];
+			spots.add( x * calibration[ 0 ], y * calibration[ 1 ], z * calibration[ 2 ], r, quality );
+
+			pos = skipEol( buffer, eol, limit );
+		}
+		return spots;
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private static int lineEnd( final ByteBuffer buffer, int pos, final int limit )
+	{
+		while ( pos < limit )
+		{
+			final byte b = buffer.get( pos );
+			if ( b == '\n' || b == '\r' )
+				return pos;
+			pos++;
+		}
+		return limit;
+	}
+
+	private static int skipEol( final ByteBuffer buffer, int pos, final int limit )
+	{
+		while ( pos < limit )
+		{
+			final byte b = buffer.get( pos );
+			if ( b != '\n' && b != '\r' )
+				return pos;
+			pos++;
+		}
+		return limit;
+	}
+
+	private static int fieldEnd( final ByteBuffer buffer, int pos, final int eol )
+	{
+		while ( pos < eol && buffer.get( pos ) != ',' )
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Parses a decimal number between the specified positions. Uses the
+	 * exact fast path when the significand fits in 53 bits and the exponent
+	 * is a power of ten that is exactly representable, and
+	 * {@link Double#parseDouble(String)} otherwise.
+	 */
+	static double parseDouble( final ByteBuffer buffer, final int start, final int stop )
+	{
+		int i = start;
+		while ( i < stop && buffer.get( i ) == ' ' )
+			i++;
+
+		boolean negative = false;
+		if ( i < stop )
+		{
+			final byte sign = buffer.get( i );
+			if ( sign == '-' || sign == '+' )
+			{
+				negative = sign == '-';
+				i++;
+			}
+		}
+
+		long significand = 0;
+		int nDigits = 0;
+		int exponent = 0;
+		boolean dot = false;
+		boolean anyDigit = false;
+		for ( ; i < stop; i++ )
+		{
+			final byte b = buffer.get( i );
+			if ( b >= '0' && b <= '9' )
+			{
+				anyDigit = true;
+				if ( significand == 0 && b == '0' )
+				{
+					// Leading zeros are not significant.
+					if ( dot )
+						exponent--;
+					continue;
+				}
+				if ( nDigits >= 16 )
+					return slowParse( buffer, start, stop );
+				significand = significand * 10 + ( b - '0' );
+				nDigits++;
+				if ( dot )
+					exponent--;
+			}
+			else if ( b == '.' && !dot )
+			{
+				dot = true;
+			}
+			else if ( ( b == 'e' || b == 'E' ) && anyDigit )
+			{
+				int e = 0;
+				boolean eNegative = false;
+				i++;
+				if ( i < stop && ( buffer.get( i ) == '-' || buffer.get( i ) == '+' ) )
+				{
+					eNegative = buffer.get( i ) == '-';
+					i++;
+				}
+				if ( i >= stop )
+					return slowParse( buffer, start, stop );
+				for ( ; i < stop; i++ )
+				{
+					final byte c = buffer.get( i );
+					if ( c < '0' || c > '9' || e > 1000 )
+						return slowParse( buffer, start, stop );
+					e = e * 10 + ( c - '0' );
+				}
+				exponent += eNegative ? -e : e;
+				break;
+			}
+			else if ( b == ' ' )
+			{
+				// Trailing spaces.
+				for ( ; i < stop; i++ )
+					if ( buffer.get( i ) != ' ' )
+						return slowParse( buffer, start, stop );
+				break;
+			}
+			else
+			{
+				return slowParse( buffer, start, stop );
+			}
+		}
+
+		if ( !anyDigit )
+			return slowParse( buffer, start, stop );
+		if ( significand == 0 )
+			return negative ? -0. : 0.;
+		if ( significand > ( 1L << 53 ) || exponent < -22 || exponent > 22 )
+			return slowParse( buffer, start, stop );
+
+		final double value = ( exponent < 0 )
+				? significand / POW10[ -exponent ]
+				: significand * POW10[ exponent ];
+		return negative ? -value : value;
+	}
+
+	private static double slowParse( final ByteBuffer buffer, final int start, final int stop )
+	{
+		final byte[] bytes = new byte[ stop - start ];
+		for ( int i = 0; i < bytes.length; i++ )
+			bytes[ i ] = buffer.get( start + i );
+		return Double.parseDouble( new String( bytes, StandardCharsets.US_ASCII ).trim() );
+	}
+}
@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory cache of the spots Spotiflow found in single frames at a low
+ * probability threshold, so that changes of the threshold during preview
+ * are answered by filtering the candidates instead of running inference
+ * again.
+ * <p>
+ * Spotiflow keeps the local maxima of the probability map above the
+ * threshold, and suppresses the ones closer than the minimal distance to a
+ * stronger one. Raising the threshold only removes weak peaks, that never
+ * suppress stronger ones. So the spots found at a threshold are exactly
+ * the candidates found at a lower threshold whose probability is above it.
+ * <p>
+ * Entries are keyed like the result cache, by frame content and by the
+ * command line without the probability threshold. The cache is bounded by
+ * the total number of candidates it holds, and the least recently used
+ * frames are evicted first.
+ */
+public class SpotiflowCandidateCache
+{
+
+	/** Maximal number of candidates kept in memory, over all frames. */
+	private static final long MAX_CANDIDATES = 2_000_000;
+
+	private static final Map< String, Candidates > ENTRIES = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private static long nCandidates = 0;
+
+	private SpotiflowCandidateCache()
+	{}
+
+	/**
+	 * Returns the candidates of a frame, or <code>null</code> if they are
+	 * not in the cache.
+	 *
+	 * @param key
+	 *            the frame key.
+	 */
+	public static synchronized Candidates get( final String key )
+	{
+		return ENTRIES.get( key );
+	}
+
+	/**
+	 * Stores the spots found in a frame at the specified threshold.
+	 *
+	 * @param key
+	 *            the frame key.
+	 * @param spots
+	 *            the spots found in the frame. They are sorted in place
+	 *            and kept.
+	 * @param floor
+	 *            the probability threshold they were found at.
+	 * @return the stored candidates.
+	 */
+	public static Candidates put( final String key, final SpotiflowSpots spots, final double floor )
+	{
+		final Candidates candidates = new Candidates( spots, floor );
+		synchronized ( SpotiflowCandidateCache.class )
+		{
+			final Candidates previous = ENTRIES.put( key, candidates );
+			if ( previous != null )
+				nCandidates -= previous.size();
+			nCandidates += candidates.size();
+
+			final Iterator< Candidates > it = ENTRIES.values().iterator();
+			while ( nCandidates > MAX_CANDIDATES && it.hasNext() )
+			{
+				final Candidates eldest = it.next();
+				if ( eldest == candidates )
+					break;
+				nCandidates -= eldest.size();
+				it.remove();
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public static synchronized void clear()
+	{
+		ENTRIES.clear();
+		nCandidates = 0;
+	}
+
+	/**
+	 * Returns a copy of the command line without the probability threshold
+	 * and its value.
+	 */
+	static List< String > withoutThreshold( final List< String > command, final String thresholdArgument )
+	{
+		final List< String > out = new ArrayList<>( command );
+		final int i = out.indexOf( thresholdArgument );
+		if ( i >= 0 )
+		{
+			out.remove( i );
+			if ( i < out.size() )
+				out.remove( i );
+		}
+		return out;
+	}
+
+	/**
+	 * Returns a copy of the command line with the specified probability
+	 * threshold, that is added if the command has none.
+	 */
+	static List< String > withThreshold( final List< String > command, final String thresholdArgument, final double threshold )
+	{
+		final List< String > out = new ArrayList<>( command );
+		final int i = out.indexOf( thresholdArgument );
+		if ( i >= 0 && i + 1 < out.size() )
+		{
+			out.set( i + 1, Double.toString( threshold ) );
+		}
+		else
+		{
+			if ( i >= 0 )
+				out.remove( i );
+			out.add( thresholdArgument );
+			out.add( Double.toString( threshold ) );
+		}
+		return out;
+	}
+
+	/**
+	 * The spots found in one frame, sorted by decreasing probability and
+	 * stored as primitive arrays.
+	 */
+	public static final class Candidates
+	{
+
+		private final double floor;
+
+		/** Sorted by decreasing quality. */
+		private final SpotiflowSpots spots;
+
+		private Candidates( final SpotiflowSpots spots, final double floor )
+		{
+			this.floor = floor;
+			spots.sortByDecreasingQuality();
+			this.spots = spots;
+		}
+
+		/**
+		 * Returns the probability threshold the candidates were found at.
+		 * They can only answer thresholds at least as high.
+		 */
+		public double floor()
+		{
+			return floor;
+		}
+
+		public int size()
+		{
+			return spots.size();
+		}
+
+		/**
+		 * Returns a copy of the candidates whose probability is at least the
+		 * specified threshold.
+		 *
+		 * @param threshold
+		 *            the probability threshold. Must not be lower than
+		 *            {@link #floor()}.
+		 * @return a new list of spots.
+		 */
+		public SpotiflowSpots above( final double threshold )
+		{
+			// Binary search on the decreasing qualities.
+			int lo = 0;
+			int hi = spots.size();
+			while ( lo < hi )
+			{
+				final int mid = ( lo + hi ) >>> 1;
+				if ( spots.quality( mid ) >= threshold )
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			final SpotiflowSpots out = new SpotiflowSpots( lo );
+			out.addAll( spots, lo );
+			return out;
+		}
+	}
+}
@@ -23,50 +23,122 @@ package fiji.plugin.trackmate.spotiflow;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import org.apache.commons.io.input.Tailer;
-import org.apache.commons.io.input.TailerListener;
 import org.scijava.Cancelable;
 
 import fiji.plugin.trackmate.Logger;
-import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
-import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
+import fiji.plugin.trackmate.spotiflow.SpotiflowCandidateCache.Candidates;
+import fiji.plugin.trackmate.spotiflow.SpotiflowTimings.Stage;
 import fiji.plugin.trackmate.util.TMUtils;
+import fiji.plugin.trackmate.util.cli.CLIConfigurator.DoubleArgument;
 import fiji.plugin.trackmate.util.cli.CLIUtils;
 import fiji.plugin.trackmate.util.cli.CLIUtils.LoggerTailerListener;
 import fiji.plugin.trackmate.util.cli.CommandBuilder;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.measure.Calibration;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 
 public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetector< T >, Cancelable, MultiThreaded
 {
 
 	private static final Function< Long, String > nameGen = ( frame ) -> String.format( "%d", frame );
 
+	/**
+	 * Upper bound on the number of <code>spotiflow-predict</code> processes
+	 * each task starts before their startup time is measured, in addition
+	 * to the tail of single-frame batches.
+	 */
+	private static final int MAX_BATCHES_PER_TASK = 4;
+
+	/** Prefix of exported frame files, followed by the frame number. */
+	private static final String FRAME_FILE_PREFIX = "frame-";
+
+	/** Infix of exported tile files, followed by the tile index. */
+	private static final String TILE_FILE_INFIX = "-tile-";
+
+	/**
+	 * Minimal distance between spots, in pixels, when the CLI does not
+	 * specify one. This is the default of <code>spotiflow-predict</code>
+	 * and of the worker script.
+	 */
+	private static final double DEFAULT_MIN_DISTANCE = 1.;
+
+	/**
+	 * Time Spotiflow processes get to exit when a run is canceled, before
+	 * they and their children are killed, in ms.
+	 */
+	private static final long KILL_GRACE_PERIOD = 500;
+
+	/**
+	 * Number of workers a task may lose in a row before it fails. The frames
+	 * a lost worker did not return are handed out again.
+	 */
+	private static final int MAX_LOST_WORKERS = 3;
+
+	/**
+	 * Number of times a frame or tile is tried before we give up on it. A
+	 * frame fails when Spotiflow reports an error on it, writes no result
+	 * for it, times out or crashes on it, or when its result cannot be read.
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Stands for the batch folder in the <code>spotiflow-predict</code>
+	 * command, and is replaced by the folder of each batch.
+	 */
+	private static final String BATCH_FOLDER = "trackmate-spotiflow-batch-folder";
+
+	/** Suffix of the names of the pretrained models for 3D images. */
+	private static final String MODEL_3D_SUFFIX = "_3d";
+
+	/**
+	 * Runs over at most this number of frames are previews, that run
+	 * inference at the threshold sweep floor.
+	 */
+	private static final int PREVIEW_MAX_FRAMES = 1;
+
 	private final ImgPlus< T > img;
 
 	private final Interval interval;
@@ -83,16 +155,134 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 
 	private String cancelReason;
 
-	private boolean isCanceled;
+	private volatile boolean isCanceled;
 
 	private final List< SpotiflowTask > processes = new ArrayList<>();
 
 	private int numThreads;
 
-	private final File spotiflowLogFile;
+	/** The log file of the current run. */
+	private SpotiflowRunLog runLog;
+
+	/** The progress of the current run. */
+	private SpotiflowProgress progress;
+
+	/** Sizes the batches of the current run, and how many run at once. */
+	private SpotiflowBatchSizer batchSizer;
+
+	/** The timings of the current run. */
+	private SpotiflowTimings timings = new SpotiflowTimings();
+
+	/** Where to write the trace of the next runs, or <code>null</code>. */
+	private Path traceFile;
 
 	private final SpotiflowCLI cli;
 
+	private boolean useWorker;
+
+	/** Addresses of the worker daemons to send frames to, if any. */
+	private List< String > remoteWorkers;
+
+	/**
+	 * The arguments of remote workers in the current run, or
+	 * <code>null</code> if workers run on this machine.
+	 */
+	private List< String > remoteArguments;
+
+	/**
+	 * The command that replaces the Spotiflow executable and its
+	 * environment activation, or <code>null</code>.
+	 */
+	private List< String > executableOverride;
+
+	/**
+	 * The <code>spotiflow-predict</code> command of the current run, that
+	 * launches it directly, with placeholders for the batch folder.
+	 */
+	private List< String > predictCommand;
+
+	private volatile ExecutorService ioService;
+
+	/** Size of one exported pixel, in bytes. */
+	private long bytesPerPixel;
+
+	/**
+	 * The memory budget of Spotiflow, in bytes, that sets the size of the
+	 * tiles large frames are cut in. Frames are not cut if not positive.
+	 */
+	private long tileMemoryBudget;
+
+	/**
+	 * The radius under which spots found in overlapping tiles are the same
+	 * spot, in calibrated units.
+	 */
+	private double dedupRadius;
+
+	/** The spots of the tiled frames that are not complete yet. */
+	private final Map< Long, FrameMerge > merges = new ConcurrentHashMap<>();
+
+	/** Failed attempts at the units of the current run. */
+	private final Map< FrameTile, Integer > failures = new ConcurrentHashMap<>();
+
+	/** The units of the current run we gave up on. */
+	private final Queue< FrameTile > failed = new ConcurrentLinkedQueue<>();
+
+	/** Stops the Spotiflow processes and workers that hang. */
+	private ScheduledExecutorService watchdog;
+
+	/** The result cache, or <code>null</code> if it is disabled. */
+	private SpotiflowResultCache resultCache;
+
+	/** The part of the cache keys that identifies the model and parameters. */
+	private String cacheRunKey;
+
+	private final AtomicInteger cacheHits = new AtomicInteger();
+
+	private boolean thresholdSweep;
+
+	/**
+	 * The part of the candidate keys that identifies the model and
+	 * parameters, or <code>null</code> if there is no threshold sweep.
+	 */
+	private String sweepRunKey;
+
+	/** The probability threshold requested for this run. */
+	private double sweepThreshold;
+
+	/**
+	 * The probability threshold inference runs at, or <code>NaN</code> if
+	 * this run does not store candidates.
+	 */
+	private double sweepFloor;
+
+	private final AtomicInteger sweepHits = new AtomicInteger();
+
+	/** Whether peaks are found in Java in the raw outputs of Spotiflow. */
+	private boolean javaPeaks;
+
+	/**
+	 * The part of the heatmap keys that identifies the model and
+	 * parameters, or <code>null</code> if Spotiflow finds the peaks.
+	 */
+	private String peaksRunKey;
+
+	private final AtomicInteger peaksHits = new AtomicInteger();
+
+	/**
+	 * The ONNX model to run in the JVM instead of Spotiflow, or
+	 * <code>null</code>.
+	 */
+	private Path onnxModelFile;
+
+	/**
+	 * The ONNX model of the current run: the one set, if ONNX Runtime is
+	 * installed, or <code>null</code>.
+	 */
+	private Path onnxRunFile;
+
+	/** The ONNX model loaded for the current run, or <code>null</code>. */
+	private SpotiflowOnnxModel onnxModel;
+
 	public SpotiflowDetector(
 			final ImgPlus< T > img,
 			final Interval interval,
@@ -102,63 +292,255 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 		this.interval = interval;
 		this.cli = cli;
 		final String command = cli.getCommand();
-		this.spotiflowLogFile = new File( new File( System.getProperty( "user.home" ), ".spotiflow" ), "run.log" );
 		this.baseErrorMessage = "[" + command + "Detector] ";
+		this.useWorker = SpotiflowPrefs.useWorker();
+		this.remoteWorkers = SpotiflowPrefs.getRemoteWorkers();
+		this.thresholdSweep = SpotiflowPrefs.useThresholdSweep();
+		this.javaPeaks = SpotiflowPrefs.useJavaPeaks();
+		this.tileMemoryBudget = SpotiflowPrefs.getTileMemoryMB() * 1024 * 1024;
+		final String onnxModelPath = SpotiflowPrefs.getOnnxModel();
+		this.onnxModelFile = onnxModelPath.isEmpty() ? null : Paths.get( onnxModelPath );
 	}
 
 	@Override
 	public boolean process()
+	{
+		onnxRunFile = onnxModelFile;
+		if ( onnxRunFile != null && !SpotiflowUtils.isOnnxRuntimeAvailable() )
+		{
+			logger.error( baseErrorMessage + "ONNX Runtime is not installed, running Spotiflow instead of " + onnxModelFile + ".\n" );
+			onnxRunFile = null;
+		}
+		sweepRunKey = null;
+		sweepFloor = Double.NaN;
+		sweepHits.set( 0 );
+		peaksRunKey = null;
+		peaksHits.set( 0 );
+		if ( javaPeaks && onnxRunFile == null && cli instanceof AdvancedSpotiflowCLI
+				&& ( ( AdvancedSpotiflowCLI ) cli ).estimateRadius().getValue() )
+		{
+			// Peaks found in Java have a fixed radius.
+			logger.log( "Peak finding in Java skipped: it does not estimate spot radii, uncheck 'Estimate radius' to use it.\n" );
+		}
+		else if ( javaPeaks && onnxRunFile == null && cli instanceof AdvancedSpotiflowCLI )
+		{
+			/*
+			 * Peaks are found in Java, in the raw outputs of the network
+			 * that are cached without the threshold and minimal distance.
+			 */
+			final AdvancedSpotiflowCLI advancedCli = ( AdvancedSpotiflowCLI ) cli;
+			try
+			{
+				peaksRunKey = SpotiflowResultCache.runKey( SpotiflowCandidateCache.withoutThreshold(
+						SpotiflowCandidateCache.withoutThreshold( commandForCacheKey(), advancedCli.pobabilityThreshold().getArgument() ),
+						advancedCli.minDistance().getArgument() ) );
+				return run();
+			}
+			catch ( final IOException e )
+			{
+				logger.error( baseErrorMessage + "Peak finding in Java disabled:\n" + e.getMessage() + '\n' );
+			}
+		}
+		if ( !thresholdSweep || onnxRunFile != null || !( cli instanceof AdvancedSpotiflowCLI ) )
+			return run();
+
+		/*
+		 * Threshold sweep. Frames we have candidates for are answered by
+		 * filtering them. Previews run inference at a low threshold and
+		 * store the candidates for the next threshold changes.
+		 */
+
+		final DoubleArgument thresholdArg = ( ( AdvancedSpotiflowCLI ) cli ).pobabilityThreshold();
+		final double threshold = thresholdArg.getValue();
+		try
+		{
+			sweepRunKey = SpotiflowResultCache.runKey(
+					SpotiflowCandidateCache.withoutThreshold( commandForCacheKey(), thresholdArg.getArgument() ) );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( baseErrorMessage + "Threshold sweep disabled:\n" + e.getMessage() + '\n' );
+			return run();
+		}
+		sweepThreshold = threshold;
+		if ( nFrames() > PREVIEW_MAX_FRAMES )
+			return run();
+
+		// The commands of the run get the floor, the CLI is left untouched.
+		sweepFloor = Math.min( threshold, SpotiflowPrefs.getThresholdSweepFloor() );
+		return run();
+	}
+
+	private boolean run()
 	{
 		final String command = cli.getCommand();
 		final long start = System.currentTimeMillis();
+		timings = new SpotiflowTimings();
 		isCanceled = false;
 		cancelReason = null;
 
 		/*
-		 * Dispatch time-points to several tasks.
+		 * Open the result cache.
+		 */
+
+		resultCache = null;
+		cacheHits.set( 0 );
+		try
+		{
+			resultCache = SpotiflowResultCache.fromPrefs();
+			if ( resultCache != null )
+				cacheRunKey = SpotiflowResultCache.runKey( commandForCacheKey() );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( baseErrorMessage + "Result cache disabled, it cannot be used:\n" + e.getMessage() + '\n' );
+			resultCache = null;
+		}
+
+		/*
+		 * Cut time-points in work units, whole frames or tiles.
 		 */
 
-		final int c = cli.targetChannel().getValue() - 1; // 0-based
-		final List< ImagePlus > imps = DetectionUtils.splitSingleTimePoints( img, interval, c, nameGen );
-		final int nFrames = imps.size();
+		final boolean hasTime = img.dimensionIndex( Axes.TIME ) >= 0;
+		final int timeDim = interval.numDimensions() - 1;
+		final int nSpatialDims = hasTime ? timeDim : interval.numDimensions();
+		final long firstFrame = hasTime ? interval.min( timeDim ) : 0;
+		final long lastFrame = hasTime ? interval.max( timeDim ) : 0;
+		final int nFrames = ( int ) ( lastFrame - firstFrame + 1 );
+		final long[] spatialMin = new long[ nSpatialDims ];
+		final long[] spatialMax = new long[ nSpatialDims ];
+		for ( int d = 0; d < nSpatialDims; d++ )
+		{
+			spatialMin[ d ] = interval.min( d );
+			spatialMax[ d ] = interval.max( d );
+		}
+		final Interval spatial = new FinalInterval( spatialMin, spatialMax );
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		dedupRadius = Math.max( minDistance( calibration ), calibration[ 0 ] );
+		final long[] tileSizes = SpotiflowTiling.tileSizes( tileMemoryBudget / Math.max( 1, numThreads ), spatial );
+		final long[] margins = SpotiflowTiling.margins( dedupRadius, calibration, nSpatialDims );
+		final List< FrameTile > units = new ArrayList<>();
+		for ( long t = firstFrame; t <= lastFrame; t++ )
+			units.addAll( SpotiflowTiling.tile( t, spatial, tileSizes, margins ) );
+		final int nUnits = units.size();
+		final boolean tiled = nUnits > nFrames;
+		final String unitName = tiled ? "tiles" : "frames";
+		if ( tiled )
+			logger.log( "Frames are cut in " + ( nUnits / nFrames ) + " tiles of at most "
+					+ Arrays.stream( tileSizes ).mapToObj( Long::toString ).collect( Collectors.joining( " x " ) )
+					+ " pixels" + ( ( onnxRunFile == null ) ? ", processed by Spotiflow workers.\n" : ".\n" ) );
+		final int bitsPerPixel = Util.getTypeFromInterval( img ).getBitsPerPixel();
+		bytesPerPixel = ( bitsPerPixel + 7 ) / 8;
+		merges.clear();
+		failures.clear();
+		failed.clear();
 
-		final int nConcurrentTasks = Math.min( nFrames, numThreads );
-		final List< List< ImagePlus > > timepoints = new ArrayList<>( nConcurrentTasks );
-		for ( int i = 0; i < nConcurrentTasks; i++ )
-			timepoints.add( new ArrayList<>() );
+		/*
+		 * Load the ONNX model once for all tasks, if we run in the JVM. We
+		 * hold it until the tasks are done.
+		 */
 
-		Iterator< List< ImagePlus > > it = timepoints.iterator();
-		for ( int t = 0; t < imps.size(); t++ )
+		onnxModel = null;
+		if ( onnxRunFile != null )
 		{
-			if ( !it.hasNext() )
-				it = timepoints.iterator();
-			it.next().add( imps.get( t ) );
+			try
+			{
+				onnxModel = SpotiflowOnnxModel.acquire( onnxRunFile, Math.min( nUnits, numThreads ) );
+			}
+			catch ( final IOException | LinkageError e )
+			{
+				errorMessage = baseErrorMessage + "Could not load the ONNX model:\n" + e.getMessage();
+				return false;
+			}
 		}
 
 		/*
-		 * Create tasks for each list of imps.
+		 * Prepare the commands once for all tasks, before exporting any
+		 * frame: the Spotiflow environment is resolved and checked here, and
+		 * tasks launch its interpreter or spotiflow-predict directly. Tiles,
+		 * and frames whose peaks are found in Java, are always sent to
+		 * workers. So are frames when there are remote workers, that run in
+		 * the environment of their daemon.
 		 */
 
-		final SpotCollection tmpSpots = new SpotCollection();
-		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		List< String > workerCommand = null;
+		remoteArguments = null;
+		predictCommand = null;
+		final boolean remote = onnxModel == null && !remoteWorkers.isEmpty();
+		if ( onnxModel == null )
+		{
+			try
+			{
+				if ( remote )
+				{
+					remoteArguments = SpotiflowWorker.buildArguments( workerTokens(), command );
+					workerCommand = remoteArguments;
+					logger.log( "Sending " + unitName + " to Spotiflow workers on " + String.join( ", ", remoteWorkers ) + ".\n" );
+				}
+				else if ( useWorker || tiled || peaksRunKey != null )
+				{
+					workerCommand = ( executableOverride == null )
+							? SpotiflowWorker.buildCommand( workerTokens(), command )
+							: withExecutableOverride( commandForCacheKey() );
+				}
+				else
+				{
+					predictCommand = buildPredictCommand();
+				}
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = baseErrorMessage + "Could not prepare " + command + ":\n" + e.getMessage();
+				return false;
+			}
+		}
+
+		/*
+		 * Workers read frames written straight from the image buffers as
+		 * .npy files. spotiflow-predict needs TIFF files, that we write from
+		 * views wrapped as ImagePlus when the frame is exported.
+		 */
+		final boolean tiff = workerCommand == null && onnxModel == null;
+
+		final int nConcurrentTasks = Math.max( 1, Math.min( nUnits, numThreads ) );
+		/*
+		 * Workers and the JVM pay no startup cost per batch, so they can take
+		 * frames one by one. Each spotiflow-predict process does, so we limit the
+		 * number of batches per task until we know how long startup takes.
+		 * Batch sizes and the number of batches running at once are then
+		 * retuned from measured timings and free memory.
+		 */
+		final int minBatchSize = ( workerCommand != null || onnxModel != null )
+				? 1
+				: Math.max( 1, nUnits / ( MAX_BATCHES_PER_TASK * nConcurrentTasks ) );
+		final FrameBatchQueue< FrameTile > queue = new FrameBatchQueue<>( units, nConcurrentTasks, minBatchSize );
+		final long maxUnitBytes = units.stream().mapToLong( this::unitBytes ).max().orElse( 0 );
+		final long stagingQuota = ( onnxModel == null ) ? SpotiflowStaging.getQuota() : 0;
+		batchSizer = new SpotiflowBatchSizer( queue, nConcurrentTasks, maxUnitBytes, stagingQuota );
+		progress = new SpotiflowProgress( logger, nUnits, unitName );
+
+		/*
+		 * Create tasks that pull from the queue.
+		 */
+
+		// Spots are moved to the image and timed as they are delivered.
+		final int timeIndex = img.dimensionIndex( Axes.TIME );
+		final double frameInterval = ( timeIndex < 0 ) ? 1. : img.averageScale( timeIndex );
+		final SpotiflowSpotBuffer tmpSpots = new SpotiflowSpotBuffer( spatial, calibration, frameInterval );
+		// Process output is read from pipes, and written to the run log.
+		runLog = SpotiflowRunLog.open();
 		processes.clear();
-		int threadID = 0;
-		for ( final List< ImagePlus > list : timepoints )
-			processes.add( new SpotiflowTask( list, tmpSpots, calibration, ++threadID ) );
+		for ( int threadID = 1; threadID <= nConcurrentTasks; threadID++ )
+			processes.add( new SpotiflowTask( queue, tiff, tmpSpots, calibration, threadID, workerCommand ) );
 
 		/*
 		 * Pass tasks to executors.
 		 */
 
-		// Redirect log to logger.
-		final Tailer tailer = Tailer.builder()
-				.setFile( spotiflowLogFile )
-				.setTailerListener( new SpotiflowLoggerTailerListener( logger ) )
-				.setDelayDuration( Duration.ofMillis( 200 ) )
-				.setTailFromEnd( true )
-				.get();
-
 		final ExecutorService executors = Executors.newFixedThreadPool( nConcurrentTasks );
+		// Frame export and CSV parsing, overlapping with inference.
+		ioService = Executors.newFixedThreadPool( nConcurrentTasks );
+		watchdog = Executors.newSingleThreadScheduledExecutor( Thread.ofPlatform().name( "Spotiflow watchdog" ).daemon().factory() );
 		final List< String > resultDirs = new ArrayList<>( nConcurrentTasks );
 		List< Future< String > > results;
 		try
@@ -169,51 +551,78 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 		}
 		catch ( final InterruptedException | ExecutionException e )
 		{
-			errorMessage = baseErrorMessage + "Problem running "
-					+ command
-					+ ":\n" + e.getMessage() + '\n';
-			e.printStackTrace();
-			return false;
+			// Canceled runs are reported below.
+			if ( !isCanceled )
+			{
+				errorMessage = baseErrorMessage + "Problem running "
+						+ command
+						+ ":\n" + e.getMessage() + '\n';
+				logException( e );
+				return false;
+			}
 		}
 		finally
 		{
-			tailer.close();
+			executors.shutdown();
+			ioService.shutdownNow();
+			watchdog.shutdownNow();
+			if ( onnxModel != null )
+			{
+				onnxModel.release();
+				onnxModel = null;
+			}
+			runLog.close();
 			logger.setStatus( "" );
 			logger.setProgress( 1. );
 		}
 
-		/*
-		 * Did we have a problem with independent tasks?
-		 */
-
-		for ( final SpotiflowTask task : processes )
+		if ( isCanceled )
 		{
-			if ( !task.isOk() )
-				return false;
+			errorMessage = baseErrorMessage + "Canceled" + ( ( cancelReason == null ) ? "." : ": " + cancelReason );
+			return false;
 		}
 
 		/*
-		 * Reposition spots with respect to the interval and time.
+		 * Did we have a problem with independent tasks? A task that fails
+		 * hands its frames back to the others, so we only fail if all of
+		 * them did.
 		 */
 
-		final int timeIndex = img.dimensionIndex( Axes.TIME );
-		final double frameInterval = ( timeIndex < 0 ) ? 1. : img.averageScale( timeIndex );
+		final long nFailedTasks = processes.stream().filter( task -> !task.isOk() ).count();
+		if ( nFailedTasks == processes.size() )
+			return false;
+		if ( nFailedTasks > 0 )
+			logger.error( errorMessage + '\n' );
+		progress.finish();
+
+		// Frames handed back after the other tasks were done.
+		List< FrameTile > left;
+		while ( !( left = queue.next() ).isEmpty() )
+			failed.addAll( left );
+		if ( !failed.isEmpty() )
+			logger.error( "Could not process " + failed.size() + " of " + nUnits + " " + unitName
+					+ ", they have no spots: " + failed.stream()
+							.sorted( Comparator.comparingLong( FrameTile::getFrame ).thenComparingInt( FrameTile::getIndex ) )
+							.map( u -> u.isWholeFrame() ? "frame " + u.getFrame() : "frame " + u.getFrame() + " tile " + u.getIndex() )
+							.collect( Collectors.joining( ", " ) )
+					+ ".\n" );
+
+		if ( resultCache != null )
+			logger.log( "Served " + cacheHits.get() + " of " + nUnits + " " + unitName + " from the Spotiflow result cache.\n" );
+		if ( sweepHits.get() > 0 )
+			logger.log( "Filtered " + sweepHits.get() + " of " + nUnits + " " + unitName + " from candidates kept in memory.\n" );
+		if ( peaksHits.get() > 0 )
+			logger.log( "Found the peaks of " + peaksHits.get() + " of " + nUnits + " " + unitName + " in heatmaps kept in memory.\n" );
+		logger.log( batchSizer.summary( unitName ) + '\n' );
 
-		final List< Spot > slist = new ArrayList<>();
-		for ( final Spot spot : tmpSpots.iterable( false ) )
-		{
-			for ( int d = 0; d < interval.numDimensions() - 1; d++ )
-			{
-				final double pos = spot.getDoublePosition( d ) + interval.min( d ) * calibration[ d ];
-				spot.putFeature( Spot.POSITION_FEATURES[ d ], Double.valueOf( pos ) );
-			}
-			// Set the time properly.
-			final int frame = spot.getFeature( Spot.FRAME ).intValue();
-			spot.putFeature( Spot.POSITION_T, frame * frameInterval );
-			spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
-			slist.add( spot );
-		}
-		spots = SpotCollection.fromCollection( slist );
+		/*
+		 * Create the spots of all frames at once.
+		 */
+
+		final long assemblyStart = System.nanoTime();
+		spots = tmpSpots.toSpotCollection();
+		timings.add( Stage.SPOT_ASSEMBLY, 0, -1, assemblyStart );
+		writeTrace();
 
 		/*
 		 * End.
@@ -239,9 +648,13 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 			errorMessage = baseErrorMessage + "Image is null.";
 			return false;
 		}
-		if ( img.dimensionIndex( Axes.Z ) >= 0 )
+		// Pretrained models are either 2D or 3D.
+		final boolean is3D = img.dimensionIndex( Axes.Z ) >= 0;
+		final String model = pretrainedModel();
+		if ( model != null && is3D != model.endsWith( MODEL_3D_SUFFIX ) )
 		{
-			errorMessage = baseErrorMessage + "Image must be 2D over time, got an image with multiple Z.";
+			errorMessage = baseErrorMessage + "The pretrained model " + model + " is for "
+					+ ( is3D ? "2D" : "3D" ) + " images, got a " + ( is3D ? "3D" : "2D" ) + " image.";
 			return false;
 		}
 		return true;
@@ -267,11 +680,26 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 		return isCanceled;
 	}
 
+	/**
+	 * Cancels the current run. Tasks stop between frames, frame exports and
+	 * result parsing in flight are interrupted, Spotiflow processes are
+	 * killed with their children, and staging files are deleted. Returns
+	 * without waiting for the tasks to end.
+	 */
 	@Override
 	public void cancel( final String reason )
 	{
 		isCanceled = true;
 		cancelReason = reason;
+		if ( batchSizer != null )
+			batchSizer.cancel();
+		final ExecutorService io = ioService;
+		if ( io != null )
+		{
+			for ( final Runnable queued : io.shutdownNow() )
+				if ( queued instanceof Future )
+					( ( Future< ? > ) queued ).cancel( true );
+		}
 		for ( final SpotiflowTask task : processes )
 			task.cancel();
 	}
@@ -282,6 +710,185 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 		return cancelReason;
 	}
 
+	/**
+	 * Sets whether this detector runs Spotiflow in long-lived workers that
+	 * load the model once, instead of starting one
+	 * <code>spotiflow-predict</code> process per task. The default is read
+	 * from {@link SpotiflowPrefs#useWorker()}.
+	 *
+	 * @param useWorker
+	 *            whether to use workers.
+	 */
+	public void setUseWorker( final boolean useWorker )
+	{
+		this.useWorker = useWorker;
+	}
+
+	public boolean isUseWorker()
+	{
+		return useWorker;
+	}
+
+	/**
+	 * Sets the {@link SpotiflowWorkerDaemon}s this detector sends frames to,
+	 * instead of running workers on this machine. Each task talks to one
+	 * daemon, and pulls batches of consecutive frames, so that each daemon
+	 * processes ranges of time. If a daemon is lost, the frames it did not
+	 * return are handed out again and the task moves to the next daemon.
+	 * The default is read from {@link SpotiflowPrefs#getRemoteWorkers()}.
+	 *
+	 * @param addresses
+	 *            the addresses of the daemons, as <code>host:port</code>, or
+	 *            an empty list to run workers on this machine.
+	 */
+	public void setRemoteWorkers( final List< String > addresses )
+	{
+		this.remoteWorkers = new ArrayList<>( addresses );
+	}
+
+	public List< String > getRemoteWorkers()
+	{
+		return Collections.unmodifiableList( remoteWorkers );
+	}
+
+	/**
+	 * Returns the timings of the last run, per stage, task and frame.
+	 *
+	 * @return the timings.
+	 */
+	public SpotiflowTimings getTimings()
+	{
+		return timings;
+	}
+
+	/**
+	 * Sets the file in which the timeline of the next runs is written, in
+	 * the Chrome trace-event format. If <code>null</code>, the default, a
+	 * trace is written in <code>~/.spotiflow/logs</code> only if
+	 * {@link SpotiflowPrefs#writeTrace()} is set.
+	 *
+	 * @param traceFile
+	 *            the trace file.
+	 */
+	public void setTraceFile( final Path traceFile )
+	{
+		this.traceFile = traceFile;
+	}
+
+	/**
+	 * Sets a command that replaces the Spotiflow executable, and the tokens
+	 * that activate its environment, in the command lines this detector
+	 * runs. The arguments built from the CLI are appended to it. This is
+	 * meant to run the detector against a stand-in of Spotiflow, for
+	 * instance in load tests on machines without a Spotiflow environment.
+	 * With workers, the stand-in must speak the worker protocol.
+	 *
+	 * @param command
+	 *            the command, or <code>null</code> to run Spotiflow from the
+	 *            environment configured in the CLI.
+	 */
+	public void setExecutableOverride( final List< String > command )
+	{
+		this.executableOverride = ( command == null ) ? null : new ArrayList<>( command );
+	}
+
+	/**
+	 * Sets whether this detector answers probability threshold changes by
+	 * filtering candidates kept in memory. Previews then run inference at
+	 * the floor threshold of {@link SpotiflowPrefs#getThresholdSweepFloor()}.
+	 * Only used with the advanced Spotiflow detector. The default is read
+	 * from {@link SpotiflowPrefs#useThresholdSweep()}.
+	 *
+	 * @param thresholdSweep
+	 *            whether to use the threshold sweep.
+	 * @see SpotiflowCandidateCache
+	 */
+	public void setThresholdSweep( final boolean thresholdSweep )
+	{
+		this.thresholdSweep = thresholdSweep;
+	}
+
+	public boolean isThresholdSweep()
+	{
+		return thresholdSweep;
+	}
+
+	/**
+	 * Sets the memory budget of Spotiflow. Frames that need more memory than
+	 * their share of the budget, split between the concurrent tasks, are
+	 * cut in overlapping tiles processed by workers, and the spots found in
+	 * the overlaps are deduplicated. The default is read from
+	 * {@link SpotiflowPrefs#getTileMemoryMB()}.
+	 *
+	 * @param bytes
+	 *            the memory budget in bytes, or 0 to never cut frames.
+	 */
+	public void setTileMemoryBudget( final long bytes )
+	{
+		this.tileMemoryBudget = bytes;
+	}
+
+	public long getTileMemoryBudget()
+	{
+		return tileMemoryBudget;
+	}
+
+	/**
+	 * Sets whether Spotiflow workers return the raw probability heatmap and
+	 * flow of each frame, in which this detector finds the peaks in Java.
+	 * Heatmaps are kept in memory, so that later changes of the probability
+	 * threshold or of the minimal distance are answered without running
+	 * inference again. Only used with the advanced Spotiflow detector, and
+	 * forces the use of workers.
+	 * <p>
+	 * Peaks found in Java all have a radius of half a pixel: the radius
+	 * Spotiflow estimates by Gaussian fitting is not reproduced. Java peaks
+	 * are therefore skipped when 'Estimate radius' is checked, which is the
+	 * default. The default is read from
+	 * {@link SpotiflowPrefs#useJavaPeaks()}.
+	 *
+	 * @param javaPeaks
+	 *            whether to find peaks in Java.
+	 * @see SpotiflowHeatmapCache
+	 */
+	public void setJavaPeaks( final boolean javaPeaks )
+	{
+		this.javaPeaks = javaPeaks;
+	}
+
+	public boolean isJavaPeaks()
+	{
+		return javaPeaks;
+	}
+
+	/**
+	 * Sets an exported Spotiflow network that this detector runs on the CPU
+	 * in the JVM, instead of calling Spotiflow. The model chosen in the CLI
+	 * is then ignored, and so are the workers, the result cache and the
+	 * threshold sweep. The probability threshold and minimal distance of
+	 * the advanced detector still apply. The default is read from
+	 * {@link SpotiflowPrefs#getOnnxModel()}.
+	 * <p>
+	 * Spots found with an ONNX model all have a radius of half a pixel: the
+	 * radius Spotiflow estimates by Gaussian fitting is not reproduced.
+	 * <p>
+	 * ONNX Runtime is not shipped with the plugin. If it is not installed,
+	 * the detector logs it and calls Spotiflow instead.
+	 *
+	 * @param file
+	 *            the ONNX file, or <code>null</code> to call Spotiflow.
+	 * @see SpotiflowOnnxModel
+	 */
+	public void setOnnxModel( final Path file )
+	{
+		this.onnxModelFile = file;
+	}
+
+	public Path getOnnxModel()
+	{
+		return onnxModelFile;
+	}
+
 	// --- Multithreaded methods ---
 
 	@Override
@@ -309,27 +916,79 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 
 		private Process process;
 
+		private volatile SpotiflowBackend worker;
+
+		/** The staging folder of this task, once created. */
+		private volatile Path tmpDir;
+
+		/** Index of the remote worker this task talks to. */
+		private int remoteIndex;
+
+		/** Number of workers this task lost in a row. */
+		private int nLost = 0;
+
+		/** Whether the watchdog stopped the current batch. */
+		private volatile boolean timedOut;
+
+		/**
+		 * The command that starts a worker, or <code>null</code> to run
+		 * <code>spotiflow-predict</code>.
+		 */
+		private final List< String > workerCommand;
+
 		private final AtomicBoolean ok;
 
-		private final List< ImagePlus > imps;
+		private final FrameBatchQueue< FrameTile > queue;
+
+		/**
+		 * Whether frames are saved as TIFF files, or written as .npy files
+		 * from the image.
+		 */
+		private final boolean tiff;
 
-		private final SpotCollection tmpSpots;
+		private final SpotiflowSpotBuffer tmpSpots;
 
 		private final double[] calibration;
 
 		private final int threadID;
 
+		private int batchCount = 0;
+
+		/** Parses the output lines of the processes of this task. */
+		private final SpotiflowLoggerTailerListener outputListener;
+
+		/**
+		 * Cache keys of the CSV files Spotiflow will write, or heatmap keys
+		 * if peaks are found in Java.
+		 */
+		private final Map< Path, String > cacheKeys = new ConcurrentHashMap<>();
+
+		/** Candidate keys of the CSV files Spotiflow will write. */
+		private final Map< Path, String > candidateKeys = new ConcurrentHashMap<>();
+
+		/** Work units of the CSV files Spotiflow will write. */
+		private final Map< Path, FrameTile > pendingUnits = new ConcurrentHashMap<>();
+
+		/** Bytes reserved in the staging area for frames not deleted yet. */
+		private final AtomicLong stagedBytes = new AtomicLong();
+
 		public SpotiflowTask(
-				final List< ImagePlus > imps,
-				final SpotCollection tmpSpots,
+				final FrameBatchQueue< FrameTile > queue,
+				final boolean tiff,
+				final SpotiflowSpotBuffer tmpSpots,
 				final double[] calibration,
-				final int threadID )
+				final int threadID,
+				final List< String > workerCommand )
 		{
-			this.imps = imps;
+			this.queue = queue;
+			this.tiff = tiff;
 			this.tmpSpots = tmpSpots;
 			this.calibration = calibration;
 			this.threadID = threadID;
+			this.workerCommand = workerCommand;
+			this.remoteIndex = threadID - 1;
 			this.ok = new AtomicBoolean( true );
+			this.outputListener = new SpotiflowLoggerTailerListener( logger, threadID, runLog, progress );
 		}
 
 		public boolean isOk()
@@ -339,23 +998,37 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 
 		void cancel()
 		{
-			if ( process != null )
-				process.destroy();
+			final Process p = process;
+			if ( p != null )
+				SpotiflowUtils.destroyTree( p.toHandle(), KILL_GRACE_PERIOD );
+			// A worker interrupted mid-request cannot be reused.
+			final SpotiflowBackend w = worker;
+			if ( w != null )
+				w.destroy();
+			final Path dir = tmpDir;
+			if ( dir != null )
+				SpotiflowStaging.delete( dir );
 		}
 
 		@Override
 		public String call() throws Exception
 		{
+			if ( onnxModel != null )
+			{
+				runInJvm();
+				return null;
+			}
+
 			final String command = cli.getCommand();
 
 			/*
 			 * Prepare tmp dir.
 			 */
-			Path tmpDir = null;
+			final Path tmpDir;
 			try
 			{
-				tmpDir = Files.createTempDirectory( "TrackMate-" + command + "_" );
-				CLIUtils.recursiveDeleteOnShutdownHook( tmpDir );
+				tmpDir = SpotiflowStaging.createTaskDir( "TrackMate-" + command + "_" );
+				this.tmpDir = tmpDir;
 			}
 			catch ( final IOException e1 )
 			{
@@ -365,119 +1038,1253 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 			}
 
 			/*
-			 * Save time-points as individual frames.
-			 */
-
-			if ( threadID == 1 )
-				logger.log( "Saving single time-points.\n" );
-
-			for ( final ImagePlus imp : imps )
-			{
-				final String name = imp.getShortTitle() + ".tif";
-				IJ.saveAsTiff( imp, Paths.get( tmpDir.toString(), name ).toString() );
-			}
-
-			/*
-			 * Run Spotiflow.
+			 * Pull batches of frames until the queue is empty. The next batch
+			 * is exported while the current one is predicted, and CSV files
+			 * are parsed as soon as they are written.
 			 */
 
+			final List< Future< ? > > parsing = new ArrayList<>();
 			try
 			{
-				final List< String > cmd;
-				synchronized ( cli )
+				Future< ExportedBatch > pending = ioService.submit( () -> exportNextBatch( tmpDir, parsing ) );
+				while ( !isCanceled )
 				{
-					/*
-					 * In synchronized block so that we can safely generate the
-					 * command line even if one instance of the cli is used in
-					 * several threads.
-					 */
-					cli.imageFolder().set( tmpDir.toString() );
-					cli.outputFolder().set( tmpDir.toString() );
-					cmd = CommandBuilder.build( cli );
-					logger.setStatus( "Running " + command );
-					logger.log( "Thread " + threadID + ":\n", Logger.BLUE_COLOR.darker() );
-					logger.log( "Running " + command + " with args:\n" );
-					cmd.forEach( t -> {
-						if ( t.contains( File.separator ) )
-							logger.log( t + ' ' );
-						else
-							logger.log( t + ' ', Logger.GREEN_COLOR.darker() );
-					} );
-					logger.log( "\n" );
+					final ExportedBatch batch = pending.get();
+					if ( batch == null )
+					{
+						// Frames whose results failed to parse are tried again.
+						awaitParsing( parsing );
+						if ( isCanceled || queue.remaining() == 0 )
+							break;
+						pending = ioService.submit( () -> exportNextBatch( tmpDir, parsing ) );
+						continue;
+					}
+					pending = ioService.submit( () -> exportNextBatch( tmpDir, parsing ) );
+					if ( batch.files.isEmpty() )
+						continue;
+					progress.batchStarted( threadID, batch.files.size() );
+
+					// Run Spotiflow, when there is memory for it.
+					final boolean ran;
+					batchSizer.acquire();
+					try
+					{
+						ran = ( workerCommand != null )
+								? runInWorker( batch, parsing )
+								: runPredict( batch, parsing );
+					}
+					finally
+					{
+						batchSizer.release();
+					}
+					if ( !ran )
+					{
+						// Let the other tasks have the frames we did not get to.
+						final ExportedBatch next = pending.get();
+						if ( next != null )
+							giveBack( next, 0 );
+						awaitParsing( parsing );
+						return null;
+					}
 				}
-
-				final ProcessBuilder pb = new ProcessBuilder( cmd );
-				// Env variables.
-				final Map< String, String > env = new HashMap<>();
-				final String condaRootPrefix = CLIUtils.getCondaRootPrefix();
-				env.put( "MAMBA_ROOT_PREFIX", condaRootPrefix );
-				env.put( "CONDA_ROOT_PREFIX", condaRootPrefix );
-				pb.environment().putAll( env );
-				pb.redirectOutput( spotiflowLogFile );
-				pb.redirectError( spotiflowLogFile );
-
-				process = pb.start();
-				process.waitFor();
+				pending.cancel( false );
+				awaitParsing( parsing );
 			}
-			catch ( final Exception e )
+			catch ( final CancellationException e )
 			{
-				errorMessage = baseErrorMessage + "Problem running " + command + ":\n" + e.getMessage();
-				e.printStackTrace();
-				ok.set( false );
+				// Exports and parsing dropped by cancel().
 				return null;
 			}
-			finally
+			catch ( final RejectedExecutionException | InterruptedException e )
 			{
-				process = null;
+				// The I/O executor is shut down, and we are interrupted, by cancel().
+				if ( isCanceled )
+					return null;
+				errorMessage = baseErrorMessage + "Problem exporting frames or reading results:\n" + e.getMessage();
+				logException( e );
+				ok.set( false );
+				return null;
 			}
-
-			// List all CSV files in the result dir.
-			final File dir = new File( tmpDir.toString() );
-			final File[] csvFiles = dir.listFiles( ( d, name ) -> name.toLowerCase().endsWith( ".csv" ) );
-			if ( null == csvFiles || 0 == csvFiles.length )
+			catch ( final ExecutionException e )
 			{
-				logger.error( baseErrorMessage + "No CSV results found in " + tmpDir + '\n' );
-				return tmpDir.toString();
+				if ( isCanceled )
+					return null;
+				errorMessage = baseErrorMessage + "Problem exporting frames or reading results:\n" + e.getCause().getMessage();
+				logException( e.getCause() );
+				ok.set( false );
+				return null;
 			}
-
-			for ( final File csvFile : csvFiles )
+			finally
 			{
-				// Read time from file name in the shape of img-t6.csv
-				final String fname = csvFile.getName();
-				final String[] tokens = fname.split( "-" );
-				final String timeStr = tokens[ 1 ].replaceAll( "\\D+", "" );
-				final int t = Integer.parseInt( timeStr );
-
-				// Read spots.
-				final List< Spot > spotsInFrame = SpotiflowUtils.readCSV( csvFile, calibration, logger );
-				tmpSpots.put( t, spotsInFrame );
+				releaseWorker();
+				// Results are ingested, we do not need the files anymore.
+				SpotiflowStaging.delete( tmpDir );
+				SpotiflowStaging.release( stagedBytes.getAndSet( 0 ) );
 			}
 
 			return tmpDir.toString();
 		}
-	}
 
-	@Override
-	public void setLogger( final Logger logger )
-	{
-		this.logger = logger;
-	}
+		/**
+		 * Pulls batches of frames from the queue and predicts them with the
+		 * ONNX model, in this thread.
+		 */
+		private void runInJvm()
+		{
+			final int c = cli.targetChannel().getValue() - 1; // 0-based
+			final double threshold = ( cli instanceof AdvancedSpotiflowCLI )
+					? ( ( AdvancedSpotiflowCLI ) cli ).pobabilityThreshold().getValue()
+					: onnxModel.getProbabilityThreshold();
+			final int minDistancePixels = minDistancePixels( calibration );
+			if ( threadID == 1 )
+				logger.log( "Running Spotiflow in the JVM with " + onnxModel.getFile() + ".\n" );
 
-	private static class SpotiflowLoggerTailerListener extends LoggerTailerListener implements TailerListener
-	{
+			List< FrameTile > units;
+			while ( !isCanceled && !( units = queue.next() ).isEmpty() )
+			{
+				progress.batchStarted( threadID, units.size() );
+				try
+				{
+					batchSizer.acquire();
+				}
+				catch ( final InterruptedException e )
+				{
+					return;
+				}
+				final long batchStart = System.nanoTime();
+				boolean clean = true;
+				try
+				{
+					for ( final FrameTile unit : units )
+					{
+						if ( isCanceled )
+							return;
+						final long t = unit.getFrame();
+						final long inferenceStart = System.nanoTime();
+						final SpotiflowSpots spotsInUnit;
+						try
+						{
+							spotsInUnit = onnxModel.predict(
+									NpyFrameWriter.frameView( img, unit.getInterval(), c, t ),
+									threshold, minDistancePixels, calibration );
+						}
+						catch ( final IOException | RuntimeException e )
+						{
+							fail( unit, e.getMessage() );
+							clean = false;
+							continue;
+						}
+						timings.add( Stage.INFERENCE, threadID, t, inferenceStart );
+						deliver( unit, spotsInUnit );
+						progress.frameDone( threadID );
+					}
+				}
+				finally
+				{
+					batchSizer.release();
+				}
+				if ( clean )
+					batchSizer.recordInference( units.size(), System.nanoTime() - batchStart );
+			}
+		}
 
-		public SpotiflowLoggerTailerListener( final Logger logger )
+		/**
+		 * Pulls the next batch of frames from the queue and saves them in a
+		 * new sub-folder of the task folder.
+		 *
+		 * @return the exported batch, or <code>null</code> if the queue is
+		 *         empty.
+		 * @throws InterruptedException
+		 *             if interrupted while waiting for space in the staging
+		 *             area.
+		 */
+		private ExportedBatch exportNextBatch( final Path tmpDir, final List< Future< ? > > parsing ) throws IOException, InterruptedException
 		{
-			super( logger );
+			batchSizer.boundBatchSize();
+			final List< FrameTile > units = queue.next();
+			if ( units.isEmpty() || isCanceled )
+				return null;
+
+			final int c = cli.targetChannel().getValue() - 1; // 0-based
+			final Path dir = Files.createDirectory( tmpDir.resolve( "batch-" + ( ++batchCount ) ) );
+
+			// Serve the units we already have candidates or results for.
+			final List< FrameTile > toExport = new ArrayList<>( units.size() );
+			final Map< FrameTile, String > keys = new HashMap<>();
+			final Map< FrameTile, String > sweepKeys = new HashMap<>();
+			for ( final FrameTile unit : units )
+			{
+				if ( sweepRunKey == null && resultCache == null && peaksRunKey == null )
+				{
+					toExport.add( unit );
+					continue;
+				}
+				final long lookupStart = System.nanoTime();
+				try
+				{
+					lookup( unit, c, toExport, keys, sweepKeys, parsing );
+				}
+				finally
+				{
+					timings.add( Stage.CACHE_LOOKUP, threadID, unit.getFrame(), lookupStart );
+				}
+			}
+
+			/*
+			 * A batch larger than the staging quota would wait forever for
+			 * space. We keep what fits, at least one unit, and let the other
+			 * tasks have the rest.
+			 */
+			final long quota = SpotiflowStaging.getQuota();
+			long batchBytes = 0;
+			int nFit = 0;
+			for ( final FrameTile unit : toExport )
+			{
+				final long bytes = unitBytes( unit );
+				if ( quota > 0 && nFit > 0 && batchBytes + bytes > quota )
+					break;
+				batchBytes += bytes;
+				nFit++;
+			}
+			if ( nFit < toExport.size() )
+			{
+				final List< FrameTile > rest = toExport.subList( nFit, toExport.size() );
+				queue.giveBack( new ArrayList<>( rest ) );
+				rest.clear();
+			}
+
+			final List< Path > files = new ArrayList<>( toExport.size() );
+			try
+			{
+				// Waits for the batches in flight to be done if there is no room.
+				SpotiflowStaging.reserve( dir, batchBytes );
+				stagedBytes.addAndGet( batchBytes );
+				export( dir, c, toExport, keys, sweepKeys, files );
+			}
+			catch ( final IOException | RuntimeException | InterruptedException e )
+			{
+				// Let the other tasks have them.
+				for ( int i = 0; i < files.size(); i++ )
+					discard( files.get( i ), toExport.get( i ) );
+				queue.giveBack( toExport );
+				throw e;
+			}
+			return isCanceled ? null : new ExportedBatch( files, toExport, dir, batchCount == 1 );
+		}
+
+		/**
+		 * Saves the units in the batch folder, adds their files to the
+		 * specified list, and registers the CSV files Spotiflow will write
+		 * for them.
+		 */
+		private void export(
+				final Path dir,
+				final int c,
+				final List< FrameTile > toExport,
+				final Map< FrameTile, String > keys,
+				final Map< FrameTile, String > sweepKeys,
+				final List< Path > files ) throws IOException
+		{
+			for ( final FrameTile unit : toExport )
+			{
+				if ( isCanceled )
+					return;
+				// Save time-points or tiles as individual files.
+				final long t = unit.getFrame();
+				final long exportStart = System.nanoTime();
+				final String name = FRAME_FILE_PREFIX + t + ( unit.isWholeFrame() ? "" : TILE_FILE_INFIX + unit.getIndex() );
+				final Path file;
+				if ( !tiff )
+				{
+					file = dir.resolve( name + ".npy" );
+					NpyFrameWriter.write( img, unit.getInterval(), c, t, file );
+				}
+				else
+				{
+					file = dir.resolve( name + ".tif" );
+					IJ.saveAsTiff( wrap( unit, c ), file.toString() );
+				}
+				timings.add( Stage.FRAME_EXPORT, threadID, t, exportStart );
+				files.add( file );
+				final Path csv = dir.resolve( name + ".csv" );
+				pendingUnits.put( csv, unit );
+				final String key = keys.get( unit );
+				if ( key != null )
+					cacheKeys.put( csv, key );
+				final String sweepKey = sweepKeys.get( unit );
+				if ( sweepKey != null )
+					candidateKeys.put( csv, sweepKey );
+			}
+		}
+
+		/**
+		 * Wraps the view of a unit as an ImagePlus, to save it as TIFF. Its
+		 * planes are read from the image as they are written, so that only
+		 * the frames of the batches in flight are in memory, not the whole
+		 * movie.
+		 */
+		private ImagePlus wrap( final FrameTile unit, final int c )
+		{
+			final long t = unit.getFrame();
+			final ImagePlus imp = ImageJFunctions.wrap( NpyFrameWriter.frameView( img, unit.getInterval(), c, t ), nameGen.apply( t ) );
+			final Calibration cal = imp.getCalibration();
+			cal.pixelWidth = calibration[ 0 ];
+			cal.pixelHeight = calibration[ 1 ];
+			cal.pixelDepth = calibration[ 2 ];
+			return imp;
+		}
+
+		/**
+		 * Serves a unit from the candidate or result cache if we can, or
+		 * adds it to the units to export with the keys to store its results
+		 * under.
+		 */
+		private void lookup(
+				final FrameTile unit,
+				final int c,
+				final List< FrameTile > toExport,
+				final Map< FrameTile, String > keys,
+				final Map< FrameTile, String > sweepKeys,
+				final List< Future< ? > > parsing )
+		{
+			final long t = unit.getFrame();
+			if ( peaksRunKey != null )
+			{
+				final String key = SpotiflowResultCache.key( peaksRunKey, NpyFrameWriter.frameView( img, unit.getInterval(), c, t ) );
+				final SpotiflowHeatmap heatmap = SpotiflowHeatmapCache.get( key );
+				if ( heatmap == null )
+				{
+					toExport.add( unit );
+					keys.put( unit, key );
+					return;
+				}
+				peaksHits.incrementAndGet();
+				final long peaksStart = System.nanoTime();
+				deliver( unit, findPeaks( heatmap ) );
+				timings.add( Stage.PEAK_FINDING, threadID, t, peaksStart );
+				progress.frameServed( threadID );
+				return;
+			}
+
+			String sweepKey = null;
+			if ( sweepRunKey != null )
+			{
+				sweepKey = SpotiflowResultCache.key( sweepRunKey, NpyFrameWriter.frameView( img, unit.getInterval(), c, t ) );
+				final Candidates candidates = SpotiflowCandidateCache.get( sweepKey );
+				if ( candidates != null && candidates.floor() <= sweepThreshold )
+				{
+					sweepHits.incrementAndGet();
+					deliver( unit, candidates.above( sweepThreshold ) );
+					progress.frameServed( threadID );
+					return;
+				}
+				if ( Double.isNaN( sweepFloor ) )
+					sweepKey = null;
+			}
+
+			if ( resultCache == null )
+			{
+				toExport.add( unit );
+				sweepKeys.put( unit, sweepKey );
+				return;
+			}
+			final String key = SpotiflowResultCache.key( cacheRunKey, NpyFrameWriter.frameView( img, unit.getInterval(), c, t ) );
+			final Path cached = resultCache.lookup( key );
+			if ( cached == null )
+			{
+				toExport.add( unit );
+				keys.put( unit, key );
+				sweepKeys.put( unit, sweepKey );
+			}
+			else
+			{
+				cacheHits.incrementAndGet();
+				submitParsing( cached, unit, null, sweepKey, false, null, parsing );
+			}
+		}
+
+		private void deleteInputs( final ExportedBatch batch )
+		{
+			for ( int i = 0; i < batch.files.size(); i++ )
+				deleteInput( batch.files.get( i ), batch.units.get( i ) );
+		}
+
+		/**
+		 * Deletes an exported frame or tile once Spotiflow is done with it,
+		 * and releases its reservation in the staging area.
+		 */
+		private void deleteInput( final Path file, final FrameTile unit )
+		{
+			final long bytes = unitBytes( unit );
+			SpotiflowStaging.delete( file );
+			SpotiflowStaging.release( bytes );
+			stagedBytes.addAndGet( -bytes );
+		}
+
+		/**
+		 * Submits the parsing of a CSV file written by Spotiflow in the
+		 * staging area. The file is stored in the result cache and its spots
+		 * in the candidate cache if we have keys for it, then deleted.
+		 *
+		 * @param held
+		 *            if not <code>null</code>, holds the file back from the
+		 *            result cache until its process ended.
+		 */
+		private void submitParsing( final Path csvFile, final HeldResults held, final List< Future< ? > > parsing )
+		{
+			final FrameTile unit = pendingUnits.remove( csvFile );
+			if ( unit == null )
+			{
+				logger.log( "Thread " + threadID + ": ignoring unexpected result file " + csvFile.getFileName() + ".\n" );
+				SpotiflowStaging.delete( csvFile );
+				return;
+			}
+			submitParsing( csvFile, unit, cacheKeys.remove( csvFile ), candidateKeys.remove( csvFile ), true, held, parsing );
+		}
+
+		private void submitParsing(
+				final Path csvFile,
+				final FrameTile unit,
+				final String cacheKey,
+				final String candidateKey,
+				final boolean delete,
+				final HeldResults held,
+				final List< Future< ? > > parsing )
+		{
+			final Future< ? > future = ioService.submit( () -> {
+				final long parseStart = System.nanoTime();
+				try
+				{
+					readResult( csvFile, unit, candidateKey );
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					// A broken file, in the staging area or in the cache.
+					if ( delete )
+						SpotiflowStaging.delete( csvFile );
+					else
+						resultCache.remove( csvFile );
+					fail( unit, "could not read " + csvFile.getFileName() + ": " + e.getMessage() );
+					return;
+				}
+				timings.add( Stage.CSV_PARSING, threadID, unit.getFrame(), parseStart );
+				boolean deleteNow = delete;
+				if ( cacheKey != null )
+				{
+					if ( held == null )
+						resultCache.store( cacheKey, csvFile );
+					else
+						deleteNow = held.store( cacheKey, csvFile );
+				}
+				// We delete the files Spotiflow wrote, not the cached ones.
+				if ( delete )
+				{
+					if ( deleteNow )
+						SpotiflowStaging.delete( csvFile );
+					progress.frameDone( threadID );
+				}
+				else
+				{
+					progress.frameServed( threadID );
+				}
+			} );
+			synchronized ( parsing )
+			{
+				parsing.add( future );
+			}
+		}
+
+		/**
+		 * Submits the reading of the heatmap a worker wrote in the staging
+		 * area. It is stored in the heatmap cache, its peaks are delivered,
+		 * then its files are deleted.
+		 *
+		 * @param csvFile
+		 *            the CSV file the frame would have been written to, that
+		 *            its unit and key are registered with.
+		 * @param prefix
+		 *            the prefix of the heatmap files.
+		 * @param sigma
+		 *            the scale of the flow.
+		 */
+		private void submitPeakFinding( final Path csvFile, final Path prefix, final double sigma, final List< Future< ? > > parsing )
+		{
+			final Path heatmapFile = Paths.get( prefix + ".heatmap.npy" );
+			final Path flowFile = Paths.get( prefix + ".flow.npy" );
+			final FrameTile unit = pendingUnits.remove( csvFile );
+			if ( unit == null )
+			{
+				// Given back or retried since, another task owns it now.
+				logger.log( "Thread " + threadID + ": ignoring unexpected heatmap file " + heatmapFile.getFileName() + ".\n" );
+				SpotiflowStaging.delete( heatmapFile );
+				SpotiflowStaging.delete( flowFile );
+				return;
+			}
+			final String key = cacheKeys.remove( csvFile );
+			final Future< ? > future = ioService.submit( () -> {
+				final long start = System.nanoTime();
+				final SpotiflowHeatmap heatmap;
+				try
+				{
+					heatmap = SpotiflowHeatmap.read( heatmapFile, Files.exists( flowFile ) ? flowFile : null, sigma );
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					fail( unit, "could not read " + heatmapFile.getFileName() + ": " + e.getMessage() );
+					return null;
+				}
+				finally
+				{
+					SpotiflowStaging.delete( heatmapFile );
+					SpotiflowStaging.delete( flowFile );
+				}
+				if ( key != null )
+					SpotiflowHeatmapCache.put( key, heatmap );
+				deliver( unit, findPeaks( heatmap ) );
+				timings.add( Stage.PEAK_FINDING, threadID, unit.getFrame(), start );
+				progress.frameDone( threadID );
+				return null;
+			} );
+			synchronized ( parsing )
+			{
+				parsing.add( future );
+			}
+		}
+
+		/**
+		 * Finds the peaks of a heatmap with the threshold and minimal
+		 * distance of the CLI.
+		 */
+		private SpotiflowSpots findPeaks( final SpotiflowHeatmap heatmap )
+		{
+			final double threshold = ( ( AdvancedSpotiflowCLI ) cli ).pobabilityThreshold().getValue();
+			return heatmap.find( threshold, minDistancePixels( calibration ), calibration );
+		}
+
+		/**
+		 * Reads a CSV file and delivers its spots. If we have a candidate
+		 * key, the spots were found at the sweep floor: they are stored as
+		 * candidates and filtered at the requested threshold.
+		 */
+		private void readResult( final Path csvFile, final FrameTile unit, final String candidateKey ) throws IOException
+		{
+			final SpotiflowSpots spotsInUnit = new SpotiflowCSVParser( calibration ).read( csvFile );
+			if ( candidateKey == null )
+			{
+				deliver( unit, spotsInUnit );
+				return;
+			}
+			final Candidates candidates = SpotiflowCandidateCache.put( candidateKey, spotsInUnit, sweepFloor );
+			deliver( unit, candidates.above( sweepThreshold ) );
+		}
+
+		/**
+		 * Adds the spots found in a unit to the shared buffer. The spots
+		 * of a tile are kept aside until all the tiles of its frame are in,
+		 * then the spots found twice in the overlaps are removed.
+		 *
+		 * @param unit
+		 *            the unit.
+		 * @param spotsInUnit
+		 *            the spots, with positions relative to the unit. They
+		 *            are moved in place and kept.
+		 */
+		private void deliver( final FrameTile unit, final SpotiflowSpots spotsInUnit )
+		{
+			final int t = ( int ) unit.getFrame();
+			if ( unit.isWholeFrame() )
+			{
+				tmpSpots.put( t, spotsInUnit );
+				return;
+			}
+			final SpotiflowSpots owned = SpotiflowTiling.keepOwned( unit, spotsInUnit, interval, calibration, dedupRadius );
+			final FrameMerge merge = merges.computeIfAbsent( unit.getFrame(), k -> new FrameMerge( unit.getNTiles() ) );
+			if ( merge.add( owned ) )
+			{
+				merges.remove( unit.getFrame() );
+				tmpSpots.put( t, SpotiflowTiling.deduplicate( merge.spots, dedupRadius ) );
+			}
+		}
+
+		/**
+		 * Returns a running worker: on this machine from the pool, or a
+		 * connection to the first remote worker that answers, starting with
+		 * the one of this task.
+		 */
+		private SpotiflowBackend acquireWorker() throws IOException
+		{
+			if ( remoteArguments == null )
+				return SpotiflowWorkerPool.acquire( workerCommand );
+
+			IOException error = null;
+			for ( int i = 0; i < remoteWorkers.size(); i++ )
+			{
+				final String address = remoteWorkers.get( ( remoteIndex + i ) % remoteWorkers.size() );
+				final SpotiflowRemoteWorker remoteWorker = new SpotiflowRemoteWorker( address, remoteArguments );
+				try
+				{
+					remoteWorker.connect();
+					remoteIndex += i;
+					return remoteWorker;
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Thread " + threadID + ": could not connect to " + address + ": " + e.getMessage() + '\n' );
+					error = e;
+				}
+			}
+			throw new IOException( "No remote Spotiflow worker available.", error );
+		}
+
+		/**
+		 * Gives back the worker of this task to the pool, or closes its
+		 * connection.
+		 */
+		private void releaseWorker()
+		{
+			final SpotiflowBackend w = worker;
+			worker = null;
+			if ( w instanceof SpotiflowWorker )
+				SpotiflowWorkerPool.release( ( SpotiflowWorker ) w );
+			else if ( w != null )
+				w.close();
+		}
+
+		/**
+		 * Puts back in the queue the units of a batch that have no result
+		 * yet, from the specified index, and deletes their files.
+		 */
+		private void giveBack( final ExportedBatch batch, final int from )
+		{
+			final List< FrameTile > units = new ArrayList<>( batch.files.size() - from );
+			for ( int i = from; i < batch.files.size(); i++ )
+			{
+				final Path file = batch.files.get( i );
+				final FrameTile unit = batch.units.get( i );
+				if ( pendingUnits.containsKey( csvFile( file ) ) )
+					units.add( unit );
+				discard( file, unit );
+			}
+			queue.giveBack( units );
+		}
+
+		/**
+		 * Returns the CSV file Spotiflow writes for an exported unit.
+		 */
+		private Path csvFile( final Path file )
+		{
+			final String fname = file.getFileName().toString();
+			return file.resolveSibling( fname.substring( 0, fname.lastIndexOf( '.' ) ) + ".csv" );
+		}
+
+		/**
+		 * Forgets the result Spotiflow was to write for an exported unit,
+		 * and deletes its file.
+		 */
+		private void discard( final Path file, final FrameTile unit )
+		{
+			final Path csv = csvFile( file );
+			pendingUnits.remove( csv );
+			cacheKeys.remove( csv );
+			candidateKeys.remove( csv );
+			deleteInput( file, unit );
+		}
+
+		/**
+		 * Hands out again a unit that failed, or gives up on it if it failed
+		 * too many times. A tile we give up on counts as empty, so that the
+		 * spots of the other tiles of its frame are kept.
+		 */
+		private void fail( final FrameTile unit, final String reason )
+		{
+			if ( isCanceled )
+				return;
+			final String what = unit.isWholeFrame()
+					? "frame " + unit.getFrame()
+					: "frame " + unit.getFrame() + " tile " + unit.getIndex();
+			final int attempts = failures.merge( unit, 1, Integer::sum );
+			if ( attempts < MAX_ATTEMPTS )
+			{
+				logger.log( "Thread " + threadID + ": " + what + " failed, trying again: " + reason + '\n' );
+				queue.giveBack( Collections.singletonList( unit ) );
+				return;
+			}
+			logger.error( "Thread " + threadID + ": giving up on " + what + " after " + attempts + " attempts: " + reason + '\n' );
+			failed.add( unit );
+			if ( !unit.isWholeFrame() )
+				deliver( unit, new SpotiflowSpots() );
+		}
+
+		/**
+		 * Starts the watchdog of a batch, that stops it if it runs much
+		 * longer than the batches measured so far.
+		 *
+		 * @param nFrames
+		 *            the number of frames in the batch.
+		 * @param stop
+		 *            stops the process or the worker running the batch.
+		 * @return the alarm to cancel when the batch is done, or
+		 *         <code>null</code> if no batch was measured yet.
+		 */
+		private ScheduledFuture< ? > startWatchdog( final int nFrames, final Runnable stop )
+		{
+			timedOut = false;
+			final long timeout = batchSizer.timeout( nFrames );
+			if ( timeout <= 0 )
+				return null;
+			return watchdog.schedule( () -> {
+				timedOut = true;
+				logger.log( "Thread " + threadID + ": no answer from " + cli.getCommand() + " after "
+						+ TimeUnit.NANOSECONDS.toSeconds( timeout ) + " s, stopping it.\n" );
+				stop.run();
+			}, timeout, TimeUnit.NANOSECONDS );
+		}
+
+		/**
+		 * Waits for the results submitted so far to be parsed.
+		 */
+		private void awaitParsing( final List< Future< ? > > parsing ) throws InterruptedException, ExecutionException
+		{
+			final List< Future< ? > > futures;
+			synchronized ( parsing )
+			{
+				futures = new ArrayList<>( parsing );
+				parsing.clear();
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+
+		/**
+		 * Runs one <code>spotiflow-predict</code> process on all the frames
+		 * of the batch. Its CSV files are parsed while it runs.
+		 */
+		private boolean runPredict( final ExportedBatch batch, final List< Future< ? > > parsing )
+		{
+			final String command = cli.getCommand();
+			final Path tmpDir = batch.dir;
+			final boolean logCommand = batch.first;
+			ScheduledFuture< ? > alarm = null;
+			final int exitValue;
+			// Results enter the cache only once the process succeeded.
+			final HeldResults held = new HeldResults();
+			boolean succeeded = false;
+			try (SpotiflowResultWatcher watcher = new SpotiflowResultWatcher( tmpDir, csv -> submitParsing( csv, held, parsing ) ))
+			{
+				// Our own copy of the command of the run.
+				final List< String > cmd = new ArrayList<>( predictCommand.size() );
+				for ( final String token : predictCommand )
+					cmd.add( token.replace( BATCH_FOLDER, tmpDir.toString() ) );
+				progress.phase( "Running " + command );
+				synchronized ( logger )
+				{
+					if ( logCommand )
+					{
+						logger.log( "Thread " + threadID + ":\n", Logger.BLUE_COLOR.darker() );
+						logger.log( "Running " + command + " with args:\n" );
+						cmd.forEach( t -> {
+							if ( t.contains( File.separator ) )
+								logger.log( t + ' ' );
+							else
+								logger.log( t + ' ', Logger.GREEN_COLOR.darker() );
+						} );
+						logger.log( "\n" );
+					}
+				}
+
+				// Launched directly, with the variables the activation sets.
+				final ProcessBuilder pb = SpotiflowEnvironment.processBuilder( cmd );
+				final long processStart = System.nanoTime();
+				outputListener.resetMarks();
+				process = pb.start();
+				final Process p = process;
+				alarm = startWatchdog( batch.files.size(), () -> SpotiflowUtils.destroyTree( p.toHandle(), KILL_GRACE_PERIOD ) );
+				final Thread out = SpotiflowUtils.pumpLines( process.getInputStream(), command + " stdout " + threadID, outputListener::handle );
+				final Thread err = SpotiflowUtils.pumpLines( process.getErrorStream(), command + " stderr " + threadID, outputListener::handle );
+				exitValue = process.waitFor();
+				out.join();
+				err.join();
+				if ( !timedOut )
+					addProcessTimings( processStart, System.nanoTime(), batch.files.size() );
+				// After a kill or a crash, the last CSV file may be truncated.
+				succeeded = exitValue == 0 && !timedOut;
+				watcher.close( succeeded );
+			}
+			catch ( final Exception e )
+			{
+				if ( isCanceled )
+					return false;
+				errorMessage = baseErrorMessage + "Problem running " + command + ":\n" + e.getMessage();
+				logException( e );
+				ok.set( false );
+				giveBack( batch, 0 );
+				return false;
+			}
+			finally
+			{
+				process = null;
+				if ( alarm != null )
+					alarm.cancel( false );
+				held.processEnded( succeeded );
+			}
+
+			// The watcher is closed, the complete CSV files written are parsed.
+			final String reason = timedOut
+					? "timed out"
+					: "no result, " + command + " exited with code " + exitValue;
+			for ( int i = 0; i < batch.files.size(); i++ )
+			{
+				final FrameTile unit = batch.units.get( i );
+				final Path csv = csvFile( batch.files.get( i ) );
+				if ( pendingUnits.remove( csv ) == null )
+					continue;
+				cacheKeys.remove( csv );
+				candidateKeys.remove( csv );
+				SpotiflowStaging.delete( csv );
+				fail( unit, reason );
+			}
+			deleteInputs( batch );
+			return true;
+		}
+
+		/**
+		 * Splits the lifetime of a <code>spotiflow-predict</code> process in
+		 * stages, from its output: the process starts until it prints its
+		 * first line, then loads the model until it reports progress, then
+		 * runs inference until it exits. The batch sizer is told how long
+		 * the process took to start and to predict its frames.
+		 */
+		private void addProcessTimings( final long start, final long end, final int nFrames )
+		{
+			final long firstLine = outputListener.firstLine;
+			final long firstProgress = outputListener.firstProgress;
+			final long inferenceStart = ( firstProgress > 0 ) ? firstProgress : start;
+			final long modelStart = ( firstLine > 0 && firstLine <= inferenceStart ) ? firstLine : inferenceStart;
+			timings.add( Stage.PROCESS_STARTUP, threadID, -1, start, modelStart );
+			timings.add( Stage.MODEL_LOADING, threadID, -1, modelStart, inferenceStart );
+			timings.add( Stage.INFERENCE, threadID, -1, inferenceStart, end );
+			batchSizer.recordStartup( inferenceStart - start );
+			batchSizer.recordInference( nFrames, end - inferenceStart );
+		}
+
+		/**
+		 * Predicts each frame of the batch in the worker of this task. The
+		 * CSV files are written in the same folder and with the same names as
+		 * <code>spotiflow-predict</code> would.
+		 */
+		private boolean runInWorker( final ExportedBatch batch, final List< Future< ? > > parsing )
+		{
+			int done = 0;
+			ScheduledFuture< ? > alarm = null;
+			try
+			{
+				// Started on first use, frames may all come from the cache.
+				if ( worker == null )
+				{
+					final String command = cli.getCommand();
+					progress.phase( "Starting " + command + " worker" );
+					final long startupStart = System.nanoTime();
+					worker = acquireWorker();
+					timings.add( Stage.PROCESS_STARTUP, threadID, -1, startupStart );
+					worker.setLineListener( outputListener::handle );
+					if ( threadID == 1 || remoteArguments != null )
+						logger.log( "Running " + command + " in worker (Spotiflow version " + worker.getVersion() + ").\n" );
+				}
+				// A hung worker is destroyed, and then lost.
+				final SpotiflowBackend w = worker;
+				alarm = startWatchdog( batch.files.size(), w::destroy );
+				final long batchStart = System.nanoTime();
+				boolean clean = true;
+				for ( ; done < batch.files.size(); done++ )
+				{
+					if ( isCanceled )
+						return true;
+					final int i = done;
+					final Path file = batch.files.get( i );
+					final FrameTile unit = batch.units.get( i );
+					final String fname = file.getFileName().toString();
+					final String name = fname.substring( 0, fname.lastIndexOf( '.' ) );
+					final Path csv = batch.dir.resolve( name + ".csv" );
+					final long inferenceStart = System.nanoTime();
+					try
+					{
+						if ( peaksRunKey != null )
+						{
+							final Path prefix = batch.dir.resolve( name );
+							worker.heatmap( name, file, prefix );
+							timings.add( Stage.INFERENCE, threadID, unit.getFrame(), inferenceStart );
+							submitPeakFinding( csv, prefix, worker.getSigma(), parsing );
+						}
+						else
+						{
+							worker.predict( name, file, csv );
+							timings.add( Stage.INFERENCE, threadID, unit.getFrame(), inferenceStart );
+							submitParsing( csv, null, parsing );
+						}
+					}
+					catch ( final IOException e )
+					{
+						if ( isCanceled || !worker.isAlive() )
+							throw e;
+						// The worker failed on this frame only, and goes on.
+						discard( file, unit );
+						fail( unit, e.getMessage() );
+						clean = false;
+						continue;
+					}
+					nLost = 0;
+					deleteInput( file, unit );
+				}
+				if ( clean )
+					batchSizer.recordInference( batch.files.size(), System.nanoTime() - batchStart );
+				return true;
+			}
+			catch ( final IOException e )
+			{
+				if ( !isCanceled && worker != null && !worker.isAlive() && nLost < MAX_LOST_WORKERS )
+				{
+					/*
+					 * The frame in flight may be the one that kills workers,
+					 * it counts as a failed attempt. The next ones are handed
+					 * out again, and we move to another worker.
+					 */
+					nLost++;
+					final String reason = timedOut ? "timed out" : e.getMessage();
+					logger.log( "Thread " + threadID + ": lost worker: " + reason + ". Retrying "
+							+ ( batch.files.size() - done ) + " " + ( batch.units.get( 0 ).isWholeFrame() ? "frames" : "tiles" ) + ".\n" );
+					if ( done < batch.files.size() )
+					{
+						final FrameTile unit = batch.units.get( done );
+						discard( batch.files.get( done ), unit );
+						fail( unit, reason );
+						giveBack( batch, done + 1 );
+					}
+					worker.destroy();
+					worker = null;
+					remoteIndex++;
+					return true;
+				}
+				if ( isCanceled )
+					return false;
+				errorMessage = baseErrorMessage + "Problem running " + cli.getCommand() + " worker:\n" + e.getMessage();
+				logException( e );
+				ok.set( false );
+				giveBack( batch, done );
+				return false;
+			}
+			finally
+			{
+				if ( alarm != null )
+					alarm.cancel( false );
+			}
+		}
+	}
+
+	/**
+	 * The results of a <code>spotiflow-predict</code> process that are
+	 * parsed while it runs. They are stored in the result cache once the
+	 * process exited successfully, and never if it failed, so that a result
+	 * cut short is not served again in later runs.
+	 */
+	private final class HeldResults
+	{
+
+		/** Whether the process succeeded, or <code>null</code> while it runs. */
+		private Boolean succeeded;
+
+		private final Map< Path, String > held = new HashMap<>();
+
+		/**
+		 * Stores a parsed CSV file in the result cache if the process
+		 * succeeded, or holds it back while it runs.
+		 *
+		 * @return whether the caller may delete the file now. Files held
+		 *         back are deleted when the process ends.
+		 */
+		synchronized boolean store( final String key, final Path csvFile )
+		{
+			if ( succeeded == null )
+			{
+				held.put( csvFile, key );
+				return false;
+			}
+			if ( succeeded )
+				resultCache.store( key, csvFile );
+			return true;
+		}
+
+		synchronized void processEnded( final boolean succeeded )
+		{
+			this.succeeded = succeeded;
+			held.forEach( ( csvFile, key ) -> {
+				if ( succeeded )
+					resultCache.store( key, csvFile );
+				SpotiflowStaging.delete( csvFile );
+			} );
+			held.clear();
+		}
+	}
+
+	/**
+	 * The spots of the tiles of a frame, until all of them are in.
+	 */
+	private static final class FrameMerge
+	{
+
+		private final SpotiflowSpots spots = new SpotiflowSpots();
+
+		private int remaining;
+
+		private FrameMerge( final int nTiles )
+		{
+			this.remaining = nTiles;
+		}
+
+		/**
+		 * Adds the spots of a tile.
+		 *
+		 * @return <code>true</code> if this was the last tile of the frame.
+		 */
+		private synchronized boolean add( final SpotiflowSpots tileSpots )
+		{
+			spots.addAll( tileSpots );
+			return --remaining == 0;
+		}
+	}
+
+	private static final class ExportedBatch
+	{
+
+		private final List< Path > files;
+
+		/** The work units of the files, in the same order. */
+		private final List< FrameTile > units;
+
+		private final Path dir;
+
+		/** Whether this is the first batch of its task. */
+		private final boolean first;
+
+		private ExportedBatch( final List< Path > files, final List< FrameTile > units, final Path dir, final boolean first )
+		{
+			this.files = files;
+			this.units = units;
+			this.dir = dir;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * Returns the command line built from the CLI, without the input and
+	 * output folders that change at every run.
+	 */
+	private List< String > commandForCacheKey()
+	{
+		final String placeholder = "spotiflow-cache-key";
+		final List< String > cmd = commandTokens( placeholder );
+		cmd.removeIf( placeholder::equals );
+		return cmd;
+	}
+
+	/**
+	 * Returns the command line built from the CLI, with the folders that
+	 * are required but ignored by workers.
+	 */
+	private List< String > workerTokens() throws IOException
+	{
+		return commandTokens( SpotiflowWorker.getScript().getParent().toString() );
+	}
+
+	/**
+	 * Returns the command line built from the CLI, with the specified input
+	 * and output folder. The folders are set on a copy of the CLI, and when
+	 * previews run at the sweep floor, the probability threshold is
+	 * replaced by the floor in the returned tokens only: the CLI is left as
+	 * the user set it, for the other readers of the configurator.
+	 */
+	private List< String > commandTokens( final String folder )
+	{
+		final SpotiflowCLI snapshot = cli.copy();
+		snapshot.imageFolder().set( folder );
+		snapshot.outputFolder().set( folder );
+		final List< String > tokens = new ArrayList<>( CommandBuilder.build( snapshot ) );
+		if ( Double.isNaN( sweepFloor ) )
+			return tokens;
+		final String thresholdArgument = ( ( AdvancedSpotiflowCLI ) cli ).pobabilityThreshold().getArgument();
+		return SpotiflowCandidateCache.withThreshold( tokens, thresholdArgument, sweepFloor );
+	}
+
+	/**
+	 * Builds the <code>spotiflow-predict</code> command of the run, in the
+	 * resolved environment or with the executable override, and with
+	 * placeholders for the batch folder. The CLI is only read here, tasks
+	 * work on the returned snapshot.
+	 */
+	private List< String > buildPredictCommand() throws IOException
+	{
+		final List< String > tokens = commandTokens( BATCH_FOLDER );
+		if ( executableOverride != null )
+			return Collections.unmodifiableList( withExecutableOverride( tokens ) );
+
+		final String executable = cli.getCommand();
+		final int i = SpotiflowWorker.indexOfExecutable( tokens, executable );
+		final SpotiflowEnvironment environment = SpotiflowEnvironment.of( tokens, executable );
+		logger.log( "Running " + executable + " of " + environment + ".\n" );
+		return Collections.unmodifiableList( environment.predictCommand( tokens.subList( i + 1, tokens.size() ) ) );
+	}
+
+	/**
+	 * Returns the number of frames in the interval.
+	 */
+	private int nFrames()
+	{
+		if ( img.dimensionIndex( Axes.TIME ) < 0 )
+			return 1;
+		return ( int ) interval.dimension( interval.numDimensions() - 1 );
+	}
+
+	/**
+	 * Writes the trace of the run, if one is requested.
+	 */
+	private void writeTrace()
+	{
+		final Path file = ( traceFile != null )
+				? traceFile
+				: SpotiflowPrefs.writeTrace() ? SpotiflowRunLog.newTraceFile() : null;
+		if ( file == null )
+			return;
+		try
+		{
+			timings.writeChromeTrace( file );
+			logger.log( "Trace of the run written to " + file + '\n' );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( baseErrorMessage + "Could not write the trace file:\n" + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Writes the stack trace of an unexpected exception to the logger. Not
+	 * after a cancel, where exceptions are how tasks are stopped.
+	 */
+	private void logException( final Throwable e )
+	{
+		if ( isCanceled )
+			return;
+		final StringWriter trace = new StringWriter();
+		e.printStackTrace( new PrintWriter( trace ) );
+		logger.error( trace.toString() );
+	}
+
+	/**
+	 * Replaces everything up to the executable in a command line built from
+	 * the CLI by the executable override.
+	 */
+	private List< String > withExecutableOverride( final List< String > tokens ) throws IOException
+	{
+		final int i = SpotiflowWorker.indexOfExecutable( tokens, cli.getCommand() );
+		final List< String > cmd = new ArrayList<>( executableOverride );
+		cmd.addAll( tokens.subList( i + 1, tokens.size() ) );
+		return cmd;
+	}
+
+	/**
+	 * Returns the name of the pretrained model the CLI runs, or
+	 * <code>null</code> if it runs a custom model.
+	 */
+	private String pretrainedModel()
+	{
+		final List< String > cmd = commandForCacheKey();
+		final int i = cmd.indexOf( cli.modelPretrained().getArgument() );
+		return ( i < 0 || i + 1 >= cmd.size() ) ? null : cmd.get( i + 1 );
+	}
+
+	/**
+	 * Returns the size of the file an exported unit is written to, in
+	 * bytes.
+	 */
+	private long unitBytes( final FrameTile unit )
+	{
+		return Intervals.numElements( unit.getInterval() ) * bytesPerPixel;
+	}
+
+	/**
+	 * Returns the minimal distance between spots peaks are found with in
+	 * Java, in pixels, like Spotiflow does.
+	 */
+	private int minDistancePixels( final double[] calibration )
+	{
+		if ( cli instanceof AdvancedSpotiflowCLI )
+			return Math.max( 1, ( int ) ( minDistance( calibration ) / calibration[ 0 ] ) );
+		return 1;
+	}
+
+	/**
+	 * Returns the minimal distance between spots Spotiflow runs with, in
+	 * calibrated units.
+	 */
+	private double minDistance( final double[] calibration )
+	{
+		if ( cli instanceof AdvancedSpotiflowCLI )
+			return ( ( AdvancedSpotiflowCLI ) cli ).minDistance().getValue();
+		return DEFAULT_MIN_DISTANCE * calibration[ 0 ];
+	}
+
+	@Override
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Parses the output lines of the Spotiflow processes of one task to
+	 * report progress and status to the run progress, and writes them to
+	 * the run log.
+	 */
+	private static class SpotiflowLoggerTailerListener extends LoggerTailerListener
+	{
+
+		private final int taskID;
+
+		private final SpotiflowRunLog runLog;
+
+		private final SpotiflowProgress progress;
+
+		/**
+		 * When the current process printed its first line and its first
+		 * progress line, from {@link System#nanoTime()}, or 0.
+		 */
+		private volatile long firstLine;
+
+		private volatile long firstProgress;
+
+		public SpotiflowLoggerTailerListener( final Logger logger, final int taskID, final SpotiflowRunLog runLog, final SpotiflowProgress progress )
+		{
+			super( logger );
+			this.taskID = taskID;
+			this.runLog = runLog;
+			this.progress = progress;
+		}
+
+		void resetMarks()
+		{
+			firstLine = 0;
+			firstProgress = 0;
 		}
 
 		@Override
 		public void handle( final String line )
 		{
+			if ( firstLine == 0 )
+				firstLine = System.nanoTime();
+			runLog.log( taskID, line );
 			final String cleanedLine = cleanLine( line );
 
 			if ( cleanedLine.contains( "Predicting:" ) )
 			{
+				if ( firstProgress == 0 )
+					firstProgress = System.nanoTime();
 				// Extract percentage from lines with 'Predicting: XX%'
 				final String[] parts = cleanedLine.split( "Predicting:" );
 				if ( parts.length > 1 )
@@ -487,8 +2294,14 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 					if ( percentageParts.length > 0 )
 					{
 						final String percentage = percentageParts[ 0 ].trim();
-						final double progress = Double.parseDouble( percentage ) / 100.;
-						logger.setProgress( progress );
+						try
+						{
+							progress.batchProgress( taskID, Double.parseDouble( percentage ) / 100. );
+						}
+						catch ( final NumberFormatException e )
+						{
+							// Not a progress line after all.
+						}
 					}
 				}
 			}
@@ -498,7 +2311,7 @@ public class SpotiflowDetector< T extends RealType< T > & NativeType< T > > impl
 			if ( colonIndex > 0 )
 			{
 				final String status = cleanedLine.substring( 0, colonIndex ).trim();
-				logger.setStatus( status );
+				progress.phase( status );
 			}
 		}
 	}
@@ -56,6 +56,9 @@ public class SpotiflowDetectorFactory< T extends RealType< T > & NativeType< T >
 	public static final String INFO_TEXT = "<html>"
 			+ "This detector relies on Spotiflow to detect sub-resolved particles."
 			+ "<p>"
+			+ "It works on 2D and 3D images. 3D images need a 3D model, such as the "
+			+ "<i>synth_3d</i> and <i>smfish_3d</i> pretrained models."
+			+ "<p>"
 			+ "The detector calls an external <b>Spotiflow</b> installation. So for this "
 			+ "to work, you must have a Spotiflow installation running on your computer. "
 			+ "Please follow the instructions on the TrackMate-Spotiflow page, linked below."
@@ -0,0 +1,336 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import fiji.plugin.trackmate.util.cli.CLIUtils;
+
+/**
+ * The Python interpreter and the <code>spotiflow-predict</code> entry point
+ * of a Spotiflow environment, to launch them directly.
+ * <p>
+ * The command built from the CLI goes through the conda or mamba
+ * activation wrapper, which can take seconds per process when the
+ * environments live on a network drive. We run it once per environment
+ * and session with the worker script in describe mode, that reports the
+ * interpreter, the entry point, the Spotiflow version and the variables
+ * the activation set. Processes are then started without activation, but
+ * with these variables, see {@link #processBuilder(List)}, so that native
+ * libraries and GPU drivers are found as they would be after activation.
+ * The resolved environment is checked again before it is served from the
+ * cache, and resolved anew if its files are gone.
+ * <p>
+ * Environments with a Spotiflow older than {@value #MIN_VERSION} are
+ * rejected.
+ */
+public class SpotiflowEnvironment
+{
+
+	/**
+	 * The oldest Spotiflow version whose <code>spotiflow-predict</code>
+	 * takes the arguments we build from the CLI.
+	 */
+	public static final String MIN_VERSION = "0.4.0";
+
+	/** Starts the line the worker script prints in describe mode. */
+	private static final String DESCRIBE_TAG = "ENV";
+
+	/** Starts the lines of the variables of the environment. */
+	private static final String VARIABLE_TAG = "VAR";
+
+	/**
+	 * How long we wait for the environment to describe itself, in s. The
+	 * first import of Spotiflow may have to compile its modules.
+	 */
+	private static final long DESCRIBE_TIMEOUT = 300;
+
+	/** Number of lines of the error output kept for error messages. */
+	private static final int MAX_ERROR_LINES = 10;
+
+	/**
+	 * Resolved environments, by the tokens of the command that activate
+	 * them, up to the executable.
+	 */
+	private static final Map< List< String >, SpotiflowEnvironment > cache = new ConcurrentHashMap<>();
+
+	/** Resolved environments, by their interpreter and entry point. */
+	private static final Map< String, SpotiflowEnvironment > byExecutable = new ConcurrentHashMap<>();
+
+	private final String python;
+
+	private final String predict;
+
+	private final String version;
+
+	private final Map< String, String > variables;
+
+	private SpotiflowEnvironment( final String python, final String predict, final String version, final Map< String, String > variables )
+	{
+		this.python = python;
+		this.predict = predict;
+		this.version = version;
+		this.variables = Collections.unmodifiableMap( variables );
+	}
+
+	/**
+	 * Returns the environment a command built from a CLI runs in, resolved
+	 * from the cache if we can.
+	 *
+	 * @param tokens
+	 *            the command line built from the CLI.
+	 * @param executable
+	 *            the name of the executable of the CLI.
+	 * @return the environment.
+	 * @throws IOException
+	 *             if the executable is not in the command, if the
+	 *             environment cannot be run or does not have Spotiflow, or
+	 *             if its Spotiflow is older than {@value #MIN_VERSION}.
+	 */
+	public static synchronized SpotiflowEnvironment of( final List< String > tokens, final String executable ) throws IOException
+	{
+		final int i = SpotiflowWorker.indexOfExecutable( tokens, executable );
+		final List< String > key = new ArrayList<>( tokens.subList( 0, i + 1 ) );
+		final SpotiflowEnvironment cached = cache.get( key );
+		if ( cached != null && cached.isValid() )
+			return cached;
+
+		final SpotiflowEnvironment environment = describe( key );
+		if ( !isAtLeast( environment.version, MIN_VERSION ) )
+			throw new IOException( "The Spotiflow environment of " + environment.python + " has Spotiflow " + environment.version
+					+ ", TrackMate needs version " + MIN_VERSION + " or later. Please update it, for instance with:\n"
+					+ "  pip install --upgrade spotiflow" );
+		cache.put( key, environment );
+		byExecutable.put( environment.python, environment );
+		if ( !environment.predict.isEmpty() )
+			byExecutable.put( environment.predict, environment );
+		return environment;
+	}
+
+	/**
+	 * Returns a process builder for a command. If the command runs the
+	 * interpreter or the entry point of an environment we resolved, the
+	 * process gets the variables the activation of the environment set.
+	 * Otherwise the command is expected to activate its environment, and
+	 * gets the conda root prefix the activation needs.
+	 *
+	 * @param command
+	 *            the command.
+	 * @return a new process builder.
+	 */
+	public static ProcessBuilder processBuilder( final List< String > command )
+	{
+		final ProcessBuilder pb = new ProcessBuilder( command );
+		final SpotiflowEnvironment environment = command.isEmpty() ? null : byExecutable.get( command.get( 0 ) );
+		if ( environment != null )
+		{
+			pb.environment().putAll( environment.variables );
+			return pb;
+		}
+		final String condaRootPrefix = CLIUtils.getCondaRootPrefix();
+		if ( condaRootPrefix != null )
+		{
+			pb.environment().put( "MAMBA_ROOT_PREFIX", condaRootPrefix );
+			pb.environment().put( "CONDA_ROOT_PREFIX", condaRootPrefix );
+		}
+		return pb;
+	}
+
+	/**
+	 * Returns the command that runs <code>spotiflow-predict</code> directly
+	 * with the specified arguments.
+	 *
+	 * @throws IOException
+	 *             if the environment has no <code>spotiflow-predict</code>.
+	 */
+	public List< String > predictCommand( final List< String > arguments ) throws IOException
+	{
+		if ( predict.isEmpty() )
+			throw new IOException( "Could not find spotiflow-predict in the environment of " + python );
+		final List< String > cmd = new ArrayList<>( arguments.size() + 1 );
+		cmd.add( predict );
+		cmd.addAll( arguments );
+		return cmd;
+	}
+
+	/**
+	 * Returns the command that runs a Python script directly with the
+	 * interpreter of the environment, and the specified arguments.
+	 */
+	public List< String > scriptCommand( final Path script, final List< String > arguments )
+	{
+		final List< String > cmd = new ArrayList<>( arguments.size() + 2 );
+		cmd.add( python );
+		cmd.add( script.toString() );
+		cmd.addAll( arguments );
+		return cmd;
+	}
+
+	public String getPython()
+	{
+		return python;
+	}
+
+	public String getVersion()
+	{
+		return version;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Spotiflow " + version + " in " + python;
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	/**
+	 * Whether the files we resolved are still there, the environment may
+	 * have been removed or rebuilt since.
+	 */
+	private boolean isValid()
+	{
+		return Files.isExecutable( Paths.get( python ) )
+				&& ( predict.isEmpty() || Files.isRegularFile( Paths.get( predict ) ) );
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Runs the worker script in describe mode, through the activation
+	 * tokens of a command.
+	 */
+	private static SpotiflowEnvironment describe( final List< String > activation ) throws IOException
+	{
+		final int i = activation.size() - 1;
+		final List< String > cmd = new ArrayList<>( activation.subList( 0, i ) );
+		cmd.add( SpotiflowWorker.pythonNextTo( activation.get( i ) ) );
+		cmd.add( SpotiflowWorker.getScript().toString() );
+		cmd.add( "--describe" );
+
+		final Process process = processBuilder( cmd ).start();
+		final List< String > description = new ArrayList<>();
+		final Map< String, String > variables = new HashMap<>();
+		final List< String > errors = new ArrayList<>();
+		final Thread out = SpotiflowUtils.pumpLines( process.getInputStream(), "Spotiflow environment stdout", line -> {
+			if ( line.startsWith( DESCRIBE_TAG + '\t' ) )
+			{
+				description.add( line );
+			}
+			else if ( line.startsWith( VARIABLE_TAG + '\t' ) )
+			{
+				final String[] fields = line.split( "\t", 3 );
+				if ( fields.length == 3 && !fields[ 1 ].isEmpty() )
+					variables.put( fields[ 1 ], fields[ 2 ] );
+			}
+		} );
+		final Thread err = SpotiflowUtils.pumpLines( process.getErrorStream(), "Spotiflow environment stderr", line -> {
+			synchronized ( errors )
+			{
+				errors.add( line );
+				if ( errors.size() > MAX_ERROR_LINES )
+					errors.remove( 0 );
+			}
+		} );
+		try
+		{
+			if ( !process.waitFor( DESCRIBE_TIMEOUT, TimeUnit.SECONDS ) )
+			{
+				SpotiflowUtils.destroyTree( process.toHandle(), 0 );
+				throw new IOException( "No answer from the Spotiflow environment after " + DESCRIBE_TIMEOUT + " s: " + cmd );
+			}
+			out.join();
+			err.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			SpotiflowUtils.destroyTree( process.toHandle(), 0 );
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while resolving the Spotiflow environment.", e );
+		}
+
+		if ( description.isEmpty() )
+		{
+			synchronized ( errors )
+			{
+				throw new IOException( "Could not find Spotiflow in the environment of the command " + cmd
+						+ ( errors.isEmpty() ? "" : ":\n" + String.join( "\n", errors ) ) );
+			}
+		}
+		final String[] fields = description.get( 0 ).split( "\t", -1 );
+		if ( fields.length < 4 || fields[ 1 ].isEmpty() )
+			throw new IOException( "Could not understand the Spotiflow environment description: " + description.get( 0 ) );
+		return new SpotiflowEnvironment( fields[ 1 ], fields[ 2 ], fields[ 3 ], variables );
+	}
+
+	/**
+	 * Compares the leading numbers of two versions, so that
+	 * <code>0.5.2.dev3</code> is at least <code>0.5.0</code>. A version that
+	 * does not start with a number cannot be checked, and passes.
+	 */
+	static boolean isAtLeast( final String version, final String min )
+	{
+		final int[] v = numbers( version );
+		if ( v.length == 0 )
+			return true;
+		final int[] m = numbers( min );
+		for ( int i = 0; i < Math.max( v.length, m.length ); i++ )
+		{
+			final int a = ( i < v.length ) ? v[ i ] : 0;
+			final int b = ( i < m.length ) ? m[ i ] : 0;
+			if ( a != b )
+				return a > b;
+		}
+		return true;
+	}
+
+	private static int[] numbers( final String version )
+	{
+		final List< Integer > numbers = new ArrayList<>();
+		for ( final String part : version.trim().split( "\\." ) )
+		{
+			int end = 0;
+			while ( end < part.length() && Character.isDigit( part.charAt( end ) ) )
+				end++;
+			if ( end == 0 || end > 9 )
+				break;
+			numbers.add( Integer.parseInt( part.substring( 0, end ) ) );
+			if ( end < part.length() )
+				break;
+		}
+		return numbers.stream().mapToInt( Integer::intValue ).toArray();
+	}
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The raw outputs of Spotiflow for one frame: the probability heatmap and
+ * the stereographic flow, if the model has one. Spots are found in them in
+ * Java by {@link SpotiflowPeaks}, so that they can be found again at other
+ * thresholds and minimal distances without running inference.
+ * <p>
+ * Workers write them as <code>.npy</code> files of 32-bit floats, the flow
+ * with its channels first.
+ */
+public class SpotiflowHeatmap
+{
+
+	private static final Pattern DESCR = Pattern.compile( "'descr':\\s*'([^']*)'" );
+
+	private static final Pattern FORTRAN = Pattern.compile( "'fortran_order':\\s*(True|False)" );
+
+	private static final Pattern SHAPE = Pattern.compile( "'shape':\\s*\\(([^)]*)\\)" );
+
+	private final float[] heatmap;
+
+	private final float[] flow;
+
+	private final long[] dims;
+
+	private final double sigma;
+
+	/**
+	 * Creates a heatmap.
+	 *
+	 * @param heatmap
+	 *            the probabilities, with X varying fastest.
+	 * @param flow
+	 *            the stereographic flow, channels last varying, or
+	 *            <code>null</code>.
+	 * @param dims
+	 *            the dimensions of the heatmap, X first.
+	 * @param sigma
+	 *            the scale of the flow, in pixels.
+	 */
+	public SpotiflowHeatmap( final float[] heatmap, final float[] flow, final long[] dims, final double sigma )
+	{
+		this.heatmap = heatmap;
+		this.flow = flow;
+		this.dims = dims;
+		this.sigma = sigma;
+	}
+
+	/**
+	 * Finds the spots in this heatmap.
+	 *
+	 * @param threshold
+	 *            the probability threshold.
+	 * @param minDistance
+	 *            the minimal distance between spots, in pixels.
+	 * @param calibration
+	 *            the spatial calibration.
+	 * @return the spots, in calibrated units relative to the frame origin.
+	 */
+	public SpotiflowSpots find( final double threshold, final int minDistance, final double[] calibration )
+	{
+		return SpotiflowPeaks.find( heatmap, flow, dims, threshold, minDistance, sigma, calibration );
+	}
+
+	/**
+	 * Returns the memory used by the arrays of this heatmap, in bytes.
+	 */
+	public long bytes()
+	{
+		return 4L * ( heatmap.length + ( flow == null ? 0 : flow.length ) );
+	}
+
+	/**
+	 * Reads the outputs a worker wrote for a frame.
+	 *
+	 * @param heatmapFile
+	 *            the heatmap <code>.npy</code> file.
+	 * @param flowFile
+	 *            the flow <code>.npy</code> file, or <code>null</code> if
+	 *            the model has no flow.
+	 * @param sigma
+	 *            the scale of the flow, in pixels.
+	 * @return the heatmap.
+	 * @throws IOException
+	 *             if a file cannot be read, or does not hold 32-bit floats
+	 *             of consistent shapes.
+	 */
+	public static SpotiflowHeatmap read( final Path heatmapFile, final Path flowFile, final double sigma ) throws IOException
+	{
+		final long[][] shape = new long[ 1 ][];
+		final float[] heatmap = readFloats( heatmapFile, shape );
+		final long[] dims = reverse( shape[ 0 ] );
+		if ( flowFile == null )
+			return new SpotiflowHeatmap( heatmap, null, dims, sigma );
+
+		final float[] flow = readFloats( flowFile, shape );
+		final long[] flowDims = reverse( Arrays.copyOfRange( shape[ 0 ], 1, shape[ 0 ].length ) );
+		if ( !Arrays.equals( dims, flowDims ) || shape[ 0 ][ 0 ] != dims.length + 1 )
+			throw new IOException( "Flow of shape " + Arrays.toString( shape[ 0 ] ) + " does not match heatmap of dimensions " + Arrays.toString( dims ) + '.' );
+		return new SpotiflowHeatmap( heatmap, flow, dims, sigma );
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	/**
+	 * Reads a C-ordered <code>.npy</code> file of little-endian 32-bit
+	 * floats, and stores its shape in the first element of the specified
+	 * array.
+	 */
+	private static float[] readFloats( final Path file, final long[][] shapeOut ) throws IOException
+	{
+		try (FileChannel in = FileChannel.open( file, StandardOpenOption.READ ))
+		{
+			final ByteBuffer preamble = ByteBuffer.allocate( 12 ).order( ByteOrder.LITTLE_ENDIAN );
+			while ( preamble.hasRemaining() && in.read( preamble ) >= 0 )
+			{}
+			preamble.flip();
+			if ( preamble.remaining() < 10 || preamble.get( 0 ) != ( byte ) 0x93 || preamble.get( 1 ) != 'N' )
+				throw new IOException( "Not a .npy file: " + file );
+			final int major = preamble.get( 6 );
+			final int headerLength = ( major == 1 ) ? Short.toUnsignedInt( preamble.getShort( 8 ) ) : preamble.getInt( 8 );
+			final int headerStart = ( major == 1 ) ? 10 : 12;
+
+			final ByteBuffer headerBuffer = ByteBuffer.allocate( headerLength );
+			in.position( headerStart );
+			while ( headerBuffer.hasRemaining() && in.read( headerBuffer ) >= 0 )
+			{}
+			final String header = new String( headerBuffer.array(), StandardCharsets.ISO_8859_1 );
+
+			final Matcher descr = DESCR.matcher( header );
+			final Matcher fortran = FORTRAN.matcher( header );
+			final Matcher shapeMatcher = SHAPE.matcher( header );
+			if ( !descr.find() || !fortran.find() || !shapeMatcher.find() )
+				throw new IOException( "Invalid .npy header in " + file + ": " + header.trim() );
+			if ( !descr.group( 1 ).equals( "<f4" ) || fortran.group( 1 ).equals( "True" ) )
+				throw new IOException( "Expected C-ordered float32 data in " + file + ", got " + header.trim() );
+			final long[] shape = Arrays.stream( shapeMatcher.group( 1 ).split( "," ) )
+					.map( String::trim )
+					.filter( s -> !s.isEmpty() )
+					.mapToLong( Long::parseLong )
+					.toArray();
+			shapeOut[ 0 ] = shape;
+
+			long n = 1;
+			for ( final long s : shape )
+				n *= s;
+			final ByteBuffer data = ByteBuffer.allocate( ( int ) ( 4 * n ) ).order( ByteOrder.LITTLE_ENDIAN );
+			while ( data.hasRemaining() && in.read( data ) >= 0 )
+			{}
+			if ( data.hasRemaining() )
+				throw new IOException( "Truncated .npy file: " + file );
+			data.flip();
+			final float[] values = new float[ ( int ) n ];
+			data.asFloatBuffer().get( values );
+			return values;
+		}
+	}
+
+	private static long[] reverse( final long[] shape )
+	{
+		final long[] out = new long[ shape.length ];
+		for ( int d = 0; d < shape.length; d++ )
+			out[ d ] = shape[ shape.length - 1 - d ];
+		return out;
+	}
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of the raw Spotiflow outputs of single frames, so that
+ * changes of the probability threshold or of the minimal distance are
+ * answered by finding the peaks again in Java instead of running inference
+ * again.
+ * <p>
+ * Entries are keyed like the result cache, by frame content and by the
+ * command line without the probability threshold and the minimal distance.
+ * The cache is bounded by the memory its arrays use, and the least recently
+ * used frames are evicted first.
+ */
+public class SpotiflowHeatmapCache
+{
+
+	/** Maximal memory used by the cached arrays, in bytes. */
+	private static final long MAX_BYTES = 1L << 30;
+
+	private static final Map< String, SpotiflowHeatmap > ENTRIES = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private static long nBytes = 0;
+
+	private SpotiflowHeatmapCache()
+	{}
+
+	/**
+	 * Returns the heatmap of a frame, or <code>null</code> if it is not in
+	 * the cache.
+	 *
+	 * @param key
+	 *            the frame key.
+	 */
+	public static synchronized SpotiflowHeatmap get( final String key )
+	{
+		return ENTRIES.get( key );
+	}
+
+	/**
+	 * Stores the heatmap of a frame.
+	 *
+	 * @param key
+	 *            the frame key.
+	 * @param heatmap
+	 *            the heatmap.
+	 */
+	public static synchronized void put( final String key, final SpotiflowHeatmap heatmap )
+	{
+		if ( heatmap.bytes() > MAX_BYTES )
+			return;
+		final SpotiflowHeatmap previous = ENTRIES.put( key, heatmap );
+		if ( previous != null )
+			nBytes -= previous.bytes();
+		nBytes += heatmap.bytes();
+
+		final Iterator< SpotiflowHeatmap > it = ENTRIES.values().iterator();
+		while ( nBytes > MAX_BYTES && it.hasNext() )
+		{
+			final SpotiflowHeatmap eldest = it.next();
+			if ( eldest == heatmap )
+				break;
+			nBytes -= eldest.bytes();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public static synchronized void clear()
+	{
+		ENTRIES.clear();
+		nBytes = 0;
+	}
+}
@@ -0,0 +1,388 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A Spotiflow network exported to ONNX, run on the CPU in the JVM with ONNX
+ * Runtime. Frames are fed as tensors straight from the image, and spots are
+ * decoded in Java by {@link SpotiflowPeaks}: there is no Python process and
+ * no file written.
+ * <p>
+ * The exported network must have one input, of shape
+ * <code>[1, 1, (Z,) Y, X]</code>, and a <code>heatmap</code> output of the
+ * same shape with the spot probabilities at full resolution. It may have a
+ * <code>flow</code> output of shape <code>[1, n + 1, (Z,) Y, X]</code> with
+ * the stereographic flow, for sub-pixel refinement. The model metadata may
+ * specify the <code>sigma</code> of the flow, the default
+ * <code>prob_thresh</code>, and the <code>divisor</code> the input sizes
+ * must be a multiple of.
+ * <p>
+ * Frames are normalized like Spotiflow does, between the 1 and 99.8
+ * percentiles of their intensity. Sessions are thread-safe, so one instance
+ * serves all the tasks of a detection. Models are reference-counted: each
+ * detector acquires the model for its run and releases it when done, and
+ * the session is closed when the last reference is released. The last
+ * loaded model keeps a reference of its own, so that previews do not
+ * reload it.
+ * <p>
+ * ONNX Runtime is an optional dependency. Check
+ * {@link SpotiflowUtils#isOnnxRuntimeAvailable()} before using this class.
+ */
+public class SpotiflowOnnxModel
+{
+
+	/** Name of the probability heatmap output. */
+	public static final String HEATMAP_OUTPUT = "heatmap";
+
+	/** Name of the stereographic flow output. */
+	public static final String FLOW_OUTPUT = "flow";
+
+	private static final double LOW_PERCENTILE = 1.;
+
+	private static final double HIGH_PERCENTILE = 99.8;
+
+	/** Number of bins of the histogram percentiles are estimated from. */
+	private static final int N_BINS = 1 << 16;
+
+	/** The last loaded model, or <code>null</code>. */
+	private static SpotiflowOnnxModel last;
+
+	/** Number of holders of this model, guarded by the class lock. */
+	private int references;
+
+	private final Path file;
+
+	private final String key;
+
+	private final OrtEnvironment env;
+
+	private final OrtSession session;
+
+	private final String inputName;
+
+	private final double sigma;
+
+	private final double probabilityThreshold;
+
+	private final int divisor;
+
+	private SpotiflowOnnxModel( final Path file, final String key, final int intraOpThreads ) throws IOException
+	{
+		this.file = file;
+		this.key = key;
+		try
+		{
+			this.env = OrtEnvironment.getEnvironment();
+			try (OrtSession.SessionOptions options = new OrtSession.SessionOptions())
+			{
+				options.setIntraOpNumThreads( intraOpThreads );
+				this.session = env.createSession( file.toString(), options );
+			}
+			if ( session.getInputNames().size() != 1 )
+				throw new IOException( "Expected a model with one input, got " + session.getInputNames() + '.' );
+			if ( !session.getOutputNames().contains( HEATMAP_OUTPUT ) )
+				throw new IOException( "Expected a model with a '" + HEATMAP_OUTPUT + "' output, got " + session.getOutputNames() + '.' );
+			this.inputName = session.getInputNames().iterator().next();
+			final Map< String, String > metadata = session.getMetadata().getCustomMetadata();
+			this.sigma = Double.parseDouble( metadata.getOrDefault( "sigma", "1" ) );
+			this.probabilityThreshold = Double.parseDouble( metadata.getOrDefault( "prob_thresh", "0.5" ) );
+			this.divisor = Integer.parseInt( metadata.getOrDefault( "divisor", "16" ) );
+		}
+		catch ( final OrtException | NumberFormatException e )
+		{
+			throw new IOException( "Could not load the ONNX model " + file + ":\n" + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Returns the model in the specified file, loaded once and kept until a
+	 * different model or thread count is requested. The caller holds a
+	 * reference to it, and must {@link #release()} it when done.
+	 *
+	 * @param file
+	 *            the ONNX file.
+	 * @param numThreads
+	 *            the number of frames predicted concurrently. The CPU cores
+	 *            are split between them.
+	 * @return the model.
+	 * @throws IOException
+	 *             if the model cannot be loaded.
+	 */
+	public static synchronized SpotiflowOnnxModel acquire( final Path file, final int numThreads ) throws IOException
+	{
+		final int intraOpThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / Math.max( 1, numThreads ) );
+		final String key = file.toAbsolutePath() + "|" + Files.getLastModifiedTime( file ).toMillis() + "|" + intraOpThreads;
+		if ( last != null && last.key.equals( key ) )
+		{
+			last.references++;
+			return last;
+		}
+		final SpotiflowOnnxModel model = new SpotiflowOnnxModel( file, key, intraOpThreads );
+		clear();
+		// One reference for the caller, one for the cache.
+		model.references = 2;
+		last = model;
+		return model;
+	}
+
+	/**
+	 * Releases a reference to this model, acquired with
+	 * {@link #acquire(Path, int)}. The session is closed with the last
+	 * reference.
+	 */
+	public void release()
+	{
+		synchronized ( SpotiflowOnnxModel.class )
+		{
+			if ( --references > 0 )
+				return;
+		}
+		try
+		{
+			session.close();
+		}
+		catch ( final OrtException e )
+		{
+			// Nothing left to release.
+		}
+	}
+
+	/**
+	 * Drops the model kept for the next previews, if any. It is closed once
+	 * the detectors that use it are done.
+	 */
+	public static synchronized void clear()
+	{
+		if ( last == null )
+			return;
+		final SpotiflowOnnxModel model = last;
+		last = null;
+		model.release();
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Returns the default probability threshold of the model.
+	 */
+	public double getProbabilityThreshold()
+	{
+		return probabilityThreshold;
+	}
+
+	/**
+	 * Predicts the spots in a frame.
+	 *
+	 * @param frame
+	 *            the frame, 2D or 3D.
+	 * @param threshold
+	 *            the probability threshold.
+	 * @param minDistance
+	 *            the minimal distance between spots, in pixels.
+	 * @param calibration
+	 *            the spatial calibration.
+	 * @return the spots, in calibrated units relative to the frame origin.
+	 * @throws IOException
+	 *             if inference fails.
+	 */
+	public < T extends RealType< T > > SpotiflowSpots predict(
+			final RandomAccessibleInterval< T > frame,
+			final double threshold,
+			final int minDistance,
+			final double[] calibration ) throws IOException
+	{
+		final int n = frame.numDimensions();
+		final long[] dims = new long[ n ];
+		final long[] padded = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ d ] = frame.dimension( d );
+			padded[ d ] = ( ( dims[ d ] + divisor - 1 ) / divisor ) * divisor;
+		}
+
+		final float[] data = new float[ ( int ) numElements( dims ) ];
+		int i = 0;
+		for ( final T t : Views.flatIterable( frame ) )
+			data[ i++ ] = t.getRealFloat();
+		normalize( data, LOW_PERCENTILE, HIGH_PERCENTILE );
+		final float[] input = copyBox( data, dims, padded, 1 );
+
+		// Tensor shape is in C order, with batch and channel first.
+		final long[] shape = new long[ n + 2 ];
+		shape[ 0 ] = 1;
+		shape[ 1 ] = 1;
+		for ( int d = 0; d < n; d++ )
+			shape[ n + 1 - d ] = padded[ d ];
+
+		try (OnnxTensor tensor = OnnxTensor.createTensor( env, FloatBuffer.wrap( input ), shape );
+				OrtSession.Result result = session.run( Map.of( inputName, tensor ) ))
+		{
+			final float[] heatmap = copyBox( output( result, HEATMAP_OUTPUT ), padded, dims, 1 );
+			final float[] rawFlow = result.get( FLOW_OUTPUT ).isPresent() ? output( result, FLOW_OUTPUT ) : null;
+			final float[] flow = ( rawFlow == null ) ? null : copyBox( rawFlow, padded, dims, n + 1 );
+			return SpotiflowPeaks.find( heatmap, flow, dims, threshold, minDistance, sigma, calibration );
+		}
+		catch ( final OrtException e )
+		{
+			throw new IOException( "Inference failed with the ONNX model " + file + ":\n" + e.getMessage(), e );
+		}
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Normalizes values in place so that the specified percentiles map to 0
+	 * and 1. Percentiles are estimated from a histogram.
+	 */
+	static void normalize( final float[] data, final double pLow, final double pHigh )
+	{
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for ( final float v : data )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+		if ( !( max > min ) )
+		{
+			Arrays.fill( data, 0f );
+			return;
+		}
+
+		final long[] histogram = new long[ N_BINS ];
+		final double scale = ( N_BINS - 1 ) / ( ( double ) max - min );
+		for ( final float v : data )
+			histogram[ ( int ) ( ( v - min ) * scale ) ]++;
+		final double low = min + percentileBin( histogram, data.length, pLow ) / scale;
+		final double high = min + percentileBin( histogram, data.length, pHigh ) / scale;
+		final double range = Math.max( high - low, 1e-20 );
+		for ( int i = 0; i < data.length; i++ )
+			data[ i ] = ( float ) ( ( data[ i ] - low ) / range );
+	}
+
+	/**
+	 * Copies the channels of a flat array into an array of different
+	 * dimensions, cropping or padding with zeros at the end of each
+	 * dimension.
+	 */
+	static float[] copyBox( final float[] src, final long[] srcDims, final long[] dstDims, final int channels )
+	{
+		final int n = srcDims.length;
+		if ( Arrays.equals( srcDims, dstDims ) )
+			return src;
+
+		final long srcSize = numElements( srcDims );
+		final long dstSize = numElements( dstDims );
+		final float[] dst = new float[ ( int ) ( dstSize * channels ) ];
+		final long[] box = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			box[ d ] = Math.min( srcDims[ d ], dstDims[ d ] );
+		final int rowLength = ( int ) box[ 0 ];
+
+		// Iterate over the rows of the box.
+		final long[] p = new long[ n ];
+		long nRows = 1;
+		for ( int d = 1; d < n; d++ )
+			nRows *= box[ d ];
+		for ( int c = 0; c < channels; c++ )
+		{
+			Arrays.fill( p, 0 );
+			for ( long row = 0; row < nRows; row++ )
+			{
+				long srcOffset = c * srcSize;
+				long dstOffset = c * dstSize;
+				long srcStride = 1;
+				long dstStride = 1;
+				for ( int d = 0; d < n; d++ )
+				{
+					srcOffset += p[ d ] * srcStride;
+					dstOffset += p[ d ] * dstStride;
+					srcStride *= srcDims[ d ];
+					dstStride *= dstDims[ d ];
+				}
+				System.arraycopy( src, ( int ) srcOffset, dst, ( int ) dstOffset, rowLength );
+				for ( int d = 1; d < n; d++ )
+				{
+					if ( ++p[ d ] < box[ d ] )
+						break;
+					p[ d ] = 0;
+				}
+			}
+		}
+		return dst;
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private static float[] output( final OrtSession.Result result, final String name ) throws OrtException
+	{
+		final OnnxValue value = result.get( name ).get();
+		final FloatBuffer buffer = ( ( OnnxTensor ) value ).getFloatBuffer();
+		final float[] array = new float[ buffer.remaining() ];
+		buffer.get( array );
+		return array;
+	}
+
+	private static double percentileBin( final long[] histogram, final long total, final double percentile )
+	{
+		final double target = percentile / 100. * total;
+		long count = 0;
+		for ( int bin = 0; bin < histogram.length; bin++ )
+		{
+			count += histogram[ bin ];
+			if ( count >= target )
+				return bin;
+		}
+		return histogram.length - 1;
+	}
+
+	private static long numElements( final long[] dims )
+	{
+		long n = 1;
+		for ( final long d : dims )
+			n *= d;
+		return n;
+	}
+}
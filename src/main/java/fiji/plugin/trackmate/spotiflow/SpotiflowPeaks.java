@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Static utilities to find spots in the raw outputs of a Spotiflow network:
+ * a probability heatmap and, optionally, a stereographic flow field.
+ * <p>
+ * Like Spotiflow, peaks are the pixels above the probability threshold that
+ * are the maximum of the square neighborhood of half-size the minimal
+ * distance, and peaks closer than the minimal distance to a stronger peak
+ * are discarded. Peaks are refined to sub-pixel accuracy with the flow at
+ * their pixel. Unlike Spotiflow with <code>--estimate-params</code>, spot
+ * radii are not estimated by Gaussian fitting: all spots get a radius of
+ * half a pixel.
+ * <p>
+ * Arrays are flat, with X varying fastest, as in imglib2 array images and
+ * in the C-ordered tensors of the network. The flow has one channel per
+ * spatial dimension, in tensor order (Z, Y, X), then the pole channel. It
+ * encodes, by inverse stereographic projection, the offset from each pixel
+ * to the nearest spot, scaled by the sigma of the model.
+ * <p>
+ * Local maxima are searched in parallel over chunks of rows, and the scan
+ * allocates nothing per pixel: candidates are packed with their
+ * probability in primitive <code>long</code> keys, and sorted once. This
+ * is cheap enough to run again on cached heatmaps each time the threshold
+ * or the minimal distance changes.
+ */
+public class SpotiflowPeaks
+{
+
+	/** Offsets are clamped to this, in pixels. */
+	private static final double MAX_OFFSET = 1.;
+
+	/** Heatmaps smaller than this are scanned in a single thread. */
+	private static final int PARALLEL_MIN_PIXELS = 1 << 18;
+
+	private SpotiflowPeaks()
+	{}
+
+	/**
+	 * Finds the spots in a probability heatmap.
+	 *
+	 * @param heatmap
+	 *            the probabilities, with X varying fastest.
+	 * @param flow
+	 *            the stereographic flow, channels last varying, or
+	 *            <code>null</code> for no sub-pixel refinement.
+	 * @param dims
+	 *            the dimensions of the heatmap, X first.
+	 * @param threshold
+	 *            the probability threshold. Peaks must be strictly above
+	 *            it.
+	 * @param minDistance
+	 *            the minimal distance between spots, in pixels.
+	 * @param sigma
+	 *            the scale of the flow, in pixels.
+	 * @param calibration
+	 *            the spatial calibration.
+	 * @return the spots, in calibrated units relative to the first pixel,
+	 *         by decreasing probability.
+	 */
+	public static SpotiflowSpots find(
+			final float[] heatmap,
+			final float[] flow,
+			final long[] dims,
+			final double threshold,
+			final int minDistance,
+			final double sigma,
+			final double[] calibration )
+	{
+		final int n = dims.length;
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; d++ )
+			strides[ d ] = strides[ d - 1 ] * dims[ d - 1 ];
+
+		// Candidates: local maxima above threshold, per chunk of rows.
+		final int width = ( int ) dims[ 0 ];
+		final int nRows = heatmap.length / width;
+		final int nChunks = ( heatmap.length < PARALLEL_MIN_PIXELS )
+				? 1
+				: Math.min( nRows, 4 * ForkJoinPool.getCommonPoolParallelism() );
+		final long[][] chunkKeys = new long[ nChunks ][];
+		final int[] chunkSizes = new int[ nChunks ];
+		final IntStream chunks = IntStream.range( 0, nChunks );
+		( nChunks > 1 ? chunks.parallel() : chunks ).forEach( chunk -> {
+			final long[] pos = new long[ n ];
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			final long[] p = new long[ n ];
+			long[] keys = new long[ 64 ];
+			int size = 0;
+			final int start = ( int ) ( ( long ) chunk * nRows / nChunks ) * width;
+			final int end = ( int ) ( ( long ) ( chunk + 1 ) * nRows / nChunks ) * width;
+			for ( int i = start; i < end; i++ )
+			{
+				final float v = heatmap[ i ];
+				if ( !( v > threshold ) )
+					continue;
+				position( i, strides, pos );
+				if ( !isLocalMax( heatmap, v, pos, dims, strides, minDistance, min, max, p ) )
+					continue;
+				if ( size == keys.length )
+					keys = Arrays.copyOf( keys, 2 * size );
+				keys[ size++ ] = key( v, i );
+			}
+			chunkKeys[ chunk ] = keys;
+			chunkSizes[ chunk ] = size;
+		} );
+
+		int nCandidates = 0;
+		for ( final int size : chunkSizes )
+			nCandidates += size;
+		final long[] keys = new long[ nCandidates ];
+		int offset = 0;
+		for ( int chunk = 0; chunk < nChunks; chunk++ )
+		{
+			System.arraycopy( chunkKeys[ chunk ], 0, keys, offset, chunkSizes[ chunk ] );
+			offset += chunkSizes[ chunk ];
+		}
+		Arrays.sort( keys );
+
+		// Strongest first, then enforce the spacing among plateaus.
+		final BitSet accepted = new BitSet( heatmap.length );
+		final double radius = 0.5 * calibration[ 0 ];
+		final int nPixels = heatmap.length;
+		final long[] pos = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] p = new long[ n ];
+		final double[] xyz = new double[ 3 ];
+		final SpotiflowSpots spots = new SpotiflowSpots( nCandidates );
+		for ( int k = nCandidates - 1; k >= 0; k-- )
+		{
+			final int i = index( keys[ k ] );
+			position( i, strides, pos );
+			if ( hasAcceptedNeighbor( accepted, pos, dims, strides, minDistance, min, max, p ) )
+				continue;
+			accepted.set( i );
+
+			Arrays.fill( xyz, 0. );
+			for ( int d = 0; d < n; d++ )
+				xyz[ d ] = pos[ d ];
+			if ( flow != null )
+			{
+				final double denom = 1. - flow[ n * nPixels + i ];
+				if ( denom > 1e-6 )
+				{
+					for ( int d = 0; d < n; d++ )
+					{
+						final double delta = sigma * flow[ ( n - 1 - d ) * nPixels + i ] / denom;
+						xyz[ d ] += Math.max( -MAX_OFFSET, Math.min( MAX_OFFSET, delta ) );
+					}
+				}
+			}
+			spots.add(
+					xyz[ 0 ] * calibration[ 0 ],
+					xyz[ 1 ] * calibration[ 1 ],
+					xyz[ 2 ] * calibration[ 2 ],
+					radius,
+					heatmap[ i ] );
+		}
+		return spots;
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	/**
+	 * Packs a value and its index in a key that sorts by value, then by
+	 * decreasing index, so that ties are visited in index order from the
+	 * end of a sorted array.
+	 */
+	private static long key( final float value, final int index )
+	{
+		final int bits = Float.floatToIntBits( value );
+		final int sortable = bits ^ ( ( bits >> 31 ) & 0x7fffffff );
+		return ( ( long ) sortable << 32 ) | ( ~index & 0xffffffffL );
+	}
+
+	private static int index( final long key )
+	{
+		return ~( int ) key;
+	}
+
+	private static void position( final long index, final long[] strides, final long[] pos )
+	{
+		long rem = index;
+		for ( int d = strides.length - 1; d >= 0; d-- )
+		{
+			pos[ d ] = rem / strides[ d ];
+			rem -= pos[ d ] * strides[ d ];
+		}
+	}
+
+	/**
+	 * Returns whether no pixel of the neighborhood of the specified one has
+	 * a higher value. The last three arrays are scratch space.
+	 */
+	private static boolean isLocalMax(
+			final float[] values,
+			final float v,
+			final long[] pos,
+			final long[] dims,
+			final long[] strides,
+			final int r,
+			final long[] min,
+			final long[] max,
+			final long[] p )
+	{
+		box( pos, dims, r, min, max, p );
+		while ( true )
+		{
+			if ( values[ ( int ) offset( p, strides ) ] > v )
+				return false;
+			if ( !next( p, min, max ) )
+				return true;
+		}
+	}
+
+	/**
+	 * Returns whether a peak was accepted in the neighborhood of the
+	 * specified pixel. The last three arrays are scratch space.
+	 */
+	private static boolean hasAcceptedNeighbor(
+			final BitSet accepted,
+			final long[] pos,
+			final long[] dims,
+			final long[] strides,
+			final int r,
+			final long[] min,
+			final long[] max,
+			final long[] p )
+	{
+		box( pos, dims, r, min, max, p );
+		while ( true )
+		{
+			if ( accepted.get( ( int ) offset( p, strides ) ) )
+				return true;
+			if ( !next( p, min, max ) )
+				return false;
+		}
+	}
+
+	/**
+	 * Sets the neighborhood of a pixel, clipped to the array, and moves to
+	 * its first position.
+	 */
+	private static void box( final long[] pos, final long[] dims, final int r, final long[] min, final long[] max, final long[] p )
+	{
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			min[ d ] = Math.max( 0, pos[ d ] - r );
+			max[ d ] = Math.min( dims[ d ] - 1, pos[ d ] + r );
+			p[ d ] = min[ d ];
+		}
+	}
+
+	private static long offset( final long[] p, final long[] strides )
+	{
+		long i = 0;
+		for ( int d = 0; d < p.length; d++ )
+			i += p[ d ] * strides[ d ];
+		return i;
+	}
+
+	/**
+	 * Moves to the next position of a box, X fastest. Returns
+	 * <code>false</code> past the last one.
+	 */
+	private static boolean next( final long[] p, final long[] min, final long[] max )
+	{
+		for ( int d = 0; d < p.length; d++ )
+		{
+			if ( ++p[ d ] <= max[ d ] )
+				return true;
+			p[ d ] = min[ d ];
+		}
+		return false;
+	}
+}
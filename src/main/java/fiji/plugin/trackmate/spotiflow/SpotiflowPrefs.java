@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.Prefs;
+
+/**
+ * Session-independent settings of the Spotiflow detectors that are not part
+ * of the detection parameters, and are therefore not stored in TrackMate
+ * files. They are stored in the ImageJ preferences.
+ */
+public class SpotiflowPrefs
+{
+
+	/**
+	 * Whether to run detection in long-lived Spotiflow workers instead of
+	 * one <code>spotiflow-predict</code> process per task.
+	 */
+	public static final String USE_WORKER_PREF_KEY = "trackmate.spotiflow.useworker";
+
+	/**
+	 * Folder in which frames are exported and results are written. Empty
+	 * for the system temporary folder.
+	 */
+	public static final String STAGING_DIR_PREF_KEY = "trackmate.spotiflow.stagingdir";
+
+	/**
+	 * Maximal size of the files written in the staging folder at any time,
+	 * in MB. 0 for no limit.
+	 */
+	public static final String STAGING_QUOTA_PREF_KEY = "trackmate.spotiflow.stagingquota";
+
+	/**
+	 * Whether to reuse the results of frames already detected with the same
+	 * model and parameters.
+	 */
+	public static final String USE_RESULT_CACHE_PREF_KEY = "trackmate.spotiflow.resultcache";
+
+	/** Folder of the result cache. */
+	public static final String RESULT_CACHE_DIR_PREF_KEY = "trackmate.spotiflow.resultcachedir";
+
+	/** Maximal size of the result cache, in MB. */
+	public static final String RESULT_CACHE_SIZE_PREF_KEY = "trackmate.spotiflow.resultcachesize";
+
+	/**
+	 * Whether previews run inference at a low probability threshold and
+	 * answer later threshold changes by filtering the candidates in memory.
+	 * Off by default.
+	 */
+	public static final String THRESHOLD_SWEEP_PREF_KEY = "trackmate.spotiflow.thresholdsweep";
+
+	/** Probability threshold at which previews run inference. */
+	public static final String THRESHOLD_SWEEP_FLOOR_PREF_KEY = "trackmate.spotiflow.thresholdsweepfloor";
+
+	/**
+	 * Whether the output of the Spotiflow processes of each run is written
+	 * to a log file in <code>~/.spotiflow/logs</code>.
+	 */
+	public static final String USE_LOG_FILE_PREF_KEY = "trackmate.spotiflow.logfile";
+
+	/**
+	 * Whether the timeline of each run is written to a trace file in
+	 * <code>~/.spotiflow/logs</code>, in the Chrome trace-event format.
+	 */
+	public static final String WRITE_TRACE_PREF_KEY = "trackmate.spotiflow.trace";
+
+	/**
+	 * Memory budget of Spotiflow, in MB, that sets the size of the tiles
+	 * large frames are cut in. 0 to never cut frames.
+	 */
+	public static final String TILE_MEMORY_PREF_KEY = "trackmate.spotiflow.tilememory";
+
+	/**
+	 * Path to an exported Spotiflow network run in the JVM instead of
+	 * calling Spotiflow. Empty to call Spotiflow.
+	 */
+	public static final String ONNX_MODEL_PREF_KEY = "trackmate.spotiflow.onnxmodel";
+
+	/**
+	 * Whether workers return the raw heatmaps of the network, in which
+	 * peaks are found in Java, so that threshold and minimal distance
+	 * changes do not run inference again. Only applies when spot radii
+	 * are not estimated, Java peaks have a fixed radius.
+	 */
+	public static final String JAVA_PEAKS_PREF_KEY = "trackmate.spotiflow.javapeaks";
+
+	/**
+	 * Comma-separated addresses, as <code>host:port</code>, of the
+	 * {@link SpotiflowWorkerDaemon}s to send frames to. Empty to run workers
+	 * on this machine.
+	 */
+	public static final String REMOTE_WORKERS_PREF_KEY = "trackmate.spotiflow.remoteworkers";
+
+	private SpotiflowPrefs()
+	{}
+
+	public static boolean useWorker()
+	{
+		return Prefs.get( USE_WORKER_PREF_KEY, false );
+	}
+
+	public static void setUseWorker( final boolean useWorker )
+	{
+		Prefs.set( USE_WORKER_PREF_KEY, useWorker );
+	}
+
+	public static String getStagingDir()
+	{
+		return Prefs.get( STAGING_DIR_PREF_KEY, "" );
+	}
+
+	public static void setStagingDir( final String stagingDir )
+	{
+		Prefs.set( STAGING_DIR_PREF_KEY, stagingDir );
+	}
+
+	public static long getStagingQuotaMB()
+	{
+		return ( long ) Prefs.get( STAGING_QUOTA_PREF_KEY, 0. );
+	}
+
+	public static void setStagingQuotaMB( final long quota )
+	{
+		Prefs.set( STAGING_QUOTA_PREF_KEY, ( double ) quota );
+	}
+
+	public static boolean useResultCache()
+	{
+		return Prefs.get( USE_RESULT_CACHE_PREF_KEY, false );
+	}
+
+	public static void setUseResultCache( final boolean useResultCache )
+	{
+		Prefs.set( USE_RESULT_CACHE_PREF_KEY, useResultCache );
+	}
+
+	public static String getResultCacheDir()
+	{
+		final String defaultDir = Paths.get( System.getProperty( "user.home" ), ".spotiflow", "cache" ).toString();
+		return Prefs.get( RESULT_CACHE_DIR_PREF_KEY, defaultDir );
+	}
+
+	public static void setResultCacheDir( final String resultCacheDir )
+	{
+		Prefs.set( RESULT_CACHE_DIR_PREF_KEY, resultCacheDir );
+	}
+
+	public static long getResultCacheSizeMB()
+	{
+		return ( long ) Prefs.get( RESULT_CACHE_SIZE_PREF_KEY, 512. );
+	}
+
+	public static void setResultCacheSizeMB( final long size )
+	{
+		Prefs.set( RESULT_CACHE_SIZE_PREF_KEY, ( double ) size );
+	}
+
+	public static boolean useThresholdSweep()
+	{
+		return Prefs.get( THRESHOLD_SWEEP_PREF_KEY, false );
+	}
+
+	public static void setUseThresholdSweep( final boolean useThresholdSweep )
+	{
+		Prefs.set( THRESHOLD_SWEEP_PREF_KEY, useThresholdSweep );
+	}
+
+	public static double getThresholdSweepFloor()
+	{
+		return Prefs.get( THRESHOLD_SWEEP_FLOOR_PREF_KEY, 0.05 );
+	}
+
+	public static void setThresholdSweepFloor( final double floor )
+	{
+		Prefs.set( THRESHOLD_SWEEP_FLOOR_PREF_KEY, floor );
+	}
+
+	public static boolean useLogFile()
+	{
+		return Prefs.get( USE_LOG_FILE_PREF_KEY, true );
+	}
+
+	public static void setUseLogFile( final boolean useLogFile )
+	{
+		Prefs.set( USE_LOG_FILE_PREF_KEY, useLogFile );
+	}
+
+	public static boolean writeTrace()
+	{
+		return Prefs.get( WRITE_TRACE_PREF_KEY, false );
+	}
+
+	public static void setWriteTrace( final boolean writeTrace )
+	{
+		Prefs.set( WRITE_TRACE_PREF_KEY, writeTrace );
+	}
+
+	public static long getTileMemoryMB()
+	{
+		return ( long ) Prefs.get( TILE_MEMORY_PREF_KEY, 0. );
+	}
+
+	public static void setTileMemoryMB( final long budget )
+	{
+		Prefs.set( TILE_MEMORY_PREF_KEY, ( double ) budget );
+	}
+
+	public static String getOnnxModel()
+	{
+		return Prefs.get( ONNX_MODEL_PREF_KEY, "" );
+	}
+
+	public static void setOnnxModel( final String onnxModel )
+	{
+		Prefs.set( ONNX_MODEL_PREF_KEY, onnxModel );
+	}
+
+	public static boolean useJavaPeaks()
+	{
+		return Prefs.get( JAVA_PEAKS_PREF_KEY, false );
+	}
+
+	public static void setUseJavaPeaks( final boolean useJavaPeaks )
+	{
+		Prefs.set( JAVA_PEAKS_PREF_KEY, useJavaPeaks );
+	}
+
+	public static List< String > getRemoteWorkers()
+	{
+		final List< String > addresses = new ArrayList<>();
+		for ( final String address : Prefs.get( REMOTE_WORKERS_PREF_KEY, "" ).split( "," ) )
+			if ( !address.trim().isEmpty() )
+				addresses.add( address.trim() );
+		return addresses;
+	}
+
+	public static void setRemoteWorkers( final List< String > addresses )
+	{
+		Prefs.set( REMOTE_WORKERS_PREF_KEY, String.join( ",", addresses ) );
+	}
+}
@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Aggregates the progress of the concurrent tasks of a detection run, and
+ * reports the global fraction done, the throughput and the estimated time
+ * remaining to a {@link Logger}.
+ * <p>
+ * A frame counts as done once its spots are ingested. The frames of the
+ * batch a task is predicting count in proportion of the progress that
+ * Spotiflow reports for the batch, so that the progress bar moves during
+ * long batches and never goes backwards when another task reports.
+ */
+public class SpotiflowProgress
+{
+
+	/** Minimal delay between two status updates, in ms. */
+	private static final long STATUS_INTERVAL = 250;
+
+	private final Logger logger;
+
+	private final int nFrames;
+
+	/** What the units of work are called in reports. */
+	private final String unitName;
+
+	private final long start;
+
+	private final Map< Integer, TaskProgress > tasks = new TreeMap<>();
+
+	private int nDone = 0;
+
+	private long lastStatus = 0;
+
+	private String phase = "";
+
+	private double lastFraction = 0.;
+
+	/**
+	 * Creates a progress aggregator for a run over the specified number of
+	 * frames.
+	 *
+	 * @param logger
+	 *            the logger to report progress and status to.
+	 * @param nFrames
+	 *            the number of frames in the run.
+	 */
+	public SpotiflowProgress( final Logger logger, final int nFrames )
+	{
+		this( logger, nFrames, "frames" );
+	}
+
+	/**
+	 * Creates a progress aggregator for a run over the specified number of
+	 * units of work, for instance the tiles large frames are cut in. All
+	 * the methods counting frames count these units.
+	 *
+	 * @param logger
+	 *            the logger to report progress and status to.
+	 * @param nUnits
+	 *            the number of units in the run.
+	 * @param unitName
+	 *            what the units are called in reports, in plural.
+	 */
+	public SpotiflowProgress( final Logger logger, final int nUnits, final String unitName )
+	{
+		this.logger = logger;
+		this.nFrames = nUnits;
+		this.unitName = unitName;
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Reports that a task started to predict a batch.
+	 *
+	 * @param taskID
+	 *            the task ID.
+	 * @param batchSize
+	 *            the number of frames sent to Spotiflow.
+	 */
+	public synchronized void batchStarted( final int taskID, final int batchSize )
+	{
+		final TaskProgress task = task( taskID );
+		task.batchSize = batchSize;
+		task.doneInBatch = 0;
+		task.batchFraction = 0.;
+	}
+
+	/**
+	 * Reports the progress Spotiflow printed for the current batch of a
+	 * task.
+	 *
+	 * @param taskID
+	 *            the task ID.
+	 * @param fraction
+	 *            the fraction of the batch predicted, from 0 to 1.
+	 */
+	public synchronized void batchProgress( final int taskID, final double fraction )
+	{
+		task( taskID ).batchFraction = Math.max( 0., Math.min( 1., fraction ) );
+		report( false );
+	}
+
+	/**
+	 * Reports that the spots of a frame predicted by a task are ingested.
+	 */
+	public synchronized void frameDone( final int taskID )
+	{
+		final TaskProgress task = task( taskID );
+		task.nDone++;
+		task.doneInBatch++;
+		nDone++;
+		report( false );
+	}
+
+	/**
+	 * Reports that the spots of a frame were served without running
+	 * Spotiflow, from a cache.
+	 */
+	public synchronized void frameServed( final int taskID )
+	{
+		task( taskID ).nDone++;
+		nDone++;
+		report( false );
+	}
+
+	/**
+	 * Reports what a task is doing, shown until the first frame is done.
+	 */
+	public synchronized void phase( final String phase )
+	{
+		this.phase = phase;
+		if ( nDone == 0 )
+			report( true );
+	}
+
+	/**
+	 * Returns the fraction of the run done, from 0 to 1.
+	 */
+	public synchronized double fraction()
+	{
+		if ( nFrames == 0 )
+			return 1.;
+		double inFlight = 0.;
+		for ( final TaskProgress task : tasks.values() )
+		{
+			final double remaining = task.batchSize - task.doneInBatch;
+			inFlight += Math.max( 0., Math.min( remaining, task.batchFraction * task.batchSize - task.doneInBatch ) );
+		}
+		return Math.min( 1., ( nDone + inFlight ) / nFrames );
+	}
+
+	/**
+	 * Returns the number of frames done per second since the start of the
+	 * run.
+	 */
+	public synchronized double framesPerSecond()
+	{
+		final double elapsed = ( System.nanoTime() - start ) / 1e9;
+		return ( elapsed <= 0. ) ? 0. : nDone / elapsed;
+	}
+
+	/**
+	 * Returns the estimated time remaining, in seconds, or a negative value
+	 * if it cannot be estimated yet.
+	 */
+	public synchronized double eta()
+	{
+		final double f = fraction();
+		if ( f <= 0. )
+			return -1.;
+		final double elapsed = ( System.nanoTime() - start ) / 1e9;
+		return elapsed * ( 1. - f ) / f;
+	}
+
+	/**
+	 * Returns the number of frames done by a task.
+	 */
+	public synchronized int framesDone( final int taskID )
+	{
+		final TaskProgress task = tasks.get( taskID );
+		return ( task == null ) ? 0 : task.nDone;
+	}
+
+	/**
+	 * Logs a summary of the run.
+	 */
+	public synchronized void finish()
+	{
+		final double elapsed = ( System.nanoTime() - start ) / 1e9;
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( "Processed %d %s in %.1f s (%.2f %s/s)", nDone, unitName, elapsed, framesPerSecond(), unitName ) );
+		if ( tasks.size() > 1 )
+		{
+			str.append( String.format( "; %s per task:", unitName ) );
+			for ( final Map.Entry< Integer, TaskProgress > entry : tasks.entrySet() )
+				str.append( String.format( " #%d: %d", entry.getKey(), entry.getValue().nDone ) );
+		}
+		str.append( ".\n" );
+		logger.log( str.toString() );
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private TaskProgress task( final int taskID )
+	{
+		return tasks.computeIfAbsent( taskID, id -> new TaskProgress() );
+	}
+
+	private void report( final boolean force )
+	{
+		// Several tasks report: never go backwards.
+		lastFraction = Math.max( lastFraction, fraction() );
+		logger.setProgress( lastFraction );
+
+		final long now = System.currentTimeMillis();
+		if ( !force && now - lastStatus < STATUS_INTERVAL )
+			return;
+		lastStatus = now;
+		if ( nDone == 0 )
+		{
+			logger.setStatus( phase );
+			return;
+		}
+		final double eta = eta();
+		logger.setStatus( String.format( "%d/%d %s - %.1f %s/s - %d tasks - ETA %s",
+				nDone, nFrames, unitName, framesPerSecond(), unitName, tasks.size(), formatDuration( eta ) ) );
+	}
+
+	static String formatDuration( final double seconds )
+	{
+		if ( seconds < 0. )
+			return "unknown";
+		final long s = Math.round( seconds );
+		if ( s < 60 )
+			return s + " s";
+		if ( s < 3600 )
+			return String.format( "%d min %02d s", s / 60, s % 60 );
+		return String.format( "%d h %02d min", s / 3600, ( s % 3600 ) / 60 );
+	}
+
+	private static final class TaskProgress
+	{
+
+		private int nDone;
+
+		private int batchSize;
+
+		private int doneInBatch;
+
+		private double batchFraction;
+	}
+}
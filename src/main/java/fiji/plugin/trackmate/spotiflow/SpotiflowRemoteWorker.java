@@ -0,0 +1,353 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A connection to a Spotiflow worker that runs on another machine, served
+ * by a {@link SpotiflowWorkerDaemon}.
+ * <p>
+ * Frames are sent over TCP, and the files the worker writes are sent back
+ * and written where a local worker would have written them. The protocol is
+ * binary, with strings as modified UTF-8:
+ *
+ * <pre>
+ * java   -&gt; HELLO    n-args  args...
+ * daemon -&gt; READY    version  sigma
+ * daemon -&gt; ERROR    message
+ * java   -&gt; PREDICT  id  input-extension  n-bytes  bytes
+ * java   -&gt; HEATMAP  id  input-extension  n-bytes  bytes
+ * daemon -&gt; DONE     n-spots  n-files  (suffix  n-bytes  bytes)...
+ * daemon -&gt; ERROR    message
+ * java   -&gt; QUIT
+ * </pre>
+ *
+ * The arguments are the ones <code>spotiflow-predict</code> would get, so
+ * that the daemon starts a worker with the same model and parameters. Paths
+ * in them, for instance of a custom model folder, must be valid on the
+ * remote machine.
+ * <p>
+ * If the daemon reports an error, the connection stays usable. If the
+ * connection breaks, the worker is considered lost and
+ * {@link #isAlive()} returns <code>false</code>.
+ */
+public class SpotiflowRemoteWorker implements SpotiflowBackend
+{
+
+	static final String HELLO = "HELLO";
+
+	static final String READY = "READY";
+
+	static final String PREDICT = "PREDICT";
+
+	static final String HEATMAP = "HEATMAP";
+
+	static final String DONE = "DONE";
+
+	static final String ERROR = "ERROR";
+
+	static final String QUIT = "QUIT";
+
+	/** Suffixes of the files the daemon may send back. */
+	static final List< String > OUTPUT_SUFFIXES = Collections.unmodifiableList( Arrays.asList( ".csv", ".heatmap.npy", ".flow.npy" ) );
+
+	/** Port daemons listen on when none is specified. */
+	public static final int DEFAULT_PORT = 7654;
+
+	private static final int CONNECT_TIMEOUT = 10_000;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final String host;
+
+	private final int port;
+
+	private final List< String > arguments;
+
+	private Socket socket;
+
+	private DataInputStream in;
+
+	private DataOutputStream out;
+
+	private String version;
+
+	private double sigma = 1.;
+
+	private volatile boolean alive = false;
+
+	private volatile Consumer< String > lineListener = l -> {};
+
+	/**
+	 * Creates a connection to a daemon, not opened yet.
+	 *
+	 * @param address
+	 *            the address of the daemon, as <code>host:port</code> or
+	 *            <code>host</code> for the default port.
+	 * @param arguments
+	 *            the arguments of the worker.
+	 */
+	public SpotiflowRemoteWorker( final String address, final List< String > arguments )
+	{
+		final int colon = address.lastIndexOf( ':' );
+		this.host = ( colon < 0 ) ? address.trim() : address.substring( 0, colon ).trim();
+		this.port = ( colon < 0 ) ? DEFAULT_PORT : Integer.parseInt( address.substring( colon + 1 ).trim() );
+		this.arguments = Collections.unmodifiableList( new ArrayList<>( arguments ) );
+	}
+
+	/**
+	 * Connects to the daemon and blocks until its worker has loaded the
+	 * model.
+	 *
+	 * @throws IOException
+	 *             if the daemon cannot be reached, or if it cannot start a
+	 *             worker.
+	 */
+	public synchronized void connect() throws IOException
+	{
+		socket = new Socket();
+		socket.connect( new InetSocketAddress( host, port ), CONNECT_TIMEOUT );
+		socket.setTcpNoDelay( true );
+		socket.setKeepAlive( true );
+		in = new DataInputStream( new BufferedInputStream( socket.getInputStream(), BUFFER_SIZE ) );
+		out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(), BUFFER_SIZE ) );
+
+		out.writeUTF( HELLO );
+		out.writeInt( arguments.size() );
+		for ( final String argument : arguments )
+			out.writeUTF( argument );
+		out.flush();
+
+		final String reply = in.readUTF();
+		if ( reply.equals( ERROR ) )
+		{
+			final String message = in.readUTF();
+			destroy();
+			throw new IOException( "Spotiflow worker on " + this + " could not start: " + message );
+		}
+		if ( !reply.equals( READY ) )
+		{
+			destroy();
+			throw new IOException( "Unexpected reply from " + this + ": " + reply );
+		}
+		version = in.readUTF();
+		sigma = in.readDouble();
+		alive = true;
+		lineListener.accept( "Connected to Spotiflow worker on " + this + "." );
+	}
+
+	@Override
+	public synchronized int predict( final String id, final Path input, final Path output ) throws IOException
+	{
+		return request( PREDICT, id, input, output, null );
+	}
+
+	@Override
+	public synchronized void heatmap( final String id, final Path input, final Path outputPrefix ) throws IOException
+	{
+		request( HEATMAP, id, input, null, outputPrefix.toString() );
+	}
+
+	private int request( final String verb, final String id, final Path input, final Path output, final String outputPrefix ) throws IOException
+	{
+		if ( !alive )
+			throw new IOException( "Spotiflow worker on " + this + " is not connected." );
+
+		final String fname = input.getFileName().toString();
+		final int dot = fname.lastIndexOf( '.' );
+		try
+		{
+			out.writeUTF( verb );
+			out.writeUTF( id );
+			out.writeUTF( ( dot < 0 ) ? "" : fname.substring( dot ) );
+			out.writeLong( Files.size( input ) );
+			try (InputStream is = Files.newInputStream( input ))
+			{
+				copy( is, out, Files.size( input ) );
+			}
+			out.flush();
+
+			final String reply = in.readUTF();
+			if ( reply.equals( ERROR ) )
+				throw new RemoteError( "Spotiflow worker on " + this + " failed on " + fname + ": " + in.readUTF() );
+			if ( !reply.equals( DONE ) )
+				throw new IOException( "Unexpected reply from " + this + ": " + reply );
+
+			final int nSpots = in.readInt();
+			final int nFiles = in.readInt();
+			for ( int i = 0; i < nFiles; i++ )
+			{
+				final String suffix = in.readUTF();
+				final long nBytes = in.readLong();
+				if ( !OUTPUT_SUFFIXES.contains( suffix ) )
+					throw new IOException( "Unexpected file from " + this + ": " + suffix );
+				final Path target = ( output != null ) ? output : Paths.get( outputPrefix + suffix );
+				try (OutputStream os = Files.newOutputStream( target ))
+				{
+					copy( in, os, nBytes );
+				}
+			}
+			return nSpots;
+		}
+		catch ( final RemoteError e )
+		{
+			throw e;
+		}
+		catch ( final IOException e )
+		{
+			// Anything but an error reported by the daemon breaks the stream.
+			destroy();
+			final String reason = ( e instanceof EOFException ) ? "connection closed" : e.getMessage();
+			throw new IOException( "Lost Spotiflow worker on " + this + ": " + reason, e );
+		}
+	}
+
+	@Override
+	public void setLineListener( final Consumer< String > lineListener )
+	{
+		this.lineListener = ( lineListener == null ) ? l -> {} : lineListener;
+	}
+
+	@Override
+	public String getVersion()
+	{
+		return version + " on " + this;
+	}
+
+	@Override
+	public double getSigma()
+	{
+		return sigma;
+	}
+
+	@Override
+	public boolean isAlive()
+	{
+		return alive;
+	}
+
+	/**
+	 * Closes the connection. The daemon stops the worker request in flight,
+	 * if any.
+	 */
+	@Override
+	public void destroy()
+	{
+		alive = false;
+		final Socket s = socket;
+		if ( s == null )
+			return;
+		try
+		{
+			s.close();
+		}
+		catch ( final IOException e )
+		{
+			// Already closed.
+		}
+	}
+
+	/**
+	 * Tells the daemon we are done, then closes the connection.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if ( alive )
+		{
+			try
+			{
+				out.writeUTF( QUIT );
+				out.flush();
+			}
+			catch ( final IOException e )
+			{
+				// Daemon is already gone.
+			}
+		}
+		destroy();
+	}
+
+	@Override
+	public String toString()
+	{
+		return host + ":" + port;
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Copies exactly the specified number of bytes from a stream to
+	 * another.
+	 *
+	 * @throws IOException
+	 *             if the input ends early.
+	 */
+	static void copy( final InputStream is, final OutputStream os, final long nBytes ) throws IOException
+	{
+		final byte[] buffer = new byte[ BUFFER_SIZE ];
+		long remaining = nBytes;
+		while ( remaining > 0 )
+		{
+			final int n = is.read( buffer, 0, ( int ) Math.min( buffer.length, remaining ) );
+			if ( n < 0 )
+				throw new IOException( "Connection closed, " + remaining + " bytes missing." );
+			os.write( buffer, 0, n );
+			remaining -= n;
+		}
+	}
+
+	/**
+	 * An error the daemon reported, after which the connection is still
+	 * usable.
+	 */
+	private static final class RemoteError extends IOException
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private RemoteError( final String message )
+		{
+			super( message );
+		}
+	}
+}
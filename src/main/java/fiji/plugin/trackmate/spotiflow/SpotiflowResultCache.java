@@ -0,0 +1,350 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A persistent, size-bounded cache of Spotiflow results, so that frames
+ * that were already detected with the same model and parameters are not
+ * sent to Spotiflow again.
+ * <p>
+ * Each entry is the CSV file Spotiflow wrote for one frame. Its key is a
+ * digest of:
+ * <ul>
+ * <li>a hash of the frame pixels and dimensions;</li>
+ * <li>the model identity: the pretrained model name, or a checksum of the
+ * files in the custom model folder;</li>
+ * <li>the command line built from the configurator, with the input and
+ * output folders replaced by placeholders.</li>
+ * </ul>
+ * When the cache grows beyond its maximal size, the least recently used
+ * entries are evicted. Entries are touched when they are read.
+ */
+public class SpotiflowResultCache
+{
+
+	private static final String EXTENSION = ".csv";
+
+	/** Checksums of custom model folders, keyed by path and modification time. */
+	private static final Map< String, String > MODEL_CHECKSUMS = new ConcurrentHashMap<>();
+
+	private final Path dir;
+
+	private final long maxBytes;
+
+	private final AtomicLong size;
+
+	/**
+	 * Opens a cache in the specified folder.
+	 *
+	 * @param dir
+	 *            the cache folder. Created if it does not exist.
+	 * @param maxBytes
+	 *            the size above which entries are evicted.
+	 * @throws IOException
+	 *             if the folder cannot be created or listed.
+	 */
+	public SpotiflowResultCache( final Path dir, final long maxBytes ) throws IOException
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories( dir );
+		long s = 0;
+		for ( final Path entry : entries() )
+			s += Files.size( entry );
+		this.size = new AtomicLong( s );
+	}
+
+	/**
+	 * Opens the cache configured in the preferences.
+	 *
+	 * @return the cache, or <code>null</code> if it is disabled.
+	 * @throws IOException
+	 *             if the cache folder cannot be used.
+	 */
+	public static SpotiflowResultCache fromPrefs() throws IOException
+	{
+		if ( !SpotiflowPrefs.useResultCache() )
+			return null;
+		return new SpotiflowResultCache(
+				Paths.get( SpotiflowPrefs.getResultCacheDir() ),
+				SpotiflowPrefs.getResultCacheSizeMB() * 1024L * 1024L );
+	}
+
+	/**
+	 * Returns the key of a frame.
+	 *
+	 * @param runKey
+	 *            the key of the model and parameters, from
+	 *            {@link #runKey(List)}.
+	 * @param frame
+	 *            the frame to hash.
+	 * @return the key, as a hexadecimal string.
+	 */
+	public static < T extends RealType< T > > String key( final String runKey, final RandomAccessibleInterval< T > frame )
+	{
+		final MessageDigest md = sha256();
+		md.update( runKey.getBytes( StandardCharsets.UTF_8 ) );
+		final StringBuilder sb = new StringBuilder();
+		for ( int d = 0; d < frame.numDimensions(); d++ )
+			sb.append( frame.dimension( d ) ).append( 'x' );
+		sb.append( Long.toHexString( hash( frame ) ) );
+		md.update( sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+		return hex( md.digest() );
+	}
+
+	/**
+	 * Returns the cached CSV file for the specified key, or
+	 * <code>null</code> if there is none. The entry is marked as recently
+	 * used.
+	 */
+	public Path lookup( final String key )
+	{
+		final Path entry = dir.resolve( key + EXTENSION );
+		if ( !Files.isRegularFile( entry ) )
+			return null;
+		try
+		{
+			Files.setLastModifiedTime( entry, FileTime.fromMillis( System.currentTimeMillis() ) );
+		}
+		catch ( final IOException e )
+		{
+			// Still usable, it just won't be seen as recent.
+		}
+		return entry;
+	}
+
+	/**
+	 * Stores a copy of the specified CSV file under the specified key, and
+	 * evicts old entries if the cache is too large. Errors are ignored: a
+	 * cache that cannot be written is just a cache that misses.
+	 */
+	public void store( final String key, final Path csv )
+	{
+		final Path entry = dir.resolve( key + EXTENSION );
+		try
+		{
+			final Path tmp = Files.createTempFile( dir, key, ".tmp" );
+			Files.copy( csv, tmp, StandardCopyOption.REPLACE_EXISTING );
+			final long entrySize = Files.size( tmp );
+			final long added;
+			synchronized ( this )
+			{
+				// An entry stored again replaces the previous one.
+				final long replaced = Files.exists( entry ) ? Files.size( entry ) : 0;
+				Files.move( tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+				added = entrySize - replaced;
+			}
+			if ( size.addAndGet( added ) > maxBytes )
+				evict();
+		}
+		catch ( final IOException e )
+		{
+			// Ignore.
+		}
+	}
+
+	/**
+	 * Removes an entry that could not be read, so that its frame is
+	 * predicted again. Errors are ignored.
+	 */
+	public void remove( final Path entry )
+	{
+		try
+		{
+			synchronized ( this )
+			{
+				final long entrySize = Files.size( entry );
+				if ( Files.deleteIfExists( entry ) )
+					size.addAndGet( -entrySize );
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Ignore.
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is below 90%
+	 * of its maximal size.
+	 */
+	private synchronized void evict() throws IOException
+	{
+		if ( size.get() <= maxBytes )
+			return;
+
+		final List< Path > entries = entries();
+		entries.sort( Comparator.comparingLong( p -> p.toFile().lastModified() ) );
+		long s = 0;
+		for ( final Path entry : entries )
+			s += Files.size( entry );
+
+		final long target = maxBytes - maxBytes / 10;
+		for ( final Path entry : entries )
+		{
+			if ( s <= target )
+				break;
+			final long entrySize = Files.size( entry );
+			if ( Files.deleteIfExists( entry ) )
+				s -= entrySize;
+		}
+		size.set( s );
+	}
+
+	private List< Path > entries() throws IOException
+	{
+		try (Stream< Path > list = Files.list( dir ))
+		{
+			return list
+					.filter( p -> p.getFileName().toString().endsWith( EXTENSION ) )
+					.collect( Collectors.toCollection( ArrayList::new ) );
+		}
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Returns the part of the key that identifies the model and the
+	 * parameters.
+	 *
+	 * @param command
+	 *            the command line built from the configurator, with
+	 *            placeholders for the input and output folders.
+	 * @return the run key.
+	 * @throws IOException
+	 *             if the custom model folder cannot be read.
+	 */
+	public static String runKey( final List< String > command ) throws IOException
+	{
+		final StringBuilder sb = new StringBuilder( String.join( "\u0000", command ) );
+		final int i = command.indexOf( "--model-dir" );
+		if ( i >= 0 && i + 1 < command.size() )
+			sb.append( "\u0000model:" ).append( modelChecksum( Paths.get( command.get( i + 1 ) ) ) );
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a checksum of the content of all the files in the specified
+	 * model folder. Checksums are cached for the session, as long as the
+	 * folder is not modified.
+	 */
+	static String modelChecksum( final Path folder ) throws IOException
+	{
+		final List< Path > files;
+		try (Stream< Path > walk = Files.walk( folder ))
+		{
+			files = walk.filter( Files::isRegularFile ).sorted().collect( Collectors.toList() );
+		}
+		long lastModified = 0;
+		for ( final Path file : files )
+			lastModified = Math.max( lastModified, file.toFile().lastModified() );
+
+		final String id = folder.toAbsolutePath() + "@" + lastModified + "#" + files.size();
+		final String cached = MODEL_CHECKSUMS.get( id );
+		if ( cached != null )
+			return cached;
+
+		final MessageDigest md = sha256();
+		final byte[] buffer = new byte[ 1 << 16 ];
+		for ( final Path file : files )
+		{
+			md.update( folder.relativize( file ).toString().getBytes( StandardCharsets.UTF_8 ) );
+			try (InputStream is = new DigestInputStream( Files.newInputStream( file ), md ))
+			{
+				while ( is.read( buffer ) >= 0 )
+				{}
+			}
+		}
+		final String checksum = hex( md.digest() );
+		MODEL_CHECKSUMS.put( id, checksum );
+		return checksum;
+	}
+
+	/**
+	 * A fast, non-cryptographic 64-bit hash of the pixel values of a frame.
+	 */
+	static < T extends RealType< T > > long hash( final RandomAccessibleInterval< T > frame )
+	{
+		long h = 0x9E3779B97F4A7C15L;
+		final Cursor< T > cursor = Views.flatIterable( frame ).cursor();
+		while ( cursor.hasNext() )
+		{
+			final long bits = Double.doubleToRawLongBits( cursor.next().getRealDouble() );
+			h = Long.rotateLeft( h ^ ( bits * 0xC2B2AE3D27D4EB4FL ), 31 ) * 0x9E3779B185EBCA87L;
+		}
+		// Final avalanche.
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static MessageDigest sha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// SHA-256 is mandatory in all Java platforms.
+			throw new IllegalStateException( e );
+		}
+	}
+
+	private static String hex( final byte[] bytes )
+	{
+		final StringBuilder sb = new StringBuilder( bytes.length * 2 );
+		for ( final byte b : bytes )
+			sb.append( String.format( "%02x", b ) );
+		return sb.toString();
+	}
+}
@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Watches the output folder of a running <code>spotiflow-predict</code>
+ * process and hands over each CSV file as soon as it is complete, so that
+ * results can be parsed while the process predicts the next frames.
+ * <p>
+ * <code>spotiflow-predict</code> writes its CSV files one after the other.
+ * A CSV file is considered complete when the next one appears. The last one
+ * is handed over when the watcher is closed with {@link #close(boolean)}
+ * after the process has exited successfully, along with any CSV file that
+ * was missed by the watch service. If the process failed or was killed, the
+ * last file may be truncated, so only the files known to be complete are
+ * handed over.
+ */
+public class SpotiflowResultWatcher implements AutoCloseable
+{
+
+	private final Path dir;
+
+	private final Consumer< Path > consumer;
+
+	private final WatchService watchService;
+
+	private final Thread thread;
+
+	private final Set< Path > handed = new HashSet<>();
+
+	private Path lastSeen;
+
+	private boolean closed;
+
+	/**
+	 * Starts watching the specified folder.
+	 *
+	 * @param dir
+	 *            the folder in which CSV files are written.
+	 * @param consumer
+	 *            receives each complete CSV file, once. Called from the
+	 *            watcher thread, and from the thread that closes the
+	 *            watcher.
+	 * @throws IOException
+	 *             if the folder cannot be watched.
+	 */
+	public SpotiflowResultWatcher( final Path dir, final Consumer< Path > consumer ) throws IOException
+	{
+		this.dir = dir;
+		this.consumer = consumer;
+		this.watchService = dir.getFileSystem().newWatchService();
+		dir.register( watchService, ENTRY_CREATE );
+		this.thread = new Thread( this::watch, "Spotiflow result watcher " + dir.getFileName() );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	private void watch()
+	{
+		try
+		{
+			while ( true )
+			{
+				final WatchKey key = watchService.take();
+				for ( final WatchEvent< ? > event : key.pollEvents() )
+				{
+					if ( event.kind() != ENTRY_CREATE )
+						continue;
+					final Path path = dir.resolve( ( Path ) event.context() );
+					if ( isCSV( path ) )
+						seen( path );
+				}
+				if ( !key.reset() )
+					return;
+			}
+		}
+		catch ( final InterruptedException | ClosedWatchServiceException e )
+		{
+			// Closed.
+		}
+	}
+
+	private synchronized void seen( final Path path )
+	{
+		if ( path.equals( lastSeen ) )
+			return;
+		if ( lastSeen != null )
+			hand( lastSeen );
+		lastSeen = path;
+	}
+
+	private synchronized void hand( final Path path )
+	{
+		if ( handed.add( path ) )
+			consumer.accept( path );
+	}
+
+	/**
+	 * Stops watching. Hands over the CSV files not handed over yet only if
+	 * {@link #close(boolean)} was not called before: closing without telling
+	 * that the process succeeded counts as a failure.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		close( false );
+	}
+
+	/**
+	 * Stops watching. Does nothing if the watcher is already closed.
+	 *
+	 * @param succeeded
+	 *            whether the process exited successfully. If
+	 *            <code>true</code>, all the CSV files not handed over yet
+	 *            are. If <code>false</code>, they are left in the folder,
+	 *            as the last one written may be incomplete.
+	 * @throws IOException
+	 *             if the folder cannot be listed.
+	 */
+	public void close( final boolean succeeded ) throws IOException
+	{
+		synchronized ( this )
+		{
+			if ( closed )
+				return;
+			closed = true;
+		}
+		watchService.close();
+		try
+		{
+			thread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		if ( !succeeded )
+			return;
+
+		final List< Path > remaining = new ArrayList<>();
+		try (DirectoryStream< Path > stream = Files.newDirectoryStream( dir, "*.{csv,CSV}" ))
+		{
+			stream.forEach( remaining::add );
+		}
+		Collections.sort( remaining );
+		remaining.forEach( this::hand );
+	}
+
+	private static boolean isCSV( final Path path )
+	{
+		return path.getFileName().toString().toLowerCase().endsWith( ".csv" );
+	}
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The log file of one detection run, in which the output lines of all the
+ * Spotiflow processes of the run are written, tagged with the ID of their
+ * task.
+ * <p>
+ * Each run writes to its own file in <code>~/.spotiflow/logs</code>. When
+ * the file grows beyond {@value #MAX_FILE_BYTES} bytes, it is moved to a
+ * backup file that replaces the previous one. Only the files of the
+ * {@value #MAX_RUNS} most recent runs are kept. Trace files of the runs,
+ * if any, are kept in the same folder with the same policy.
+ */
+public class SpotiflowRunLog implements Closeable
+{
+
+	private static final String PREFIX = "trackmate-spotiflow-";
+
+	private static final String EXTENSION = ".log";
+
+	private static final String BACKUP_EXTENSION = ".1.log";
+
+	private static final String TRACE_EXTENSION = ".trace.json";
+
+	static final long MAX_FILE_BYTES = 16L * 1024L * 1024L;
+
+	static final int MAX_RUNS = 20;
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern( "yyyyMMdd-HHmmss-SSS" );
+
+	/** A run log that does not write anything. */
+	private static final SpotiflowRunLog VOID = new SpotiflowRunLog( null );
+
+	private final Path file;
+
+	private BufferedWriter writer;
+
+	private long written;
+
+	private SpotiflowRunLog( final Path file )
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Opens the log file of a new run, if logging to files is enabled in
+	 * the preferences, and deletes the files of old runs.
+	 *
+	 * @return a new run log. If logging to files is disabled or the file
+	 *         cannot be created, it does not write anything.
+	 */
+	public static SpotiflowRunLog open()
+	{
+		if ( !SpotiflowPrefs.useLogFile() )
+			return VOID;
+		try
+		{
+			final Path dir = logDir();
+			deleteOldRuns( dir );
+			final SpotiflowRunLog log = new SpotiflowRunLog( dir.resolve( newName() + EXTENSION ) );
+			log.writer = Files.newBufferedWriter( log.file, StandardCharsets.UTF_8 );
+			return log;
+		}
+		catch ( final IOException e )
+		{
+			return VOID;
+		}
+	}
+
+	/**
+	 * Returns a new file in which to write the trace of a run, and deletes
+	 * the traces of old runs.
+	 *
+	 * @return the trace file, or <code>null</code> if the log folder cannot
+	 *         be used.
+	 */
+	public static Path newTraceFile()
+	{
+		try
+		{
+			final Path dir = logDir();
+			deleteOld( dir, TRACE_EXTENSION );
+			return dir.resolve( newName() + TRACE_EXTENSION );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the log file, or <code>null</code> if this run log does not
+	 * write anything.
+	 */
+	public Path getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Writes a line of a Spotiflow process.
+	 *
+	 * @param taskID
+	 *            the ID of the task that runs the process.
+	 * @param line
+	 *            the line, without line terminator.
+	 */
+	public synchronized void log( final int taskID, final String line )
+	{
+		if ( writer == null )
+			return;
+		try
+		{
+			final String tagged = "[task " + taskID + "] " + line;
+			writer.write( tagged );
+			writer.newLine();
+			written += tagged.length() + 1;
+			if ( written > MAX_FILE_BYTES )
+				rotate();
+		}
+		catch ( final IOException e )
+		{
+			// Stop logging to this file.
+			closeQuietly();
+		}
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		closeQuietly();
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private void rotate() throws IOException
+	{
+		writer.close();
+		final String name = file.getFileName().toString();
+		final Path backup = file.resolveSibling( name.substring( 0, name.length() - EXTENSION.length() ) + BACKUP_EXTENSION );
+		Files.move( file, backup, StandardCopyOption.REPLACE_EXISTING );
+		writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 );
+		written = 0;
+	}
+
+	private void closeQuietly()
+	{
+		if ( writer == null )
+			return;
+		try
+		{
+			writer.close();
+		}
+		catch ( final IOException e )
+		{
+			// Ignore.
+		}
+		writer = null;
+	}
+
+	private static Path logDir() throws IOException
+	{
+		final Path dir = Paths.get( System.getProperty( "user.home" ), ".spotiflow", "logs" );
+		Files.createDirectories( dir );
+		return dir;
+	}
+
+	/**
+	 * Returns a new file name without extension, made of the date and the
+	 * process ID, that sorts by date.
+	 */
+	private static String newName()
+	{
+		return PREFIX
+				+ LocalDateTime.now().format( TIMESTAMP )
+				+ "-" + ProcessHandle.current().pid();
+	}
+
+	/**
+	 * Deletes the log files of all runs but the most recent ones, leaving
+	 * room for a new one.
+	 */
+	private static void deleteOldRuns( final Path dir ) throws IOException
+	{
+		for ( final Path run : deleteOld( dir, EXTENSION ) )
+		{
+			final String name = run.getFileName().toString();
+			Files.deleteIfExists( run.resolveSibling( name.substring( 0, name.length() - EXTENSION.length() ) + BACKUP_EXTENSION ) );
+		}
+	}
+
+	/**
+	 * Deletes the files with the specified extension of all runs but the
+	 * most recent ones, leaving room for a new one.
+	 *
+	 * @return the deleted files.
+	 */
+	private static List< Path > deleteOld( final Path dir, final String extension ) throws IOException
+	{
+		final List< Path > runs;
+		try (Stream< Path > list = Files.list( dir ))
+		{
+			runs = list
+					.filter( p -> {
+						final String name = p.getFileName().toString();
+						return name.startsWith( PREFIX ) && name.endsWith( extension ) && !name.endsWith( BACKUP_EXTENSION );
+					} )
+					.sorted( Comparator.comparing( ( Path p ) -> p.getFileName().toString() ).reversed() )
+					.collect( Collectors.toList() );
+		}
+		final List< Path > deleted = new ArrayList<>();
+		for ( int i = MAX_RUNS - 1; i < runs.size(); i++ )
+		{
+			Files.deleteIfExists( runs.get( i ) );
+			deleted.add( runs.get( i ) );
+		}
+		return deleted;
+	}
+}
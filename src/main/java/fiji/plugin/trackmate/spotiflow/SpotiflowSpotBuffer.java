@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import net.imglib2.Interval;
+
+/**
+ * Accumulates the spots that concurrent tasks find in each frame, and
+ * assembles the final {@link SpotCollection} once all of them are in.
+ * <p>
+ * Spots are stored per frame as {@link SpotiflowSpots}, that is as
+ * primitive arrays, with their positions already shifted from the interval
+ * to the image. The spots of the collection are created once, in a single
+ * pass, with their time set.
+ */
+public class SpotiflowSpotBuffer
+{
+
+	private final Map< Integer, SpotiflowSpots > frames = new ConcurrentHashMap<>();
+
+	/** Offset of the interval in the image, in calibrated units. */
+	private final double[] offset = new double[ 3 ];
+
+	private final double frameInterval;
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param spatial
+	 *            the spatial interval the spots are found in. Their positions
+	 *            are relative to it.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @param frameInterval
+	 *            the time between frames.
+	 */
+	public SpotiflowSpotBuffer( final Interval spatial, final double[] calibration, final double frameInterval )
+	{
+		for ( int d = 0; d < spatial.numDimensions(); d++ )
+			offset[ d ] = spatial.min( d ) * calibration[ d ];
+		this.frameInterval = frameInterval;
+	}
+
+	/**
+	 * Adds the spots found in a frame, replacing the ones added before for
+	 * the same frame. Can be called concurrently.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param spots
+	 *            the spots, with positions relative to the interval. They
+	 *            are moved in place and kept.
+	 */
+	public void put( final int frame, final SpotiflowSpots spots )
+	{
+		spots.translate( offset );
+		frames.put( frame, spots );
+	}
+
+	/**
+	 * Returns the number of spots in the buffer.
+	 */
+	public int size()
+	{
+		int n = 0;
+		for ( final SpotiflowSpots f : frames.values() )
+			n += f.size();
+		return n;
+	}
+
+	/**
+	 * Creates the spots of the buffer in a new collection.
+	 */
+	public SpotCollection toSpotCollection()
+	{
+		final SpotCollection collection = new SpotCollection();
+		for ( final Map.Entry< Integer, SpotiflowSpots > entry : frames.entrySet() )
+		{
+			final int frame = entry.getKey();
+			final SpotiflowSpots f = entry.getValue();
+			final Double time = Double.valueOf( frame * frameInterval );
+			final int n = f.size();
+			final List< Spot > spots = new ArrayList<>( n );
+			for ( int i = 0; i < n; i++ )
+			{
+				final Spot spot = new Spot( f.x( i ), f.y( i ), f.z( i ), f.radius( i ), f.quality( i ) );
+				spot.putFeature( Spot.POSITION_T, time );
+				spots.add( spot );
+			}
+			// Also sets the frame of the spots.
+			collection.put( frame, spots );
+		}
+		return collection;
+	}
+}
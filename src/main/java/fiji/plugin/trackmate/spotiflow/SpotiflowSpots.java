@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * A growable list of spots, stored as parallel primitive arrays of their
+ * position, radius and quality.
+ * <p>
+ * The parsers and peak finders append their detections here, and the
+ * detector moves, filters and merges them without creating any
+ * {@link Spot}. The spots of the final collection are created once, by
+ * {@link SpotiflowSpotBuffer#toSpotCollection()}.
+ */
+public class SpotiflowSpots
+{
+
+	private double[] x;
+
+	private double[] y;
+
+	private double[] z;
+
+	private double[] radius;
+
+	private double[] quality;
+
+	private int size;
+
+	/**
+	 * Creates an empty list.
+	 */
+	public SpotiflowSpots()
+	{
+		this( 16 );
+	}
+
+	/**
+	 * Creates an empty list with the specified initial capacity.
+	 *
+	 * @param capacity
+	 *            the number of spots it can hold before growing.
+	 */
+	public SpotiflowSpots( final int capacity )
+	{
+		final int n = Math.max( 1, capacity );
+		this.x = new double[ n ];
+		this.y = new double[ n ];
+		this.z = new double[ n ];
+		this.radius = new double[ n ];
+		this.quality = new double[ n ];
+	}
+
+	/**
+	 * Appends a spot.
+	 */
+	public void add( final double x, final double y, final double z, final double radius, final double quality )
+	{
+		if ( size == this.quality.length )
+			grow( size + 1 );
+		this.x[ size ] = x;
+		this.y[ size ] = y;
+		this.z[ size ] = z;
+		this.radius[ size ] = radius;
+		this.quality[ size ] = quality;
+		size++;
+	}
+
+	/**
+	 * Appends the first spots of another list.
+	 *
+	 * @param other
+	 *            the list to copy from.
+	 * @param n
+	 *            the number of spots to copy, at most its size.
+	 */
+	public void addAll( final SpotiflowSpots other, final int n )
+	{
+		if ( size + n > quality.length )
+			grow( size + n );
+		System.arraycopy( other.x, 0, x, size, n );
+		System.arraycopy( other.y, 0, y, size, n );
+		System.arraycopy( other.z, 0, z, size, n );
+		System.arraycopy( other.radius, 0, radius, size, n );
+		System.arraycopy( other.quality, 0, quality, size, n );
+		size += n;
+	}
+
+	/**
+	 * Appends all the spots of another list.
+	 */
+	public void addAll( final SpotiflowSpots other )
+	{
+		addAll( other, other.size );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public double x( final int i )
+	{
+		return x[ i ];
+	}
+
+	public double y( final int i )
+	{
+		return y[ i ];
+	}
+
+	public double z( final int i )
+	{
+		return z[ i ];
+	}
+
+	/**
+	 * Returns the position of a spot along the specified dimension, 0 to 2.
+	 */
+	public double position( final int i, final int d )
+	{
+		switch ( d )
+		{
+		case 0:
+			return x[ i ];
+		case 1:
+			return y[ i ];
+		case 2:
+			return z[ i ];
+		default:
+			throw new IllegalArgumentException( "Unknown dimension: " + d );
+		}
+	}
+
+	public double radius( final int i )
+	{
+		return radius[ i ];
+	}
+
+	public double quality( final int i )
+	{
+		return quality[ i ];
+	}
+
+	/**
+	 * Moves all the spots by the specified offset, in place.
+	 *
+	 * @param offset
+	 *            the offset, X, Y and Z.
+	 */
+	public void translate( final double[] offset )
+	{
+		for ( int i = 0; i < size; i++ )
+		{
+			x[ i ] += offset[ 0 ];
+			y[ i ] += offset[ 1 ];
+			z[ i ] += offset[ 2 ];
+		}
+	}
+
+	/**
+	 * Sorts the spots by decreasing quality, in place. The sort is a
+	 * heapsort over the parallel arrays, so it allocates nothing and is
+	 * not stable.
+	 */
+	public void sortByDecreasingQuality()
+	{
+		// Min-heap on quality, so that the smallest end up last.
+		for ( int i = size / 2 - 1; i >= 0; i-- )
+			siftDown( i, size );
+		for ( int end = size - 1; end > 0; end-- )
+		{
+			swap( 0, end );
+			siftDown( 0, end );
+		}
+	}
+
+	/**
+	 * Creates a {@link Spot} for each spot of the list.
+	 *
+	 * @return a new list of new spots.
+	 */
+	public List< Spot > toSpots()
+	{
+		final List< Spot > spots = new ArrayList<>( size );
+		for ( int i = 0; i < size; i++ )
+			spots.add( new Spot( x[ i ], y[ i ], z[ i ], radius[ i ], quality[ i ] ) );
+		return spots;
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private void grow( final int minCapacity )
+	{
+		final int capacity = Math.max( minCapacity, 2 * quality.length );
+		x = Arrays.copyOf( x, capacity );
+		y = Arrays.copyOf( y, capacity );
+		z = Arrays.copyOf( z, capacity );
+		radius = Arrays.copyOf( radius, capacity );
+		quality = Arrays.copyOf( quality, capacity );
+	}
+
+	private void siftDown( int i, final int n )
+	{
+		while ( true )
+		{
+			final int left = 2 * i + 1;
+			if ( left >= n )
+				return;
+			int child = left;
+			if ( left + 1 < n && Double.compare( quality[ left + 1 ], quality[ left ] ) < 0 )
+				child = left + 1;
+			if ( Double.compare( quality[ child ], quality[ i ] ) >= 0 )
+				return;
+			swap( i, child );
+			i = child;
+		}
+	}
+
+	private void swap( final int i, final int j )
+	{
+		swap( x, i, j );
+		swap( y, i, j );
+		swap( z, i, j );
+		swap( radius, i, j );
+		swap( quality, i, j );
+	}
+
+	private static void swap( final double[] arr, final int i, final int j )
+	{
+		final double tmp = arr[ i ];
+		arr[ i ] = arr[ j ];
+		arr[ j ] = tmp;
+	}
+}
@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import fiji.plugin.trackmate.util.cli.CLIUtils;
+
+/**
+ * Manages the folder in which frames are exported and Spotiflow results
+ * are written.
+ * <p>
+ * All the folders of a session are created in one session folder, inside
+ * the staging directory set in {@link SpotiflowPrefs#getStagingDir()}. This
+ * can point to a RAM-backed file system such as <code>/dev/shm</code>.
+ * Files are meant to be deleted as soon as they are consumed. The session
+ * folder is deleted when the JVM exits, as a safety net.
+ * <p>
+ * Before writing, callers reserve the number of bytes they will write. The
+ * reservation waits while the file system does not have enough usable
+ * space, or while the total reserved would exceed the quota set in
+ * {@link SpotiflowPrefs#getStagingQuotaMB()}, for the other reservations
+ * to be released. It fails if there are none to wait for.
+ */
+public class SpotiflowStaging
+{
+
+	/**
+	 * Space we leave free on the file system in addition to reservations,
+	 * for the CSV files and for the other users of the file system.
+	 */
+	private static final long SAFETY_MARGIN = 64L * 1024 * 1024;
+
+	private static final Object lock = new Object();
+
+	/**
+	 * Bytes reserved in the staging area. Guarded by {@link #lock}.
+	 */
+	private static long reserved;
+
+	private static Path sessionDir;
+
+	private SpotiflowStaging()
+	{}
+
+	/**
+	 * Creates a new folder for one task in the session folder.
+	 *
+	 * @param prefix
+	 *            the prefix of the folder name.
+	 * @return the new folder.
+	 * @throws IOException
+	 *             if the folder cannot be created.
+	 */
+	public static Path createTaskDir( final String prefix ) throws IOException
+	{
+		return Files.createTempDirectory( sessionDir(), prefix );
+	}
+
+	/**
+	 * Reserves space for the specified number of bytes in the staging area.
+	 * If there is not enough space, or if the quota would be exceeded, waits
+	 * for other reservations to be released.
+	 *
+	 * @param dir
+	 *            a folder in the staging area.
+	 * @param nBytes
+	 *            the number of bytes about to be written.
+	 * @throws IOException
+	 *             if the bytes do not fit in the quota or in the usable
+	 *             space even with nothing else reserved. Nothing is reserved
+	 *             in that case.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting. Nothing is reserved in that
+	 *             case.
+	 */
+	public static void reserve( final Path dir, final long nBytes ) throws IOException, InterruptedException
+	{
+		final long quota = getQuota();
+		if ( quota > 0 && nBytes > quota )
+			throw new IOException( String.format( "Staging quota exceeded in %s: %d MB needed, quota is %d MB.",
+					dir, nBytes >> 20, quota >> 20 ) );
+
+		final FileStore store = Files.getFileStore( dir );
+		synchronized ( lock )
+		{
+			while ( true )
+			{
+				if ( quota <= 0 || reserved + nBytes <= quota )
+				{
+					final long usable = store.getUsableSpace();
+					if ( usable >= nBytes + SAFETY_MARGIN )
+					{
+						reserved += nBytes;
+						return;
+					}
+					// Nothing will be deleted that we could wait for.
+					if ( reserved == 0 )
+						throw new IOException( String.format( "Not enough space in %s: %d MB needed, %d MB available.",
+								dir, ( nBytes + SAFETY_MARGIN ) >> 20, usable >> 20 ) );
+				}
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Releases a reservation made with {@link #reserve(Path, long)}, and
+	 * wakes up the reservations waiting for it.
+	 */
+	public static void release( final long nBytes )
+	{
+		if ( nBytes == 0 )
+			return;
+		synchronized ( lock )
+		{
+			reserved -= nBytes;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that can still be reserved before the
+	 * quota is reached, or {@link Long#MAX_VALUE} if there is no quota.
+	 */
+	public static long getRemaining()
+	{
+		final long quota = getQuota();
+		if ( quota <= 0 )
+			return Long.MAX_VALUE;
+		synchronized ( lock )
+		{
+			return Math.max( 0, quota - reserved );
+		}
+	}
+
+	/**
+	 * Returns the staging quota in bytes, or 0 if there is none.
+	 */
+	public static long getQuota()
+	{
+		return Math.max( 0, SpotiflowPrefs.getStagingQuotaMB() ) * 1024L * 1024L;
+	}
+
+	/**
+	 * Deletes a file, or a folder and its content. Errors are ignored: what
+	 * cannot be deleted now will be on shutdown.
+	 */
+	public static void delete( final Path path )
+	{
+		if ( path == null || !Files.exists( path ) )
+			return;
+		try (Stream< Path > walk = Files.walk( path ))
+		{
+			walk.sorted( Comparator.reverseOrder() ).forEach( p -> {
+				try
+				{
+					Files.deleteIfExists( p );
+				}
+				catch ( final IOException e )
+				{
+					// Will be deleted on shutdown.
+				}
+			} );
+		}
+		catch ( final IOException e )
+		{
+			// Will be deleted on shutdown.
+		}
+	}
+
+	/**
+	 * Returns the session folder, creating it in the staging directory the
+	 * first time, or if the staging directory changed.
+	 */
+	static synchronized Path sessionDir() throws IOException
+	{
+		final Path root = getStagingRoot();
+		if ( sessionDir != null && sessionDir.getParent().equals( root ) && Files.isDirectory( sessionDir ) )
+			return sessionDir;
+
+		sessionDir = Files.createTempDirectory( root, "TrackMate-Spotiflow_" );
+		CLIUtils.recursiveDeleteOnShutdownHook( sessionDir );
+		return sessionDir;
+	}
+
+	private static Path getStagingRoot() throws IOException
+	{
+		final String pref = SpotiflowPrefs.getStagingDir();
+		final Path root = ( pref == null || pref.trim().isEmpty() )
+				? Paths.get( System.getProperty( "java.io.tmpdir" ) )
+				: Paths.get( pref.trim() );
+		if ( !Files.isDirectory( root ) || !Files.isWritable( root ) )
+			throw new IOException( "The Spotiflow staging directory does not exist or is not writable: " + root );
+		return root.toAbsolutePath();
+	}
+}
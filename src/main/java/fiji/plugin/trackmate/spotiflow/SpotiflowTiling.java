@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Static utilities to run Spotiflow on frames too large to be processed at
+ * once: 2D frames or 3D volumes are cut in overlapping tiles, and the spots
+ * found in the tiles are merged back, without the duplicates found in the
+ * overlaps.
+ * <p>
+ * The tile size is chosen from a memory budget, from a rough estimate of
+ * the memory Spotiflow uses per input pixel. Each tile overlaps its
+ * neighbors by twice a margin, so that spots close to a seam are seen far
+ * enough from the edges of at least one tile. Margins are set in
+ * calibrated units, so they span fewer Z slices than X and Y pixels in
+ * anisotropic volumes.
+ */
+public class SpotiflowTiling
+{
+
+	/**
+	 * Rough estimate of the peak memory Spotiflow uses per input pixel, in
+	 * bytes: the float32 input, the heatmaps and the stereographic flow at
+	 * several scales, and the network activations.
+	 */
+	static final long SPOTIFLOW_BYTES_PER_PIXEL = 64;
+
+	/** Tiles are never smaller than this along a dimension, in pixels. */
+	static final long MIN_TILE_SIZE = 64;
+
+	/** Tile sizes are multiples of this, to suit the network downsampling. */
+	static final long TILE_SIZE_MULTIPLE = 16;
+
+	/** Minimal margin of the tiles, in X and Y pixels. */
+	static final long MIN_MARGIN = 16;
+
+	private SpotiflowTiling()
+	{}
+
+	/**
+	 * Returns the size of the tiles that Spotiflow can process within the
+	 * specified memory budget. Dimensions shorter than their share of the
+	 * budget are not cut, and leave more to the others.
+	 *
+	 * @param memoryBudget
+	 *            the memory budget for one tile, in bytes.
+	 * @param spatial
+	 *            the spatial interval of the frames.
+	 * @return the tile size along each dimension, in pixels, or
+	 *         <code>null</code> for no tiling if the budget is not positive.
+	 */
+	public static long[] tileSizes( final long memoryBudget, final Interval spatial )
+	{
+		if ( memoryBudget <= 0 )
+			return null;
+
+		final int n = spatial.numDimensions();
+		final Integer[] order = new Integer[ n ];
+		for ( int d = 0; d < n; d++ )
+			order[ d ] = d;
+		Arrays.sort( order, Comparator.comparingLong( spatial::dimension ) );
+
+		// Shortest dimensions first.
+		final long[] sizes = new long[ n ];
+		double pixels = ( double ) memoryBudget / SPOTIFLOW_BYTES_PER_PIXEL;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int d = order[ i ];
+			final long length = spatial.dimension( d );
+			long size = ( long ) Math.pow( pixels, 1. / ( n - i ) );
+			if ( size >= length )
+			{
+				size = length;
+			}
+			else
+			{
+				size -= size % TILE_SIZE_MULTIPLE;
+				size = Math.min( length, Math.max( MIN_TILE_SIZE, size ) );
+			}
+			sizes[ d ] = size;
+			pixels /= size;
+		}
+		return sizes;
+	}
+
+	/**
+	 * Returns the margin of the tiles along each dimension, in pixels, for
+	 * the specified minimal distance between spots.
+	 *
+	 * @param minDistance
+	 *            the minimal distance between spots, in calibrated units.
+	 * @param calibration
+	 *            the spatial calibration.
+	 * @param n
+	 *            the number of spatial dimensions.
+	 * @return the margins, in pixels.
+	 */
+	public static long[] margins( final double minDistance, final double[] calibration, final int n )
+	{
+		final double margin = Math.max( 2. * minDistance, MIN_MARGIN * calibration[ 0 ] );
+		final long[] margins = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			margins[ d ] = Math.max( 1, ( long ) Math.ceil( margin / calibration[ d ] ) );
+		return margins;
+	}
+
+	/**
+	 * Cuts a frame in overlapping tiles.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param spatial
+	 *            the spatial interval of the frame, in image coordinates.
+	 * @param tileSizes
+	 *            the maximal size of the tiles along each dimension. If
+	 *            <code>null</code>, or if the frame is not larger, the frame
+	 *            is not cut.
+	 * @param margins
+	 *            the margin of the tiles along each dimension. Neighbor
+	 *            tiles overlap by twice the margin.
+	 * @return the tiles.
+	 */
+	public static List< FrameTile > tile( final long frame, final Interval spatial, final long[] tileSizes, final long[] margins )
+	{
+		final int n = spatial.numDimensions();
+		boolean fits = true;
+		for ( int d = 0; d < n && tileSizes != null; d++ )
+			fits &= spatial.dimension( d ) <= tileSizes[ d ];
+		if ( tileSizes == null || fits )
+			return List.of( new FrameTile( frame, spatial ) );
+
+		// Tiles and cores along each dimension.
+		final long[][] mins = new long[ n ][];
+		final long[][] maxs = new long[ n ][];
+		final long[][] coreMins = new long[ n ][];
+		final long[][] coreMaxs = new long[ n ][];
+		for ( int d = 0; d < n; d++ )
+		{
+			final long min = spatial.min( d );
+			final long max = spatial.max( d );
+			final long length = spatial.dimension( d );
+			final long margin = margins[ d ];
+			// Tiles must be larger than their overlaps.
+			final long size = Math.min( length, Math.max( tileSizes[ d ], 4 * margin ) );
+			final int nd = ( length <= size ) ? 1 : ( int ) Math.ceil( ( double ) ( length - 2 * margin ) / ( size - 2 * margin ) );
+			mins[ d ] = new long[ nd ];
+			maxs[ d ] = new long[ nd ];
+			coreMins[ d ] = new long[ nd ];
+			coreMaxs[ d ] = new long[ nd ];
+			for ( int i = 0; i < nd; i++ )
+			{
+				// Evenly spread, the overlaps are at least twice the margin.
+				mins[ d ][ i ] = ( nd == 1 ) ? min : min + Math.round( ( double ) i * ( length - size ) / ( nd - 1 ) );
+				maxs[ d ][ i ] = mins[ d ][ i ] + size - 1;
+			}
+			for ( int i = 0; i < nd; i++ )
+			{
+				// Seams are in the middle of the overlaps.
+				coreMins[ d ][ i ] = ( i == 0 ) ? min : coreMaxs[ d ][ i - 1 ] + 1;
+				coreMaxs[ d ][ i ] = ( i == nd - 1 ) ? max : ( mins[ d ][ i + 1 ] + maxs[ d ][ i ] ) / 2;
+			}
+		}
+
+		// Cartesian product.
+		int nTiles = 1;
+		for ( int d = 0; d < n; d++ )
+			nTiles *= mins[ d ].length;
+		final List< FrameTile > tiles = new ArrayList<>( nTiles );
+		final int[] pos = new int[ n ];
+		for ( int index = 0; index < nTiles; index++ )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			final long[] coreMin = new long[ n ];
+			final long[] coreMax = new long[ n ];
+			for ( int d = 0; d < n; d++ )
+			{
+				min[ d ] = mins[ d ][ pos[ d ] ];
+				max[ d ] = maxs[ d ][ pos[ d ] ];
+				coreMin[ d ] = coreMins[ d ][ pos[ d ] ];
+				coreMax[ d ] = coreMaxs[ d ][ pos[ d ] ];
+			}
+			tiles.add( new FrameTile( frame, index, nTiles, new FinalInterval( min, max ), new FinalInterval( coreMin, coreMax ) ) );
+
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( ++pos[ d ] < mins[ d ].length )
+					break;
+				pos[ d ] = 0;
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Moves the spots found in a tile to the coordinates of the interval
+	 * the detection runs on, and keeps the ones the tile owns: the spots in
+	 * its core, or closer to it than the specified slack.
+	 *
+	 * @param tile
+	 *            the tile.
+	 * @param spots
+	 *            the spots found in the tile, in calibrated units relative
+	 *            to the tile.
+	 * @param interval
+	 *            the interval the detection runs on.
+	 * @param calibration
+	 *            the spatial calibration.
+	 * @param slack
+	 *            the slack, in calibrated units.
+	 * @return the spots the tile owns, moved.
+	 */
+	public static SpotiflowSpots keepOwned( final FrameTile tile, final SpotiflowSpots spots, final Interval interval, final double[] calibration, final double slack )
+	{
+		final Interval ti = tile.getInterval();
+		final Interval core = tile.getCore();
+		final int n = ti.numDimensions();
+		final double[] shift = new double[ 3 ];
+		for ( int d = 0; d < n; d++ )
+			shift[ d ] = ( ti.min( d ) - interval.min( d ) ) * calibration[ d ];
+		final SpotiflowSpots owned = new SpotiflowSpots( spots.size() );
+		for ( int i = 0; i < spots.size(); i++ )
+		{
+			boolean inside = true;
+			for ( int d = 0; d < n && inside; d++ )
+			{
+				final double pixel = ti.min( d ) + spots.position( i, d ) / calibration[ d ];
+				final double slackPixels = slack / calibration[ d ];
+				inside = pixel >= core.min( d ) - 0.5 - slackPixels && pixel < core.max( d ) + 0.5 + slackPixels;
+			}
+			if ( !inside )
+				continue;
+			owned.add(
+					spots.x( i ) + shift[ 0 ],
+					spots.y( i ) + shift[ 1 ],
+					spots.z( i ) + shift[ 2 ],
+					spots.radius( i ),
+					spots.quality( i ) );
+		}
+		return owned;
+	}
+
+	/**
+	 * Removes the duplicate spots: spots closer than the specified radius
+	 * to a spot of higher quality. Spots are binned in a grid of cells of
+	 * the size of the radius, so that each spot is only compared to the
+	 * spots in the neighbor cells.
+	 *
+	 * @param spots
+	 *            the spots. They are sorted in place by decreasing quality.
+	 * @param radius
+	 *            the radius, in calibrated units.
+	 * @return the spots without duplicates, sorted by decreasing quality.
+	 */
+	public static SpotiflowSpots deduplicate( final SpotiflowSpots spots, final double radius )
+	{
+		spots.sortByDecreasingQuality();
+		if ( radius <= 0. )
+			return spots;
+
+		// Kept spots of each cell, chained by index.
+		final int size = spots.size();
+		final double r2 = radius * radius;
+		final Map< Long, Integer > grid = new HashMap<>();
+		final int[] next = new int[ size ];
+		final SpotiflowSpots kept = new SpotiflowSpots( size );
+		for ( int i = 0; i < size; i++ )
+		{
+			final double px = spots.x( i );
+			final double py = spots.y( i );
+			final double pz = spots.z( i );
+			final long cx = ( long ) Math.floor( px / radius );
+			final long cy = ( long ) Math.floor( py / radius );
+			final long cz = ( long ) Math.floor( pz / radius );
+			boolean duplicate = false;
+			search: for ( long x = cx - 1; x <= cx + 1; x++ )
+				for ( long y = cy - 1; y <= cy + 1; y++ )
+					for ( long z = cz - 1; z <= cz + 1; z++ )
+					{
+						final Integer head = grid.get( cell( x, y, z ) );
+						for ( int j = ( head == null ) ? -1 : head.intValue(); j >= 0; j = next[ j ] )
+						{
+							final double dx = px - spots.x( j );
+							final double dy = py - spots.y( j );
+							final double dz = pz - spots.z( j );
+							if ( dx * dx + dy * dy + dz * dz < r2 )
+							{
+								duplicate = true;
+								break search;
+							}
+						}
+					}
+			if ( duplicate )
+				continue;
+			kept.add( px, py, pz, spots.radius( i ), spots.quality( i ) );
+			final Integer head = grid.put( cell( cx, cy, cz ), Integer.valueOf( i ) );
+			next[ i ] = ( head == null ) ? -1 : head.intValue();
+		}
+		return kept;
+	}
+
+	/**
+	 * Packs cell coordinates in a key, 21 bits per dimension.
+	 */
+	private static long cell( final long x, final long y, final long z )
+	{
+		final long mask = ( 1L << 21 ) - 1;
+		return ( ( x & mask ) << 42 ) | ( ( y & mask ) << 21 ) | ( z & mask );
+	}
+}
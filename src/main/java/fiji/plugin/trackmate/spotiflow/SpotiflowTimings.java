@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records how long each stage of a detection run takes, per task and per
+ * frame, so that a slow run can be attributed to a stage.
+ * <p>
+ * Stages overlap: frames are exported and parsed while other frames are
+ * predicted, and tasks run concurrently. So the totals per stage are
+ * cumulative times, that can add up to more than the run time. The
+ * timeline of a run can be inspected by writing it as a trace file in the
+ * Chrome trace-event format, that can be opened in
+ * <code>chrome://tracing</code> or <a href="https://ui.perfetto.dev">
+ * Perfetto</a>.
+ */
+public class SpotiflowTimings
+{
+
+	/**
+	 * The stages of a detection run.
+	 */
+	public enum Stage
+	{
+		CACHE_LOOKUP( "Cache lookup" ),
+		FRAME_EXPORT( "Frame export" ),
+		PROCESS_STARTUP( "Process startup" ),
+		MODEL_LOADING( "Model loading" ),
+		INFERENCE( "Inference" ),
+		CSV_PARSING( "CSV parsing" ),
+		PEAK_FINDING( "Peak finding" ),
+		SPOT_ASSEMBLY( "Spot assembly" );
+
+		private final String name;
+
+		private Stage( final String name )
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * The time spent in a stage by a task, possibly on a single frame.
+	 */
+	public static final class Span
+	{
+
+		private final Stage stage;
+
+		private final int taskID;
+
+		private final long frame;
+
+		private final long start;
+
+		private final long duration;
+
+		private Span( final Stage stage, final int taskID, final long frame, final long start, final long duration )
+		{
+			this.stage = stage;
+			this.taskID = taskID;
+			this.frame = frame;
+			this.start = start;
+			this.duration = duration;
+		}
+
+		public Stage getStage()
+		{
+			return stage;
+		}
+
+		/**
+		 * Returns the ID of the task, or 0 for the stages that run before
+		 * or after the tasks.
+		 */
+		public int getTaskID()
+		{
+			return taskID;
+		}
+
+		/**
+		 * Returns the frame, or -1 if the span covers several frames.
+		 */
+		public long getFrame()
+		{
+			return frame;
+		}
+
+		/**
+		 * Returns the start of the span, in ns from the start of the run.
+		 */
+		public long getStart()
+		{
+			return start;
+		}
+
+		/**
+		 * Returns the duration of the span, in ns.
+		 */
+		public long getDuration()
+		{
+			return duration;
+		}
+	}
+
+	private final long origin = System.nanoTime();
+
+	private final Queue< Span > spans = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Records a span.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @param taskID
+	 *            the task ID, or 0 outside of the tasks.
+	 * @param frame
+	 *            the frame, or -1 if the span covers several frames.
+	 * @param start
+	 *            the start of the span, from {@link System#nanoTime()}.
+	 * @param end
+	 *            the end of the span, from {@link System#nanoTime()}.
+	 */
+	public void add( final Stage stage, final int taskID, final long frame, final long start, final long end )
+	{
+		spans.add( new Span( stage, taskID, frame, start - origin, end - start ) );
+	}
+
+	/**
+	 * Records a span that ends now.
+	 */
+	public void add( final Stage stage, final int taskID, final long frame, final long start )
+	{
+		add( stage, taskID, frame, start, System.nanoTime() );
+	}
+
+	/**
+	 * Returns all the spans recorded, sorted by start.
+	 */
+	public List< Span > getSpans()
+	{
+		final List< Span > list = new ArrayList<>( spans );
+		list.sort( Comparator.comparingLong( Span::getStart ) );
+		return list;
+	}
+
+	/**
+	 * Returns the cumulative time spent in each stage, in ms. Stages that
+	 * did not run are absent.
+	 */
+	public Map< Stage, Double > getTotals()
+	{
+		final Map< Stage, Double > totals = new EnumMap<>( Stage.class );
+		for ( final Span span : spans )
+			totals.merge( span.stage, span.duration / 1e6, Double::sum );
+		return totals;
+	}
+
+	/**
+	 * Returns a human-readable breakdown of the cumulative time per stage.
+	 */
+	public String summary()
+	{
+		final StringBuilder str = new StringBuilder( "Cumulative time per stage:\n" );
+		for ( final Map.Entry< Stage, Double > entry : getTotals().entrySet() )
+			str.append( String.format( Locale.US, "  - %-16s %10.1f ms\n", entry.getKey(), entry.getValue() ) );
+		return str.toString();
+	}
+
+	/**
+	 * Writes the spans as a trace file in the Chrome trace-event format.
+	 * Each task is shown as a thread.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void writeChromeTrace( final Path file ) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 ))
+		{
+			writer.write( "{\"traceEvents\":[\n" );
+			boolean first = true;
+			for ( final Span span : getSpans() )
+			{
+				if ( !first )
+					writer.write( ",\n" );
+				first = false;
+				writer.write( String.format( Locale.US,
+						"{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":1,\"tid\":%d,\"args\":{\"frame\":%d}}",
+						span.stage, span.stage.name(), span.start / 1e3, span.duration / 1e3, span.taskID, span.frame ) );
+			}
+			writer.write( "\n],\"displayTimeUnit\":\"ms\"}\n" );
+		}
+	}
+}
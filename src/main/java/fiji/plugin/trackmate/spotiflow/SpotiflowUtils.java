@@ -24,18 +24,20 @@ package fiji.plugin.trackmate.spotiflow;
 import static fiji.plugin.trackmate.gui.GuiUtils.getResource;
 import static fiji.plugin.trackmate.gui.GuiUtils.scaleImage;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import javax.swing.ImageIcon;
 
-import com.opencsv.CSVReaderHeaderAware;
-import com.opencsv.exceptions.CsvValidationException;
-
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Spot;
 
@@ -64,42 +66,97 @@ public class SpotiflowUtils
 
 	public static List< Spot > readCSV( final File csvFile, final double[] calibration, final Logger logger )
 	{
-		// FWHM to sigma ratio.
-		final double fwhmRatio = 2. * Math.sqrt( 2. * Math.log( 2. ) );
-		final ArrayList< Spot > spots = new ArrayList< Spot >();
-		try (CSVReaderHeaderAware reader = new CSVReaderHeaderAware( new FileReader( csvFile ) ))
+		try
+		{
+			return new SpotiflowCSVParser( calibration ).read( csvFile.toPath() ).toSpots();
+		}
+		catch ( final IOException | RuntimeException e )
 		{
-			Map< String, String > values;
-			while ( ( values = reader.readMap() ) != null )
+			logger.error( "Problem reading CSV file " + csvFile.getAbsolutePath() + "\n" + e.getMessage() + '\n' );
+			e.printStackTrace();
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Reads the lines of a process output stream on a virtual thread, and
+	 * passes them to the specified handler as soon as they are written.
+	 * Lines are terminated by a line feed or a carriage return, so that
+	 * progress bars that rewrite their line are seen at each update. Empty
+	 * lines are skipped.
+	 *
+	 * @param stream
+	 *            the stream to read, closed when it ends.
+	 * @param name
+	 *            the name of the reading thread.
+	 * @param lineHandler
+	 *            the handler, called from the reading thread.
+	 * @return the reading thread, that ends with the stream.
+	 */
+	public static Thread pumpLines( final InputStream stream, final String name, final Consumer< String > lineHandler )
+	{
+		return Thread.ofVirtual().name( name ).start( () -> {
+			try (BufferedReader reader = new BufferedReader( new InputStreamReader( stream, StandardCharsets.UTF_8 ) ))
 			{
-				final double x = Double.parseDouble( values.get( "x" ) );
-				final double y = Double.parseDouble( values.get( "y" ) );
-				final double quality = Double.parseDouble( values.get( "probability" ) );
-				final String zStr = values.get( "z" );
-				final double z = zStr == null ? 0. : Double.parseDouble( zStr );
-				// Gaussian sigma to particle radius.
-				final double dimRatio = zStr == null ? Math.sqrt( 2. ) : Math.sqrt( 3. );
-				// Radius
-				final double r;
-				final String fwhmStr = values.get( "fwhm" );
-				if ( fwhmStr == null )
+				String line;
+				while ( ( line = reader.readLine() ) != null )
 				{
-					r = 0.5 * calibration[ 0 ];
+					if ( !line.isEmpty() )
+						lineHandler.accept( line );
 				}
-				else
-				{
-					final double fwhm = Double.parseDouble( fwhmStr );
-					r = fwhm / fwhmRatio * dimRatio * calibration[ 0 ];
-				}
-				final Spot spot = new Spot( x * calibration[ 0 ], y * calibration[ 1 ], z * calibration[ 2 ], r, quality );
-				spots.add( spot );
 			}
+			catch ( final IOException e )
+			{
+				// Process closed its stream.
+			}
+		} );
+	}
+
+	/**
+	 * Returns whether ONNX Runtime is on the class path. It is an optional
+	 * dependency, that is not shipped with the plugin.
+	 */
+	public static boolean isOnnxRuntimeAvailable()
+	{
+		try
+		{
+			Class.forName( "ai.onnxruntime.OrtEnvironment", false, SpotiflowUtils.class.getClassLoader() );
+			return true;
 		}
-		catch ( CsvValidationException | IOException e )
+		catch ( final ClassNotFoundException | LinkageError e )
 		{
-			logger.error( "Problem reading CSV file " + csvFile.getAbsolutePath() + "\n" + e.getMessage() + '\n' );
-			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Terminates a process and all its descendants, for instance the Python
+	 * interpreter started by a conda wrapper, that would otherwise survive
+	 * its parent. They are asked to exit, then killed if they are still
+	 * alive after the grace period. Does not wait.
+	 *
+	 * @param process
+	 *            the process to terminate.
+	 * @param gracePeriod
+	 *            the time the processes get to exit, in ms, or 0 to kill
+	 *            them right away.
+	 */
+	public static void destroyTree( final ProcessHandle process, final long gracePeriod )
+	{
+		// Listed now: once the parent is gone, its children are reparented.
+		final List< ProcessHandle > tree = new ArrayList<>();
+		process.descendants().forEach( tree::add );
+		tree.add( process );
+		if ( gracePeriod <= 0 )
+		{
+			tree.forEach( ProcessHandle::destroyForcibly );
+			return;
 		}
-		return spots;
+		tree.forEach( ProcessHandle::destroy );
+		CompletableFuture.delayedExecutor( gracePeriod, TimeUnit.MILLISECONDS ).execute( () -> {
+			for ( final ProcessHandle p : tree )
+				if ( p.isAlive() )
+					p.destroyForcibly();
+		} );
 	}
 }
@@ -0,0 +1,428 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import fiji.plugin.trackmate.util.cli.CLIUtils;
+
+/**
+ * A long-lived Spotiflow process that loads its model once, then predicts
+ * frames on request.
+ * <p>
+ * The Java side and the Python side talk through a line-based,
+ * tab-separated protocol on the standard input and output of the process:
+ *
+ * <pre>
+ * worker -&gt; READY    version  sigma
+ * java   -&gt; PREDICT  id  input-path  output-csv-path
+ * java   -&gt; HEATMAP  id  input-path  output-prefix
+ * worker -&gt; DONE     id  n-spots
+ * worker -&gt; ERROR    id  message
+ * java   -&gt; QUIT
+ * </pre>
+ *
+ * A <code>HEATMAP</code> request writes the raw outputs of the network
+ * instead of spots: the probability heatmap in
+ * <code>output-prefix.heatmap.npy</code> and, if the model has one, the
+ * stereographic flow in <code>output-prefix.flow.npy</code>. The
+ * <code>sigma</code> of the flow is announced when the worker is ready.
+ *
+ * Lines on the standard output that are not part of the protocol, and
+ * everything written on the standard error, are forwarded to the line
+ * listener.
+ */
+public class SpotiflowWorker implements SpotiflowBackend
+{
+
+	private static final String SCRIPT_RESOURCE = "/scripts/spotiflow_worker.py";
+
+	private static Path script;
+
+	private final List< String > command;
+
+	private Process process;
+
+	private BufferedWriter toWorker;
+
+	private BufferedReader fromWorker;
+
+	private String version;
+
+	private double sigma = 1.;
+
+	private volatile Consumer< String > lineListener = l -> {};
+
+	public SpotiflowWorker( final List< String > command )
+	{
+		this.command = Collections.unmodifiableList( new ArrayList<>( command ) );
+	}
+
+	/**
+	 * Starts the worker process and blocks until it has loaded its model.
+	 *
+	 * @throws IOException
+	 *             if the process cannot be started, or if it exits before
+	 *             being ready.
+	 */
+	public synchronized void start() throws IOException
+	{
+		process = SpotiflowEnvironment.processBuilder( command ).start();
+		toWorker = new BufferedWriter( new OutputStreamWriter( process.getOutputStream(), StandardCharsets.UTF_8 ) );
+		fromWorker = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) );
+		pump( process.getErrorStream() );
+
+		String line;
+		while ( ( line = fromWorker.readLine() ) != null )
+		{
+			if ( line.startsWith( "READY" ) )
+			{
+				final String[] tokens = line.split( "\t" );
+				version = tokens.length > 1 ? tokens[ 1 ] : "unknown";
+				if ( tokens.length > 2 )
+				{
+					try
+					{
+						sigma = Double.parseDouble( tokens[ 2 ] );
+					}
+					catch ( final NumberFormatException e )
+					{}
+				}
+				return;
+			}
+			lineListener.accept( line );
+		}
+		final int exitValue = waitForExit();
+		throw new IOException( "Spotiflow worker exited before being ready (exit value " + exitValue + ")." );
+	}
+
+	/**
+	 * Asks the worker to detect spots in the specified image and to write
+	 * them as a CSV file.
+	 *
+	 * @param id
+	 *            an identifier for the request, echoed by the worker.
+	 * @param input
+	 *            the image file to process.
+	 * @param output
+	 *            the CSV file to write.
+	 * @return the number of spots detected.
+	 * @throws IOException
+	 *             if the worker reports an error or dies.
+	 */
+	@Override
+	public synchronized int predict( final String id, final Path input, final Path output ) throws IOException
+	{
+		return request( "PREDICT", id, input, output.toString() );
+	}
+
+	/**
+	 * Asks the worker to run the network on the specified image and to
+	 * write its raw outputs, that can be read with
+	 * {@link SpotiflowHeatmap#read(Path, Path, double)}.
+	 *
+	 * @param id
+	 *            an identifier for the request, echoed by the worker.
+	 * @param input
+	 *            the image file to process.
+	 * @param outputPrefix
+	 *            the path of the files to write, without their
+	 *            <code>.heatmap.npy</code> and <code>.flow.npy</code>
+	 *            suffixes.
+	 * @throws IOException
+	 *             if the worker reports an error or dies.
+	 */
+	@Override
+	public synchronized void heatmap( final String id, final Path input, final Path outputPrefix ) throws IOException
+	{
+		request( "HEATMAP", id, input, outputPrefix.toString() );
+	}
+
+	private int request( final String verb, final String id, final Path input, final String output ) throws IOException
+	{
+		if ( process == null || !process.isAlive() )
+			throw new IOException( "Spotiflow worker is not running." );
+
+		toWorker.write( verb + '\t' + id + '\t' + input + '\t' + output + '\n' );
+		toWorker.flush();
+
+		String line;
+		while ( ( line = fromWorker.readLine() ) != null )
+		{
+			final String[] tokens = line.split( "\t", 3 );
+			if ( tokens.length > 1 && tokens[ 1 ].equals( id ) )
+			{
+				if ( tokens[ 0 ].equals( "DONE" ) )
+					return spotCount( tokens, input );
+				if ( tokens[ 0 ].equals( "ERROR" ) )
+					throw new IOException( "Spotiflow worker failed on " + input.getFileName() + ": "
+							+ ( tokens.length > 2 ? tokens[ 2 ] : "unknown error" ) );
+			}
+			lineListener.accept( line );
+		}
+		final int exitValue = waitForExit();
+		throw new IOException( "Spotiflow worker exited unexpectedly (exit value " + exitValue + ")." );
+	}
+
+	/**
+	 * Sets the listener that receives the log output of the worker.
+	 */
+	@Override
+	public void setLineListener( final Consumer< String > lineListener )
+	{
+		this.lineListener = ( lineListener == null ) ? l -> {} : lineListener;
+	}
+
+	public List< String > getCommand()
+	{
+		return command;
+	}
+
+	/**
+	 * Returns the scale of the flow of the model, in pixels.
+	 */
+	@Override
+	public double getSigma()
+	{
+		return sigma;
+	}
+
+	/**
+	 * Returns the Spotiflow version reported by the worker, or
+	 * <code>null</code> if it is not started yet.
+	 */
+	@Override
+	public String getVersion()
+	{
+		return version;
+	}
+
+	@Override
+	public boolean isAlive()
+	{
+		return process != null && process.isAlive();
+	}
+
+	/**
+	 * Kills the worker process, and the processes it started, without
+	 * waiting for it to finish its current request.
+	 */
+	@Override
+	public void destroy()
+	{
+		final Process p = process;
+		if ( p != null )
+			SpotiflowUtils.destroyTree( p.toHandle(), 0 );
+	}
+
+	/**
+	 * Asks the worker to quit, and kills it if it does not comply quickly.
+	 */
+	@Override
+	public void close()
+	{
+		final Process p = process;
+		if ( p == null )
+			return;
+		try
+		{
+			if ( p.isAlive() )
+			{
+				toWorker.write( "QUIT\n" );
+				toWorker.flush();
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Worker is already gone.
+		}
+		try
+		{
+			if ( !p.waitFor( 2, TimeUnit.SECONDS ) )
+				destroy();
+		}
+		catch ( final InterruptedException e )
+		{
+			destroy();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int waitForExit()
+	{
+		try
+		{
+			return process.waitFor();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+
+	private void pump( final InputStream stream )
+	{
+		SpotiflowUtils.pumpLines( stream, "Spotiflow worker log", line -> lineListener.accept( line ) );
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	/**
+	 * Reads the number of spots of a DONE reply. A reply we cannot read is
+	 * an error of the worker, reported like the others.
+	 */
+	private static int spotCount( final String[] tokens, final Path input ) throws IOException
+	{
+		if ( tokens.length < 3 )
+			return -1;
+		try
+		{
+			return Integer.parseInt( tokens[ 2 ].trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( "Spotiflow worker gave a malformed reply for " + input.getFileName() + ": DONE " + tokens[ 2 ], e );
+		}
+	}
+
+	/**
+	 * Builds the command that starts a worker from a
+	 * <code>spotiflow-predict</code> command line built from a CLI. The
+	 * Python interpreter of the environment is resolved once, see
+	 * {@link SpotiflowEnvironment}, and runs the worker script without
+	 * activating the environment. The arguments are those of the command
+	 * line, so that the worker uses the same model and parameters as
+	 * <code>spotiflow-predict</code> would.
+	 *
+	 * @param tokens
+	 *            the command line.
+	 * @param executable
+	 *            the name of the executable of the CLI.
+	 * @return the command, as a new list.
+	 * @throws IOException
+	 *             if the worker script cannot be extracted, if the
+	 *             executable cannot be found in the command, or if the
+	 *             environment cannot be resolved.
+	 */
+	static List< String > buildCommand( final List< String > tokens, final String executable ) throws IOException
+	{
+		final int i = indexOfExecutable( tokens, executable );
+		return SpotiflowEnvironment.of( tokens, executable )
+				.scriptCommand( getScript(), tokens.subList( i + 1, tokens.size() ) );
+	}
+
+	/**
+	 * Returns the arguments a worker gets from a
+	 * <code>spotiflow-predict</code> command line built from a CLI, that
+	 * is the tokens that follow the worker script in the command of
+	 * {@link #buildCommand(List, String)}. They are what remote workers are
+	 * started with.
+	 *
+	 * @throws IOException
+	 *             if the executable cannot be found in the command.
+	 */
+	static List< String > buildArguments( final List< String > tokens, final String executable ) throws IOException
+	{
+		final int i = indexOfExecutable( tokens, executable );
+		return new ArrayList<>( tokens.subList( i + 1, tokens.size() ) );
+	}
+
+	/**
+	 * Returns the index of the executable in a command line built from a
+	 * CLI. It may be given as a path, and follows the tokens that activate
+	 * its environment.
+	 *
+	 * @throws IOException
+	 *             if the command does not contain the executable.
+	 */
+	static int indexOfExecutable( final List< String > tokens, final String executable ) throws IOException
+	{
+		for ( int i = 0; i < tokens.size(); i++ )
+		{
+			final String token = tokens.get( i );
+			final String name = token.substring( Math.max( token.lastIndexOf( '/' ), token.lastIndexOf( '\\' ) ) + 1 );
+			if ( name.equals( executable ) || name.equals( executable + ".exe" ) )
+				return i;
+		}
+		throw new IOException( "Could not find " + executable + " in the command " + tokens );
+	}
+
+	/**
+	 * Returns the Python interpreter that lives in the same environment as
+	 * the specified executable. If the executable is not given as a path,
+	 * we rely on the environment being activated in the command.
+	 */
+	static String pythonNextTo( final String executable )
+	{
+		final Path path = Paths.get( executable );
+		if ( !path.isAbsolute() )
+			return "python";
+
+		Path dir = path.getParent();
+		final boolean windows = executable.toLowerCase().endsWith( ".exe" ) || File.separatorChar == '\\';
+		// On Windows, entry points live in the 'Scripts' folder of the env.
+		if ( windows && dir.getFileName() != null && dir.getFileName().toString().equalsIgnoreCase( "Scripts" ) )
+			dir = dir.getParent();
+		return dir.resolve( windows ? "python.exe" : "python" ).toString();
+	}
+
+	/**
+	 * Extracts the worker script from the resources to a temporary file, once
+	 * per session.
+	 */
+	static synchronized Path getScript() throws IOException
+	{
+		if ( script != null && Files.exists( script ) )
+			return script;
+
+		final Path dir = Files.createTempDirectory( "TrackMate-Spotiflow-worker_" );
+		CLIUtils.recursiveDeleteOnShutdownHook( dir );
+		final Path target = dir.resolve( "spotiflow_worker.py" );
+		try (InputStream is = SpotiflowWorker.class.getResourceAsStream( SCRIPT_RESOURCE ))
+		{
+			if ( is == null )
+				throw new IOException( "Could not find the worker script in resources: " + SCRIPT_RESOURCE );
+			Files.copy( is, target, StandardCopyOption.REPLACE_EXISTING );
+		}
+		script = target;
+		return script;
+	}
+}
@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves Spotiflow workers over TCP to {@link SpotiflowRemoteWorker}s, so
+ * that a detection can spread its frames over several machines.
+ * <p>
+ * Each connection gets its own worker, started with the arguments the
+ * client sends and kept in the {@link SpotiflowWorkerPool} between
+ * connections, so that the model is loaded once per daemon. Frames are
+ * written in the staging area of the daemon, predicted, and the results
+ * sent back.
+ * <p>
+ * Run from the command line:
+ *
+ * <pre>
+ * java -cp ... fiji.plugin.trackmate.spotiflow.SpotiflowWorkerDaemon \
+ *     [--port 7654] [--bind 127.0.0.1] [--python python] [-- launcher...]
+ * </pre>
+ *
+ * The daemon listens on the loopback interface unless another address is
+ * given, for instance <code>0.0.0.0</code> to serve other machines. It has
+ * no authentication, and must only be exposed on trusted networks. Workers
+ * are started with the specified Python interpreter running the worker
+ * script, or with the tokens given after <code>--</code>.
+ */
+public class SpotiflowWorkerDaemon implements AutoCloseable
+{
+
+	private final ServerSocket server;
+
+	private final List< String > launcher;
+
+	private final Path dir;
+
+	private final AtomicInteger nConnections = new AtomicInteger();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a daemon listening on the specified address.
+	 *
+	 * @param bind
+	 *            the address to listen on.
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @param launcher
+	 *            the tokens that start a worker, to which the arguments of
+	 *            the client are appended.
+	 * @throws IOException
+	 *             if the port cannot be opened.
+	 */
+	public SpotiflowWorkerDaemon( final InetAddress bind, final int port, final List< String > launcher ) throws IOException
+	{
+		this.launcher = Collections.unmodifiableList( new ArrayList<>( launcher ) );
+		this.dir = SpotiflowStaging.createTaskDir( "TrackMate-Spotiflow-daemon_" );
+		this.server = new ServerSocket();
+		server.bind( new InetSocketAddress( bind, port ) );
+	}
+
+	/**
+	 * Accepts connections in a background thread.
+	 */
+	public void start()
+	{
+		final Thread acceptor = new Thread( this::accept, "Spotiflow daemon on port " + getPort() );
+		acceptor.setDaemon( true );
+		acceptor.start();
+	}
+
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections. Connections in progress are served until
+	 * their client quits.
+	 */
+	@Override
+	public void close()
+	{
+		running = false;
+		try
+		{
+			server.close();
+		}
+		catch ( final IOException e )
+		{
+			// Already closed.
+		}
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private void accept()
+	{
+		while ( running )
+		{
+			try
+			{
+				final Socket socket = server.accept();
+				final int id = nConnections.incrementAndGet();
+				final Thread thread = new Thread( () -> serve( socket, id ), "Spotiflow daemon connection " + id );
+				thread.setDaemon( true );
+				thread.start();
+			}
+			catch ( final IOException e )
+			{
+				if ( running )
+					System.err.println( "Spotiflow daemon could not accept a connection: " + e.getMessage() );
+			}
+		}
+	}
+
+	private void serve( final Socket socket, final int connectionID )
+	{
+		final String client = socket.getRemoteSocketAddress().toString();
+		SpotiflowWorker worker = null;
+		try (Socket s = socket)
+		{
+			socket.setTcpNoDelay( true );
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream(), 1 << 16 ) );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(), 1 << 16 ) );
+
+			if ( !SpotiflowRemoteWorker.HELLO.equals( in.readUTF() ) )
+				return;
+			final int nArgs = in.readInt();
+			final List< String > command = new ArrayList<>( launcher );
+			for ( int i = 0; i < nArgs; i++ )
+				command.add( in.readUTF() );
+
+			try
+			{
+				worker = SpotiflowWorkerPool.acquire( command );
+			}
+			catch ( final IOException e )
+			{
+				out.writeUTF( SpotiflowRemoteWorker.ERROR );
+				out.writeUTF( String.valueOf( e.getMessage() ) );
+				out.flush();
+				return;
+			}
+			worker.setLineListener( line -> System.err.println( "[" + client + "] " + line ) );
+			out.writeUTF( SpotiflowRemoteWorker.READY );
+			out.writeUTF( String.valueOf( worker.getVersion() ) );
+			out.writeDouble( worker.getSigma() );
+			out.flush();
+			System.err.println( "Serving " + client + " with " + command );
+
+			int nRequests = 0;
+			while ( true )
+			{
+				final String verb = in.readUTF();
+				if ( verb.equals( SpotiflowRemoteWorker.QUIT ) )
+					break;
+				in.readUTF(); // The id of the client, not needed here.
+				final String extension = in.readUTF();
+				final long nBytes = in.readLong();
+				if ( !extension.equals( ".npy" ) && !extension.equals( ".tif" ) )
+					throw new IOException( "Unexpected input extension: " + extension );
+
+				// Our own names, so that clients cannot choose paths.
+				final String name = "connection-" + connectionID + "-" + ( nRequests++ );
+				final Path input = dir.resolve( name + extension );
+				try (OutputStream os = Files.newOutputStream( input ))
+				{
+					SpotiflowRemoteWorker.copy( in, os, nBytes );
+				}
+
+				final List< Path > outputs = new ArrayList<>();
+				final List< String > suffixes = new ArrayList<>();
+				int nSpots;
+				try
+				{
+					if ( verb.equals( SpotiflowRemoteWorker.PREDICT ) )
+					{
+						nSpots = worker.predict( name, input, dir.resolve( name + ".csv" ) );
+						suffixes.add( ".csv" );
+					}
+					else if ( verb.equals( SpotiflowRemoteWorker.HEATMAP ) )
+					{
+						worker.heatmap( name, input, dir.resolve( name ) );
+						nSpots = -1;
+						suffixes.addAll( Arrays.asList( ".heatmap.npy", ".flow.npy" ) );
+					}
+					else
+					{
+						throw new IOException( "Unknown request: " + verb );
+					}
+				}
+				catch ( final IOException e )
+				{
+					// A dead worker is a lost worker for the client too.
+					if ( !worker.isAlive() )
+						throw e;
+					out.writeUTF( SpotiflowRemoteWorker.ERROR );
+					out.writeUTF( String.valueOf( e.getMessage() ) );
+					out.flush();
+					continue;
+				}
+				finally
+				{
+					SpotiflowStaging.delete( input );
+				}
+
+				for ( final String suffix : suffixes )
+				{
+					final Path output = dir.resolve( name + suffix );
+					if ( Files.exists( output ) )
+						outputs.add( output );
+				}
+				out.writeUTF( SpotiflowRemoteWorker.DONE );
+				out.writeInt( nSpots );
+				out.writeInt( outputs.size() );
+				for ( final Path output : outputs )
+				{
+					final String fname = output.getFileName().toString();
+					out.writeUTF( fname.substring( name.length() ) );
+					out.writeLong( Files.size( output ) );
+					try (InputStream is = Files.newInputStream( output ))
+					{
+						SpotiflowRemoteWorker.copy( is, out, Files.size( output ) );
+					}
+					SpotiflowStaging.delete( output );
+				}
+				out.flush();
+			}
+		}
+		catch ( final EOFException e )
+		{
+			// Client went away.
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Connection with " + client + " ended: " + e.getMessage() );
+		}
+		finally
+		{
+			if ( worker != null )
+				SpotiflowWorkerPool.release( worker );
+		}
+	}
+
+	/*
+	 * STATIC UTILITIES.
+	 */
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		int port = SpotiflowRemoteWorker.DEFAULT_PORT;
+		InetAddress bind = InetAddress.getLoopbackAddress();
+		String python = "python";
+		List< String > launcher = null;
+		for ( int i = 0; i < args.length; i++ )
+		{
+			if ( args[ i ].equals( "--" ) )
+			{
+				launcher = Arrays.asList( args ).subList( i + 1, args.length );
+				break;
+			}
+			if ( i == args.length - 1 )
+				throw new IllegalArgumentException( "Missing value for " + args[ i ] );
+			if ( args[ i ].equals( "--port" ) )
+				port = Integer.parseInt( args[ ++i ] );
+			else if ( args[ i ].equals( "--bind" ) )
+				bind = InetAddress.getByName( args[ ++i ] );
+			else if ( args[ i ].equals( "--python" ) )
+				python = args[ ++i ];
+			else
+				throw new IllegalArgumentException( "Unknown option: " + args[ i ] );
+		}
+		if ( launcher == null )
+			launcher = Arrays.asList( python, SpotiflowWorker.getScript().toString() );
+
+		final SpotiflowWorkerDaemon daemon = new SpotiflowWorkerDaemon( bind, port, launcher );
+		Runtime.getRuntime().addShutdownHook( new Thread( daemon::close ) );
+		System.err.println( "Spotiflow daemon listening on " + bind.getHostAddress() + ":" + daemon.getPort() + "." );
+		daemon.accept();
+	}
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps idle Spotiflow workers alive between detections, so that the Python
+ * interpreter startup and the model loading are paid once per session
+ * rather than once per detection. Workers are shared only between
+ * identical commands, that is the same environment, model and parameters.
+ * <p>
+ * Idle workers are closed when the JVM shuts down.
+ */
+public class SpotiflowWorkerPool
+{
+
+	private static final Map< List< String >, Deque< SpotiflowWorker > > IDLE = new HashMap<>();
+
+	private static final int MAX_IDLE_PER_COMMAND = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+	static
+	{
+		Runtime.getRuntime().addShutdownHook( new Thread( SpotiflowWorkerPool::shutdown, "Spotiflow worker pool shutdown" ) );
+	}
+
+	private SpotiflowWorkerPool()
+	{}
+
+	/**
+	 * Returns a running worker for the specified command. An idle worker is
+	 * reused if there is one, otherwise a new one is started.
+	 *
+	 * @param command
+	 *            the command that starts the worker.
+	 * @return a running worker, that must be given back with
+	 *         {@link #release(SpotiflowWorker)} after use.
+	 * @throws IOException
+	 *             if a new worker cannot be started.
+	 */
+	public static SpotiflowWorker acquire( final List< String > command ) throws IOException
+	{
+		synchronized ( IDLE )
+		{
+			final Deque< SpotiflowWorker > idle = IDLE.get( command );
+			while ( idle != null && !idle.isEmpty() )
+			{
+				final SpotiflowWorker worker = idle.pop();
+				if ( worker.isAlive() )
+					return worker;
+			}
+		}
+		final SpotiflowWorker worker = new SpotiflowWorker( command );
+		try
+		{
+			worker.start();
+		}
+		catch ( final IOException e )
+		{
+			worker.destroy();
+			throw e;
+		}
+		return worker;
+	}
+
+	/**
+	 * Gives back a worker to the pool. Dead workers and workers in excess are
+	 * closed.
+	 *
+	 * @param worker
+	 *            the worker to release.
+	 */
+	public static void release( final SpotiflowWorker worker )
+	{
+		worker.setLineListener( null );
+		if ( !worker.isAlive() )
+			return;
+
+		synchronized ( IDLE )
+		{
+			final Deque< SpotiflowWorker > idle = IDLE.computeIfAbsent( worker.getCommand(), k -> new ArrayDeque<>() );
+			if ( idle.size() < MAX_IDLE_PER_COMMAND )
+			{
+				idle.push( worker );
+				return;
+			}
+		}
+		worker.close();
+	}
+
+	/**
+	 * Closes all the idle workers.
+	 */
+	public static void shutdown()
+	{
+		final List< SpotiflowWorker > toClose = new ArrayList<>();
+		synchronized ( IDLE )
+		{
+			IDLE.values().forEach( toClose::addAll );
+			IDLE.clear();
+		}
+		toClose.forEach( SpotiflowWorker::close );
+	}
+}
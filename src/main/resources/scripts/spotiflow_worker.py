@@ -0,0 +1,206 @@
+# #%L
+# TrackMate: your buddy for everyday tracking.
+# %%
+# Copyright (C) 2025 TrackMate developers.
+# %%
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as
+# published by the Free Software Foundation, either version 3 of the
+# License, or (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public
+# License along with this program.  If not, see
+# <http://www.gnu.org/licenses/gpl-3.0.html>.
+# #L%
+"""
+Long-lived Spotiflow worker used by TrackMate-Spotiflow.
+
+The model is loaded once, then frames are predicted on request. The worker
+talks to TrackMate with a line-based, tab-separated protocol:
+
+    worker -> READY    version  sigma
+    java   -> PREDICT  id  input-path  output-csv-path
+    java   -> HEATMAP  id  input-path  output-prefix
+    worker -> DONE     id  n-spots
+    worker -> ERROR    id  message
+    java   -> QUIT
+
+HEATMAP writes the raw outputs of the network instead of spots, as float32
+.npy files: the probability heatmap in output-prefix.heatmap.npy, and the
+stereographic flow, channels first, in output-prefix.flow.npy if the model
+has one. TrackMate then finds the peaks itself, and can find them again at
+other thresholds without running the network.
+
+The standard output is reserved for the protocol. Everything else (library
+output, progress bars, warnings) goes to the standard error.
+
+The command line accepts the same arguments as 'spotiflow-predict', so that
+TrackMate can build it from the same configurator. The input folder and the
+output folder are ignored.
+
+With --describe, the worker prints the variables of the environment it
+runs in, then one line, and exits instead:
+
+    VAR  name  value
+    ENV  python-path  spotiflow-predict-path  version
+
+TrackMate runs it once through the environment activation, then launches
+the interpreter and the entry point directly, with these variables, so
+that PATH, CONDA_PREFIX and the library paths set by the activation are
+the same.
+"""
+import argparse
+import os
+import sys
+import traceback
+
+# Variables that describe the shell the activation ran in, not the environment.
+SHELL_VARIABLES = ("_", "PWD", "OLDPWD", "SHLVL")
+
+
+def str2bool(v):
+    return str(v).lower() in ("1", "true", "yes", "y")
+
+
+def load_image(path):
+    import numpy as np
+
+    if path.lower().endswith(".npy"):
+        return np.load(path, mmap_mode="r")
+    import tifffile
+
+    return tifffile.imread(path)
+
+
+def write_csv(path, points, details):
+    import numpy as np
+
+    points = np.asarray(points)
+    ndim = points.shape[1] if points.ndim == 2 else 2
+    names = ["z", "y", "x"][-ndim:]
+    columns = [points[:, i] if len(points) else np.zeros(0) for i in range(ndim)]
+
+    prob = getattr(details, "prob", None)
+    if prob is not None:
+        names.append("probability")
+        columns.append(np.asarray(prob))
+
+    fit = getattr(details, "fit_params", None)
+    fwhm = getattr(fit, "fwhm", None) if fit is not None else None
+    if fwhm is not None:
+        names.append("fwhm")
+        columns.append(np.asarray(fwhm))
+
+    with open(path, "w") as f:
+        f.write(",".join(names) + "\n")
+        for row in zip(*columns):
+            f.write(",".join(repr(float(v)) for v in row) + "\n")
+
+
+def write_heatmap(prefix, details):
+    import numpy as np
+
+    heatmap = np.ascontiguousarray(details.heatmap, dtype=np.float32)
+    np.save(prefix + ".heatmap.npy", heatmap)
+    flow = getattr(details, "flow", None)
+    if flow is not None:
+        # Spotiflow puts the flow channels last.
+        flow = np.ascontiguousarray(np.moveaxis(np.asarray(flow, dtype=np.float32), -1, 0))
+        np.save(prefix + ".flow.npy", flow)
+
+
+def describe():
+    import shutil
+
+    import spotiflow
+
+    predict = shutil.which("spotiflow-predict")
+    if predict is None:
+        # Entry points live next to the interpreter, or in 'Scripts' on Windows.
+        home = os.path.dirname(sys.executable)
+        for folder in (home, os.path.join(home, "Scripts")):
+            predict = shutil.which("spotiflow-predict", path=folder)
+            if predict is not None:
+                break
+    version = getattr(spotiflow, "__version__", "unknown")
+    for name, value in sorted(os.environ.items()):
+        # Values on several lines cannot be passed on, nor can the shell state.
+        if "\t" in value or "\n" in value or "\r" in value or name in SHELL_VARIABLES:
+            continue
+        print("\t".join(["VAR", name, value]), flush=True)
+    print("\t".join(["ENV", sys.executable, predict or "", version]), flush=True)
+
+
+def main():
+    if "--describe" in sys.argv[1:]:
+        describe()
+        return
+
+    parser = argparse.ArgumentParser(description="TrackMate Spotiflow worker.")
+    parser.add_argument("input", nargs="?")
+    parser.add_argument("--out-dir", default=None)
+    parser.add_argument("--pretrained-model", default="general")
+    parser.add_argument("--model-dir", default=None)
+    parser.add_argument("--probability-threshold", type=float, default=None)
+    parser.add_argument("--min-distance", type=int, default=1)
+    parser.add_argument("--estimate-params", type=str2bool, default=True)
+    parser.add_argument("--subpix", type=str2bool, default=True)
+    parser.add_argument("--device", default="auto")
+    args, _ = parser.parse_known_args()
+
+    # Keep the protocol channel clean.
+    protocol = sys.stdout
+    sys.stdout = sys.stderr
+
+    def reply(*tokens):
+        protocol.write("\t".join(str(t) for t in tokens) + "\n")
+        protocol.flush()
+
+    import spotiflow
+    from spotiflow.model import Spotiflow
+
+    if args.model_dir:
+        model = Spotiflow.from_folder(args.model_dir)
+    else:
+        model = Spotiflow.from_pretrained(args.pretrained_model)
+    sigma = getattr(getattr(model, "config", None), "sigma", 1.0)
+    reply("READY", getattr(spotiflow, "__version__", "unknown"), sigma)
+
+    for line in sys.stdin:
+        tokens = line.rstrip("\r\n").split("\t")
+        command = tokens[0]
+        if command == "QUIT":
+            break
+        if command not in ("PREDICT", "HEATMAP") or len(tokens) < 4:
+            reply("ERROR", "-", "Unknown request: " + line.strip())
+            continue
+
+        rid, src, dst = tokens[1], tokens[2], tokens[3]
+        try:
+            img = load_image(src)
+            points, details = model.predict(
+                img,
+                prob_thresh=args.probability_threshold,
+                min_distance=args.min_distance,
+                subpix=args.subpix,
+                fit_params=args.estimate_params,
+                device=args.device,
+                verbose=False,
+            )
+            if command == "HEATMAP":
+                write_heatmap(dst, details)
+            else:
+                write_csv(dst, points, details)
+            reply("DONE", rid, len(points))
+        except Exception as e:
+            traceback.print_exc()
+            reply("ERROR", rid, repr(e).replace("\t", " ").replace("\n", " "))
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.util.cli.CommandBuilder;
+
+/**
+ * Measures how the command line of <code>spotiflow-predict</code> is built
+ * from the configurators. This happens for every batch and worker start.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CommandBuildBenchmark
+{
+
+	private SpotiflowCLI cli;
+
+	private AdvancedSpotiflowCLI advancedCli;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		cli = new SpotiflowCLI( 1 );
+		advancedCli = new AdvancedSpotiflowCLI( 1, "µm", 0.2 );
+		for ( final SpotiflowCLI c : new SpotiflowCLI[] { cli, advancedCli } )
+		{
+			c.imageFolder().set( "/tmp/spotiflow-benchmark/input" );
+			c.outputFolder().set( "/tmp/spotiflow-benchmark/output" );
+		}
+	}
+
+	@Benchmark
+	public List< String > buildSpotiflowCLI()
+	{
+		return CommandBuilder.build( cli );
+	}
+
+	@Benchmark
+	public List< String > buildAdvancedSpotiflowCLI()
+	{
+		return CommandBuilder.build( advancedCli );
+	}
+}
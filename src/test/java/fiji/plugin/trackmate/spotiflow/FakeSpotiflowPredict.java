@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A stand-in for <code>spotiflow-predict</code>, that takes the same
+ * arguments but does not need Spotiflow. For each image in the input
+ * folder, it waits for a fixed latency, prints a progress line like
+ * Spotiflow does, and writes a CSV file of random spots with the same
+ * columns as Spotiflow in the output folder.
+ * <p>
+ * Arguments:
+ * <ul>
+ * <li>the input folder, first;</li>
+ * <li><code>--out-dir folder</code>: the output folder;</li>
+ * <li><code>--pretrained-model name</code>: printed, otherwise
+ * ignored;</li>
+ * <li><code>--fake-latency ms</code>: time spent on each image;</li>
+ * <li><code>--fake-startup ms</code>: time spent loading the model;</li>
+ * <li><code>--fake-spots n</code>: number of spots per image;</li>
+ * <li><code>--fake-size pixels</code>: the range of spot coordinates.</li>
+ * </ul>
+ * Any other argument is ignored.
+ */
+public class FakeSpotiflowPredict
+{
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		final Path inputDir = Paths.get( args[ 0 ] );
+		Path outputDir = inputDir;
+		String model = "fluo_live";
+		long latency = 50;
+		long startup = 0;
+		int nSpots = 200;
+		double size = 512.;
+		for ( int i = 1; i < args.length - 1; i++ )
+		{
+			switch ( args[ i ] )
+			{
+			case "--out-dir":
+				outputDir = Paths.get( args[ i + 1 ] );
+				break;
+			case "--pretrained-model":
+				model = args[ i + 1 ];
+				break;
+			case "--fake-latency":
+				latency = Long.parseLong( args[ i + 1 ] );
+				break;
+			case "--fake-startup":
+				startup = Long.parseLong( args[ i + 1 ] );
+				break;
+			case "--fake-spots":
+				nSpots = Integer.parseInt( args[ i + 1 ] );
+				break;
+			case "--fake-size":
+				size = Double.parseDouble( args[ i + 1 ] );
+				break;
+			}
+		}
+
+		System.err.println( "Loading pretrained model: " + model );
+		Thread.sleep( startup );
+
+		final List< Path > images;
+		try (Stream< Path > list = Files.list( inputDir ))
+		{
+			images = list
+					.filter( p -> p.toString().endsWith( ".tif" ) || p.toString().endsWith( ".npy" ) )
+					.sorted()
+					.collect( Collectors.toList() );
+		}
+
+		for ( int i = 0; i < images.size(); i++ )
+		{
+			final Path image = images.get( i );
+			Thread.sleep( latency );
+
+			final String fname = image.getFileName().toString();
+			final String name = fname.substring( 0, fname.lastIndexOf( '.' ) );
+			final Random ran = new Random( name.hashCode() );
+			final StringBuilder csv = new StringBuilder( "y,x,intensity,probability,fwhm\n" );
+			for ( int j = 0; j < nSpots; j++ )
+				csv.append( String.format( Locale.US, "%.4f,%.4f,%.2f,%.4f,%.4f\n",
+						size * ran.nextDouble(),
+						size * ran.nextDouble(),
+						100. + 1000. * ran.nextDouble(),
+						0.5 + 0.5 * ran.nextDouble(),
+						1. + 3. * ran.nextDouble() ) );
+			Files.write( outputDir.resolve( name + ".csv" ), csv.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+			// Like tqdm: progress on stderr, rewritten with carriage returns.
+			System.err.print( String.format( Locale.US, "Predicting: %3d%%| %d/%d\r", ( i + 1 ) * 100 / images.size(), i + 1, images.size() ) );
+		}
+		System.err.println();
+	}
+}
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A stand-in for the Python Spotiflow worker, that speaks the same protocol
+ * as <code>spotiflow_worker.py</code> but does not need Spotiflow. It writes
+ * random spots, seeded by the request id, or a 100x100 heatmap of Gaussian
+ * peaks at the same positions for <code>HEATMAP</code> requests.
+ * <p>
+ * Options:
+ * <ul>
+ * <li><code>--fake-latency ms</code>: time spent on each request.</li>
+ * <li><code>--fake-spots n</code>: number of spots per request.</li>
+ * <li><code>--fake-fail id</code>: answer with an error for this id.</li>
+ * <li><code>--fake-crash-after n</code>: exit without answering the request
+ * that follows the first n ones.</li>
+ * </ul>
+ * Any other argument is ignored, like the real worker does.
+ */
+public class FakeSpotiflowWorker
+{
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		long latency = 0;
+		int nSpots = 20;
+		String failId = null;
+		int crashAfter = -1;
+		for ( int i = 0; i < args.length - 1; i++ )
+		{
+			if ( args[ i ].equals( "--fake-latency" ) )
+				latency = Long.parseLong( args[ i + 1 ] );
+			else if ( args[ i ].equals( "--fake-spots" ) )
+				nSpots = Integer.parseInt( args[ i + 1 ] );
+			else if ( args[ i ].equals( "--fake-fail" ) )
+				failId = args[ i + 1 ];
+			else if ( args[ i ].equals( "--fake-crash-after" ) )
+				crashAfter = Integer.parseInt( args[ i + 1 ] );
+		}
+
+		final PrintWriter out = new PrintWriter( System.out, true, StandardCharsets.UTF_8 );
+		System.err.println( "Loading fake model." );
+		out.println( "READY\tfake\t1" );
+
+		final BufferedReader in = new BufferedReader( new InputStreamReader( System.in, StandardCharsets.UTF_8 ) );
+		String line;
+		while ( ( line = in.readLine() ) != null )
+		{
+			final String[] tokens = line.split( "\t" );
+			if ( tokens[ 0 ].equals( "QUIT" ) )
+				break;
+			final boolean heatmap = tokens[ 0 ].equals( "HEATMAP" );
+			if ( !( heatmap || tokens[ 0 ].equals( "PREDICT" ) ) || tokens.length < 4 )
+			{
+				out.println( "ERROR\t-\tUnknown request: " + line );
+				continue;
+			}
+
+			if ( crashAfter-- == 0 )
+				System.exit( 1 );
+
+			final String id = tokens[ 1 ];
+			if ( id.equals( failId ) )
+			{
+				out.println( "ERROR\t" + id + "\tFake failure." );
+				continue;
+			}
+			Thread.sleep( latency );
+			System.err.println( "Predicting: 100%" );
+
+			final Random ran = new Random( id.hashCode() );
+			if ( heatmap )
+			{
+				writeHeatmap( Paths.get( tokens[ 3 ] + ".heatmap.npy" ), ran, nSpots );
+				out.println( "DONE\t" + id + '\t' + nSpots );
+				continue;
+			}
+			final StringBuilder csv = new StringBuilder( "y,x,probability,fwhm\n" );
+			for ( int i = 0; i < nSpots; i++ )
+				csv.append( String.format( Locale.US, "%.3f,%.3f,%.3f,%.3f\n",
+						100. * ran.nextDouble(), 100. * ran.nextDouble(), 0.5 + 0.5 * ran.nextDouble(), 1. + 2. * ran.nextDouble() ) );
+			Files.write( Paths.get( tokens[ 3 ] ), csv.toString().getBytes( StandardCharsets.UTF_8 ) );
+			out.println( "DONE\t" + id + '\t' + nSpots );
+		}
+	}
+
+	private static void writeHeatmap( final Path file, final Random ran, final int nSpots ) throws IOException
+	{
+		final int size = 100;
+		final float[] values = new float[ size * size ];
+		for ( int s = 0; s < nSpots; s++ )
+		{
+			final double cx = size * ran.nextDouble();
+			final double cy = size * ran.nextDouble();
+			final double p = 0.5 + 0.5 * ran.nextDouble();
+			for ( int y = 0; y < size; y++ )
+				for ( int x = 0; x < size; x++ )
+				{
+					final double r2 = ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy );
+					values[ x + size * y ] = ( float ) Math.max( values[ x + size * y ], p * Math.exp( -r2 / 2. ) );
+				}
+		}
+		final ByteBuffer header = NpyFrameWriter.header( "<f4", new long[] { size, size } );
+		final ByteBuffer data = ByteBuffer.allocate( 4 * values.length ).order( ByteOrder.LITTLE_ENDIAN );
+		data.asFloatBuffer().put( values );
+		try (FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			channel.write( header );
+			channel.write( data );
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Measures how frames of a 2D+T image are exported before they are passed
+ * to Spotiflow, as the detector does it: as views wrapped as ImagePlus and
+ * saved as TIFF files for <code>spotiflow-predict</code>, or as .npy files
+ * written from the image buffer for the workers.
+ * <p>
+ * Images are backed by arrays, or by planes as images opened in ImageJ
+ * are. The .npy files written from planar images take the bulk row copy,
+ * and their content is checked against the cursor export of an array
+ * image with the same pixels before they are timed.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FrameExportBenchmark
+{
+
+	private static final int N_FRAMES = 8;
+
+	private static final Function< Long, String > NAME_GEN = ( frame ) -> String.format( "%d", frame );
+
+	@Param( { "256", "1024", "2048" } )
+	public int size;
+
+	@Param( { "array", "planar" } )
+	public String layout;
+
+	private ImgPlus< UnsignedShortType > img;
+
+	private Path dir;
+
+	@Setup( Level.Trial )
+	public void setup() throws IOException
+	{
+		final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.TIME };
+		final ImgPlus< UnsignedShortType > array = new ImgPlus<>( ArrayImgs.unsignedShorts( size, size, N_FRAMES ), "benchmark", axes );
+		dir = Files.createTempDirectory( "spotiflow-benchmark_" );
+		if ( layout.equals( "planar" ) )
+		{
+			img = new ImgPlus<>( PlanarImgs.unsignedShorts( size, size, N_FRAMES ), "benchmark", axes );
+			NpyFrameWriterCheck.fill( img, array, 42 );
+			NpyFrameWriterCheck.check( img, array, img, dir );
+		}
+		else
+		{
+			img = array;
+			final Random ran = new Random( 42 );
+			for ( final UnsignedShortType p : img )
+				p.set( ran.nextInt( 4096 ) );
+		}
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		SpotiflowStaging.delete( dir );
+	}
+
+	/**
+	 * What the detector does for <code>spotiflow-predict</code>: each frame
+	 * is a view wrapped as an ImagePlus, whose planes are read from the
+	 * image as the TIFF file is written.
+	 */
+	@Benchmark
+	public void exportTiff()
+	{
+		for ( long t = 0; t < N_FRAMES; t++ )
+		{
+			final ImagePlus imp = ImageJFunctions.wrap( NpyFrameWriter.frameView( img, img, 0, t ), NAME_GEN.apply( t ) );
+			IJ.saveAsTiff( imp, dir.resolve( "frame-" + t + ".tif" ).toString() );
+		}
+	}
+
+	@Benchmark
+	public void exportNpy() throws IOException
+	{
+		for ( long t = 0; t < N_FRAMES; t++ )
+			NpyFrameWriter.write( img, img, 0, t, dir.resolve( "frame-" + t + ".npy" ) );
+	}
+}
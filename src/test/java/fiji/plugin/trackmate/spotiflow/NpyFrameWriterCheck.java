@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Checks that frames exported by {@link NpyFrameWriter} from a planar
+ * image, with the bulk row copy, are identical to the frames exported
+ * through a cursor from an array image with the same content. All the
+ * channels and frames are checked, whole and cropped, so that a plane
+ * index computed for the wrong channel or frame shows up.
+ */
+public class NpyFrameWriterCheck
+{
+
+	private static final AxisType[] AXES = new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL, Axes.TIME };
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final long[] dims = new long[] { 67, 45, 3, 5 };
+		final ImgPlus< UnsignedShortType > planar = new ImgPlus<>( PlanarImgs.unsignedShorts( dims ), "planar", AXES );
+		final ImgPlus< UnsignedShortType > array = new ImgPlus<>( ArrayImgs.unsignedShorts( dims ), "array", AXES );
+		fill( planar, array, 42 );
+
+		final Path dir = Files.createTempDirectory( "spotiflow-npy-check_" );
+		try
+		{
+			check( planar, array, new FinalInterval( dims[ 0 ], dims[ 1 ] ), dir );
+			check( planar, array, new FinalInterval( new long[] { 5, 7 }, new long[] { 40, 30 } ), dir );
+		}
+		finally
+		{
+			SpotiflowStaging.delete( dir );
+		}
+		System.out.println( "Planar and cursor exports are identical for all channels and frames." );
+	}
+
+	/**
+	 * Fills two images of the same dimensions with the same random values.
+	 * Planar and array images iterate in the same flat order.
+	 */
+	static void fill( final Img< UnsignedShortType > a, final Img< UnsignedShortType > b, final long seed )
+	{
+		final Random ran = new Random( seed );
+		final Iterator< UnsignedShortType > ib = b.iterator();
+		for ( final UnsignedShortType p : a )
+		{
+			final int v = ran.nextInt( 65536 );
+			p.set( v );
+			ib.next().set( v );
+		}
+	}
+
+	/**
+	 * Exports each channel and frame of both images, cropped to the
+	 * specified spatial interval, and fails if the files differ.
+	 *
+	 * @throws IllegalStateException
+	 *             if the files of a channel and frame differ.
+	 */
+	static void check(
+			final ImgPlus< UnsignedShortType > planar,
+			final ImgPlus< UnsignedShortType > array,
+			final Interval interval,
+			final Path dir ) throws IOException
+	{
+		final int cIdx = planar.dimensionIndex( Axes.CHANNEL );
+		final int tIdx = planar.dimensionIndex( Axes.TIME );
+		final long nChannels = ( cIdx < 0 ) ? 1 : planar.dimension( cIdx );
+		final long nFrames = ( tIdx < 0 ) ? 1 : planar.dimension( tIdx );
+		for ( int c = 0; c < nChannels; c++ )
+		{
+			for ( long t = 0; t < nFrames; t++ )
+			{
+				final Path fromPlanar = dir.resolve( "planar-c" + c + "-t" + t + ".npy" );
+				final Path fromArray = dir.resolve( "array-c" + c + "-t" + t + ".npy" );
+				NpyFrameWriter.write( planar, interval, c, t, fromPlanar );
+				NpyFrameWriter.write( array, interval, c, t, fromArray );
+				final long mismatch = Files.mismatch( fromPlanar, fromArray );
+				if ( mismatch >= 0 )
+					throw new IllegalStateException( "Channel " + c + ", frame " + t
+							+ ": planar export differs from the cursor export at byte " + mismatch + "." );
+				Files.delete( fromPlanar );
+				Files.delete( fromArray );
+			}
+		}
+	}
+}
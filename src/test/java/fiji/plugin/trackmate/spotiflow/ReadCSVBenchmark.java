@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Measures {@link SpotiflowUtils#readCSV(File, double[], Logger)} on
+ * synthetic Spotiflow CSV files.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ReadCSVBenchmark
+{
+
+	@Param( { "1000", "10000", "100000", "1000000" } )
+	public int nRows;
+
+	private final double[] calibration = new double[] { 0.2, 0.2, 1. };
+
+	private File csv;
+
+	@Setup( Level.Trial )
+	public void setup() throws Exception
+	{
+		final Path path = Files.createTempFile( "spotiflow-benchmark_", ".csv" );
+		SpotiflowCSVBenchmark.write( path, nRows );
+		csv = path.toFile();
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		csv.delete();
+	}
+
+	@Benchmark
+	public List< Spot > readCSV()
+	{
+		return SpotiflowUtils.readCSV( csv, calibration, Logger.VOID_LOGGER );
+	}
+}
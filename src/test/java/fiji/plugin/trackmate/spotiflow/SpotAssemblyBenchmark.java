@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.SpotCollection;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Measures the last pass of the detection, where the spots accumulated by
+ * the tasks are created in the final {@link SpotCollection}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SpotAssemblyBenchmark
+{
+
+	private static final int N_FRAMES = 100;
+
+	@Param( { "10000", "100000", "1000000" } )
+	public int nSpots;
+
+	private final double[] calibration = new double[] { 0.2, 0.2, 1. };
+
+	private final Interval interval = new FinalInterval( new long[] { 10, 20 }, new long[] { 521, 531 } );
+
+	private SpotiflowSpotBuffer tmpSpots;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final Random ran = new Random( 42 );
+		tmpSpots = new SpotiflowSpotBuffer( interval, calibration, 2. );
+		for ( int t = 0; t < N_FRAMES; t++ )
+		{
+			final int n = nSpots / N_FRAMES;
+			final SpotiflowSpots spots = new SpotiflowSpots( n );
+			for ( int i = 0; i < n; i++ )
+				spots.add( 100. * ran.nextDouble(), 100. * ran.nextDouble(), 0., 0.5, ran.nextDouble() );
+			tmpSpots.put( t, spots );
+		}
+	}
+
+	@Benchmark
+	public SpotCollection assemble()
+	{
+		return tmpSpots.toSpotCollection();
+	}
+}
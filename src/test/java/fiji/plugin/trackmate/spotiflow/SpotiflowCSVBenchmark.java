@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.File;
+import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.opencsv.CSVReaderHeaderAware;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Compares {@link SpotiflowCSVParser} with the header-map reader based on
+ * OpenCSV that it replaces, on synthetic Spotiflow CSV files. Also checks
+ * that both readers give identical spots.
+ */
+public class SpotiflowCSVBenchmark
+{
+
+	private static final int N_REPEATS = 20;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final double[] calibration = new double[] { 0.2, 0.2, 1. };
+		for ( final int nRows : new int[] { 1_000, 10_000, 100_000 } )
+		{
+			final Path csv = Files.createTempFile( "spotiflow-benchmark_", ".csv" );
+			csv.toFile().deleteOnExit();
+			write( csv, nRows );
+
+			final List< Spot > expected = readWithHeaderMap( csv.toFile(), calibration );
+			final List< Spot > actual = new SpotiflowCSVParser( calibration ).read( csv ).toSpots();
+			check( expected, actual );
+
+			// Warm up, then time.
+			for ( int i = 0; i < N_REPEATS; i++ )
+			{
+				readWithHeaderMap( csv.toFile(), calibration );
+				new SpotiflowCSVParser( calibration ).read( csv );
+			}
+			long start = System.nanoTime();
+			for ( int i = 0; i < N_REPEATS; i++ )
+				readWithHeaderMap( csv.toFile(), calibration );
+			final double tMap = ( System.nanoTime() - start ) / 1e6 / N_REPEATS;
+
+			start = System.nanoTime();
+			for ( int i = 0; i < N_REPEATS; i++ )
+				new SpotiflowCSVParser( calibration ).read( csv );
+			final double tParser = ( System.nanoTime() - start ) / 1e6 / N_REPEATS;
+
+			System.out.println( String.format( "%7d rows: header-map reader %8.2f ms, parser %8.2f ms, speedup x%.1f",
+					nRows, tMap, tParser, tMap / tParser ) );
+		}
+	}
+
+	static void write( final Path csv, final int nRows ) throws Exception
+	{
+		final Random ran = new Random( 42 );
+		final StringBuilder sb = new StringBuilder( "y,x,intensity,probability,fwhm\n" );
+		for ( int i = 0; i < nRows; i++ )
+			sb.append( 2048. * ran.nextDouble() ).append( ',' )
+					.append( 2048. * ran.nextDouble() ).append( ',' )
+					.append( ( float ) ( 1000. * ran.nextDouble() ) ).append( ',' )
+					.append( ( float ) ran.nextDouble() ).append( ',' )
+					.append( 1. + 3. * ran.nextDouble() ).append( '\n' );
+		Files.write( csv, sb.toString().getBytes( StandardCharsets.US_ASCII ) );
+	}
+
+	private static void check( final List< Spot > expected, final List< Spot > actual )
+	{
+		if ( expected.size() != actual.size() )
+			throw new AssertionError( "Expected " + expected.size() + " spots, got " + actual.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+		{
+			final Spot e = expected.get( i );
+			final Spot a = actual.get( i );
+			for ( final String feature : new String[] { Spot.POSITION_X, Spot.POSITION_Y, Spot.POSITION_Z, Spot.RADIUS, Spot.QUALITY } )
+				if ( !e.getFeature( feature ).equals( a.getFeature( feature ) ) )
+					throw new AssertionError( "Spot " + i + " differs on " + feature + ": "
+							+ e.getFeature( feature ) + " vs " + a.getFeature( feature ) );
+		}
+	}
+
+	/**
+	 * The reader used before {@link SpotiflowCSVParser}, kept here as a
+	 * reference.
+	 */
+	static List< Spot > readWithHeaderMap( final File csvFile, final double[] calibration ) throws Exception
+	{
+		final double fwhmRatio = 2. * Math.sqrt( 2. * Math.log( 2. ) );
+		final ArrayList< Spot > spots = new ArrayList< Spot >();
+		try (CSVReaderHeaderAware reader = new CSVReaderHeaderAware( new FileReader( csvFile ) ))
+		{
+			Map< String, String > values;
+			while ( ( values = reader.readMap() ) != null )
+			{
+				final double x = Double.parseDouble( values.get( "x" ) );
+				final double y = Double.parseDouble( values.get( "y" ) );
+				final double quality = Double.parseDouble( values.get( "probability" ) );
+				final String zStr = values.get( "z" );
+				final double z = zStr == null ? 0. : Double.parseDouble( zStr );
+				final double dimRatio = zStr == null ? Math.sqrt( 2. ) : Math.sqrt( 3. );
+				final double r;
+				final String fwhmStr = values.get( "fwhm" );
+				if ( fwhmStr == null )
+				{
+					r = 0.5 * calibration[ 0 ];
+				}
+				else
+				{
+					final double fwhm = Double.parseDouble( fwhmStr );
+					r = fwhm / fwhmRatio * dimRatio * calibration[ 0 ];
+				}
+				spots.add( new Spot( x * calibration[ 0 ], y * calibration[ 1 ], z * calibration[ 2 ], r, quality ) );
+			}
+		}
+		return spots;
+	}
+}
@@ -0,0 +1,218 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import fiji.plugin.trackmate.SpotCollection;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Runs full detections with {@link SpotiflowDetector} on synthetic movies,
+ * against {@link FakeSpotiflowPredict} or {@link FakeSpotiflowWorker}
+ * instead of Spotiflow, to measure how the orchestration scales with the
+ * movie size and the number of threads. Needs no conda environment.
+ * <p>
+ * For each configuration, it reports the throughput, the peak heap usage
+ * and the peak size of the staging folder. The peaks are sampled every
+ * {@value #SAMPLING_INTERVAL} ms.
+ * <p>
+ * Arguments, all optional: the latency per frame in ms (default 50), and
+ * <code>worker</code> to run the workers instead of
+ * <code>spotiflow-predict</code>.
+ */
+public class SpotiflowLoadTest
+{
+
+	private static final long SAMPLING_INTERVAL = 20;
+
+	private static final int[] SIZES = new int[] { 256, 512, 1024 };
+
+	private static final int[] N_FRAMES = new int[] { 20, 100, 500 };
+
+	private static final int[] N_THREADS = new int[] { 1, 2, 4, 8 };
+
+	private static final int N_SPOTS = 200;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final long latency = ( args.length > 0 ) ? Long.parseLong( args[ 0 ] ) : 50;
+		final boolean useWorker = Arrays.asList( args ).contains( "worker" );
+
+		final String java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+		final Class< ? > fake = useWorker ? FakeSpotiflowWorker.class : FakeSpotiflowPredict.class;
+		final List< String > executable = Arrays.asList(
+				java, "-cp", System.getProperty( "java.class.path" ),
+				fake.getName(),
+				"--fake-latency", "" + latency,
+				"--fake-spots", "" + N_SPOTS );
+
+		System.out.println( "Stand-in: " + fake.getSimpleName() + ", latency " + latency + " ms per frame." );
+		System.out.println( String.format( "%6s %7s %8s %10s %10s %12s %12s %8s",
+				"size", "frames", "threads", "time (s)", "frames/s", "peak heap", "peak disk", "spots" ) );
+
+		final Path staging = SpotiflowStaging.sessionDir();
+		for ( final int size : SIZES )
+		{
+			for ( final int nFrames : N_FRAMES )
+			{
+				final ImgPlus< UnsignedShortType > img = movie( size, nFrames );
+				for ( final int nThreads : N_THREADS )
+				{
+					final SpotiflowDetector< UnsignedShortType > detector = new SpotiflowDetector<>( img, img, new SpotiflowCLI( 1 ) );
+					detector.setNumThreads( nThreads );
+					detector.setUseWorker( useWorker );
+					detector.setExecutableOverride( executable );
+
+					System.gc();
+					final Sampler sampler = new Sampler( staging );
+					sampler.start();
+					final long start = System.nanoTime();
+					final boolean ok = detector.checkInput() && detector.process();
+					final double elapsed = ( System.nanoTime() - start ) / 1e9;
+					sampler.finish();
+
+					if ( !ok )
+					{
+						System.out.println( "Detection failed: " + detector.getErrorMessage() );
+						return;
+					}
+					final SpotCollection spots = detector.getResult();
+					System.out.println( String.format( "%6d %7d %8d %10.2f %10.1f %9.1f MB %9.1f MB %8d",
+							size, nFrames, nThreads, elapsed, nFrames / elapsed,
+							sampler.peakHeap.get() / 1e6, sampler.peakDisk.get() / 1e6,
+							spots.getNSpots( false ) ) );
+				}
+			}
+		}
+		SpotiflowWorkerPool.shutdown();
+	}
+
+	private static ImgPlus< UnsignedShortType > movie( final int size, final int nFrames )
+	{
+		final ImgPlus< UnsignedShortType > img = new ImgPlus<>(
+				ArrayImgs.unsignedShorts( size, size, nFrames ),
+				"load-test",
+				new AxisType[] { Axes.X, Axes.Y, Axes.TIME } );
+		final Random ran = new Random( 42 );
+		for ( final UnsignedShortType p : img )
+			p.set( ran.nextInt( 4096 ) );
+		return img;
+	}
+
+	/**
+	 * Samples the heap usage and the size of the staging folder on a
+	 * background thread.
+	 */
+	private static final class Sampler extends Thread
+	{
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		private final Path dir;
+
+		private final AtomicLong peakHeap = new AtomicLong();
+
+		private final AtomicLong peakDisk = new AtomicLong();
+
+		private volatile boolean running = true;
+
+		private Sampler( final Path dir )
+		{
+			super( "Load test sampler" );
+			this.dir = dir;
+			setDaemon( true );
+		}
+
+		@Override
+		public void run()
+		{
+			while ( running )
+			{
+				sample();
+				try
+				{
+					Thread.sleep( SAMPLING_INTERVAL );
+				}
+				catch ( final InterruptedException e )
+				{
+					return;
+				}
+			}
+		}
+
+		private void finish() throws InterruptedException
+		{
+			running = false;
+			join();
+			sample();
+		}
+
+		private void sample()
+		{
+			peakHeap.accumulateAndGet( memory.getHeapMemoryUsage().getUsed(), Math::max );
+			peakDisk.accumulateAndGet( diskUsage(), Math::max );
+		}
+
+		private long diskUsage()
+		{
+			final List< Path > files = new ArrayList<>();
+			try (Stream< Path > walk = Files.walk( dir ))
+			{
+				walk.filter( Files::isRegularFile ).forEach( files::add );
+			}
+			catch ( final IOException | UncheckedIOException e )
+			{
+				// Files deleted while we walk.
+			}
+			long size = 0;
+			for ( final Path file : files )
+			{
+				try
+				{
+					size += Files.size( file );
+				}
+				catch ( final IOException e )
+				{
+					// Deleted since.
+				}
+			}
+			return size;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Runs a full detection in the JVM with the tiny synthetic network of the
+ * test resources, on a movie of Gaussian blobs at known positions, and
+ * checks that every blob is found. Needs no Spotiflow installation, but
+ * needs the ONNX Runtime native library of the platform.
+ * <p>
+ * The network is written by <code>make_tiny_spotiflow_onnx.py</code>.
+ */
+public class SpotiflowOnnxTestDrive
+{
+
+	private static final int WIDTH = 160;
+
+	private static final int HEIGHT = 120;
+
+	private static final int N_FRAMES = 4;
+
+	private static final int N_BLOBS = 12;
+
+	private static final double SIGMA = 1.5;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final Path model = ( args.length > 0 )
+				? Paths.get( args[ 0 ] )
+				: Paths.get( SpotiflowOnnxTestDrive.class.getResource( "/tiny_spotiflow.onnx" ).toURI() );
+
+		// Blobs at least 10 pixels apart and away from the borders.
+		final Random ran = new Random( 1 );
+		final List< int[] > blobs = new ArrayList<>();
+		while ( blobs.size() < N_BLOBS * N_FRAMES )
+		{
+			final int[] blob = new int[] { 5 + ran.nextInt( WIDTH - 10 ), 5 + ran.nextInt( HEIGHT - 10 ), blobs.size() / N_BLOBS };
+			if ( blobs.stream().noneMatch( b -> b[ 2 ] == blob[ 2 ] && Math.hypot( b[ 0 ] - blob[ 0 ], b[ 1 ] - blob[ 1 ] ) < 10 ) )
+				blobs.add( blob );
+		}
+		final short[] pixels = new short[ WIDTH * HEIGHT * N_FRAMES ];
+		for ( final int[] b : blobs )
+			for ( int y = b[ 1 ] - 5; y <= b[ 1 ] + 5; y++ )
+				for ( int x = b[ 0 ] - 5; x <= b[ 0 ] + 5; x++ )
+				{
+					final double r2 = ( x - b[ 0 ] ) * ( x - b[ 0 ] ) + ( y - b[ 1 ] ) * ( y - b[ 1 ] );
+					final int i = x + WIDTH * ( y + HEIGHT * b[ 2 ] );
+					pixels[ i ] += ( short ) ( 1000. * Math.exp( -r2 / ( 2 * SIGMA * SIGMA ) ) );
+				}
+		for ( int i = 0; i < pixels.length; i++ )
+			pixels[ i ] += ( short ) ran.nextInt( 20 );
+		final ImgPlus< UnsignedShortType > img = new ImgPlus<>(
+				ArrayImgs.unsignedShorts( pixels, WIDTH, HEIGHT, N_FRAMES ),
+				"onnx-test",
+				new AxisType[] { Axes.X, Axes.Y, Axes.TIME } );
+
+		final SpotiflowDetector< UnsignedShortType > detector = new SpotiflowDetector<>( img, img, new SpotiflowCLI( 1 ) );
+		detector.setOnnxModel( model );
+		detector.setNumThreads( 2 );
+		if ( !detector.checkInput() || !detector.process() )
+		{
+			System.err.println( detector.getErrorMessage() );
+			System.exit( 1 );
+		}
+
+		final SpotCollection spots = detector.getResult();
+		int found = 0;
+		for ( final int[] b : blobs )
+		{
+			for ( final Spot spot : spots.iterable( b[ 2 ], false ) )
+			{
+				if ( Math.hypot( spot.getDoublePosition( 0 ) - b[ 0 ], spot.getDoublePosition( 1 ) - b[ 1 ] ) <= 1. )
+				{
+					found++;
+					break;
+				}
+			}
+		}
+		System.out.println( "Found " + found + " of " + blobs.size() + " blobs, "
+				+ spots.getNSpots( false ) + " spots in total, in " + detector.getProcessingTime() + " ms." );
+		System.out.println( detector.getTimings().summary() );
+		SpotiflowOnnxModel.clear();
+		if ( found != blobs.size() || spots.getNSpots( false ) != blobs.size() )
+			System.exit( 1 );
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Exercises the remote worker protocol against a
+ * {@link SpotiflowWorkerDaemon} launched on localhost, serving
+ * {@link FakeSpotiflowWorker}s, without a Spotiflow installation. The
+ * worker crashes after a few frames, to check that the client sees it as
+ * lost and that a new connection gets a new worker.
+ */
+public class SpotiflowRemoteTestDrive
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final String java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+		final List< String > launcher = Arrays.asList(
+				java, "-cp", System.getProperty( "java.class.path" ),
+				FakeSpotiflowWorker.class.getName() );
+		final List< String > arguments = Arrays.asList( "--fake-latency", "20", "--fake-crash-after", "3" );
+
+		final Path dir = Files.createTempDirectory( "TrackMate-Spotiflow-remote-test_" );
+		final double[] calibration = new double[] { 1., 1., 1. };
+
+		try (SpotiflowWorkerDaemon daemon = new SpotiflowWorkerDaemon( InetAddress.getLoopbackAddress(), 0, launcher ))
+		{
+			daemon.start();
+			final String address = "localhost:" + daemon.getPort();
+
+			for ( int attempt = 0; attempt < 2; attempt++ )
+			{
+				final long start = System.currentTimeMillis();
+				final SpotiflowRemoteWorker worker = new SpotiflowRemoteWorker( address, arguments );
+				worker.setLineListener( l -> System.out.println( "  client says: " + l ) );
+				worker.connect();
+				System.out.println( "Connected in " + ( System.currentTimeMillis() - start ) + " ms, version " + worker.getVersion() );
+
+				for ( int t = 0; t < 5; t++ )
+				{
+					final String name = "img-t" + t;
+					final Path input = dir.resolve( name + ".npy" );
+					Files.write( input, new byte[ 1024 ] );
+					final long t0 = System.currentTimeMillis();
+					try
+					{
+						final int n = worker.predict( name, input, dir.resolve( name + ".csv" ) );
+						final List< Spot > spots = SpotiflowUtils.readCSV( dir.resolve( name + ".csv" ).toFile(), calibration, Logger.DEFAULT_LOGGER );
+						System.out.println( "Frame " + t + ": worker reported " + n + " spots, read " + spots.size()
+								+ " in " + ( System.currentTimeMillis() - t0 ) + " ms." );
+					}
+					catch ( final Exception e )
+					{
+						System.out.println( "Frame " + t + ": " + e.getMessage() + " (worker alive: " + worker.isAlive() + ")" );
+						break;
+					}
+				}
+				worker.close();
+			}
+		}
+		SpotiflowWorkerPool.shutdown();
+	}
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Runs detections with the run log on, against {@link FakeSpotiflowPredict}
+ * and {@link FakeSpotiflowWorker}, and checks that they succeed and that the
+ * output of the stand-ins ends up in the log file. Each detector is run
+ * twice, so that a log kept from the previous run shows up too. Needs no
+ * conda environment.
+ */
+public class SpotiflowRunLogCheck
+{
+
+	private static final int N_FRAMES = 12;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final ImgPlus< UnsignedShortType > img = new ImgPlus<>(
+				ArrayImgs.unsignedShorts( 128, 128, N_FRAMES ),
+				"run-log-check",
+				new AxisType[] { Axes.X, Axes.Y, Axes.TIME } );
+		final Random ran = new Random( 42 );
+		for ( final UnsignedShortType p : img )
+			p.set( ran.nextInt( 4096 ) );
+
+		final boolean useLogFile = SpotiflowPrefs.useLogFile();
+		SpotiflowPrefs.setUseLogFile( true );
+		try
+		{
+			check( img, false );
+			check( img, true );
+		}
+		finally
+		{
+			SpotiflowPrefs.setUseLogFile( useLogFile );
+			SpotiflowWorkerPool.shutdown();
+		}
+		System.out.println( "Detections succeed and write the output of Spotiflow to the run log." );
+	}
+
+	private static void check( final ImgPlus< UnsignedShortType > img, final boolean useWorker ) throws IOException
+	{
+		final String java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+		final Class< ? > fake = useWorker ? FakeSpotiflowWorker.class : FakeSpotiflowPredict.class;
+		final List< String > executable = Arrays.asList(
+				java, "-cp", System.getProperty( "java.class.path" ),
+				fake.getName(),
+				"--fake-latency", "5",
+				"--fake-spots", "20" );
+
+		final SpotiflowDetector< UnsignedShortType > detector = new SpotiflowDetector<>( img, img, new SpotiflowCLI( 1 ) );
+		detector.setNumThreads( 2 );
+		detector.setUseWorker( useWorker );
+		detector.setExecutableOverride( executable );
+		for ( int run = 1; run <= 2; run++ )
+		{
+			final String what = fake.getSimpleName() + ", run " + run;
+			if ( !detector.checkInput() || !detector.process() )
+				throw new AssertionError( what + ": detection failed: " + detector.getErrorMessage() );
+			if ( detector.getResult().getNSpots( false ) == 0 )
+				throw new AssertionError( what + ": no spots." );
+
+			final Path log = lastLogFile();
+			if ( log == null || !Files.readString( log ).contains( "Predicting" ) )
+				throw new AssertionError( what + ": the output of the stand-in is not in the run log " + log );
+			System.out.println( what + ": " + detector.getResult().getNSpots( false ) + " spots, log in " + log );
+		}
+	}
+
+	/**
+	 * Returns the log file of the last run, their names sort by date.
+	 */
+	private static Path lastLogFile() throws IOException
+	{
+		final Path dir = Paths.get( System.getProperty( "user.home" ), ".spotiflow", "logs" );
+		try (Stream< Path > list = Files.list( dir ))
+		{
+			return list
+					.filter( p -> p.getFileName().toString().endsWith( ".log" ) && !p.getFileName().toString().endsWith( ".1.log" ) )
+					.max( Comparator.comparing( p -> p.getFileName().toString() ) )
+					.orElse( null );
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.spotiflow;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Exercises the worker protocol against {@link FakeSpotiflowWorker}, without
+ * a Spotiflow installation.
+ */
+public class SpotiflowWorkerTestDrive
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final String java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+		final List< String > command = Arrays.asList(
+				java, "-cp", System.getProperty( "java.class.path" ),
+				FakeSpotiflowWorker.class.getName(),
+				"--fake-latency", "50" );
+
+		final Path dir = Files.createTempDirectory( "TrackMate-Spotiflow-worker-test_" );
+		final double[] calibration = new double[] { 1., 1., 1. };
+
+		final long start = System.currentTimeMillis();
+		final SpotiflowWorker worker = SpotiflowWorkerPool.acquire( command );
+		worker.setLineListener( l -> System.out.println( "  worker says: " + l ) );
+		System.out.println( "Worker started in " + ( System.currentTimeMillis() - start ) + " ms, version " + worker.getVersion() );
+
+		for ( int t = 0; t < 5; t++ )
+		{
+			final String name = "img-t" + t;
+			final long t0 = System.currentTimeMillis();
+			final int n = worker.predict( name, dir.resolve( name + ".tif" ), dir.resolve( name + ".csv" ) );
+			final List< Spot > spots = SpotiflowUtils.readCSV( dir.resolve( name + ".csv" ).toFile(), calibration, Logger.DEFAULT_LOGGER );
+			System.out.println( "Frame " + t + ": worker reported " + n + " spots, read " + spots.size()
+					+ " in " + ( System.currentTimeMillis() - t0 ) + " ms." );
+		}
+		SpotiflowWorkerPool.release( worker );
+
+		// The second acquisition must reuse the idle worker.
+		final SpotiflowWorker again = SpotiflowWorkerPool.acquire( command );
+		System.out.println( "Worker reused: " + ( again == worker ) );
+		SpotiflowWorkerPool.release( again );
+		SpotiflowWorkerPool.shutdown();
+	}
+}
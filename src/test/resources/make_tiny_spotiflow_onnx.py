@@ -0,0 +1,128 @@
+# #%L
+# TrackMate: your buddy for everyday tracking.
+# %%
+# Copyright (C) 2025 TrackMate developers.
+# %%
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as
+# published by the Free Software Foundation, either version 3 of the
+# License, or (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public
+# License along with this program.  If not, see
+# <http://www.gnu.org/licenses/gpl-3.0.html>.
+# #L%
+"""
+Writes tiny_spotiflow.onnx, a synthetic stand-in of an exported 2D Spotiflow
+network, used by SpotiflowOnnxTestDrive.
+
+It has the inputs and outputs TrackMate expects from an exported network,
+but no learned weights: the heatmap is a steep sigmoid of the normalized
+image, so bright blobs become peaks, and the flow is null everywhere.
+
+    image   [1, 1, H, W]
+    heatmap [1, 1, H, W] = sigmoid(12 * (image - 0.5))
+    flow    [1, 3, H, W] = (0, 0, -1)
+
+The protobuf is encoded by hand, so that this needs neither the onnx
+package nor numpy.
+"""
+import os
+import struct
+
+
+def varint(n):
+    out = bytearray()
+    while True:
+        b = n & 0x7F
+        n >>= 7
+        if n:
+            out.append(b | 0x80)
+        else:
+            out.append(b)
+            return bytes(out)
+
+
+def field(number, wire_type, payload):
+    return varint((number << 3) | wire_type) + payload
+
+
+def int_field(number, value):
+    return field(number, 0, varint(value))
+
+
+def bytes_field(number, value):
+    if isinstance(value, str):
+        value = value.encode("utf-8")
+    return field(number, 2, varint(len(value)) + value)
+
+
+def scalar(name, value):
+    # TensorProto: data_type = 2, float_data = 4, name = 8.
+    return int_field(2, 1) + bytes_field(4, struct.pack("<f", value)) + bytes_field(8, name)
+
+
+def node(op_type, inputs, outputs, attributes=b""):
+    # NodeProto: input = 1, output = 2, name = 3, op_type = 4, attribute = 5.
+    msg = b"".join(bytes_field(1, i) for i in inputs)
+    msg += b"".join(bytes_field(2, o) for o in outputs)
+    msg += bytes_field(3, outputs[0]) + bytes_field(4, op_type) + attributes
+    return bytes_field(1, msg)
+
+
+def int_attribute(name, value):
+    # AttributeProto: name = 1, i = 3, type = 20 (INT = 2).
+    return bytes_field(5, bytes_field(1, name) + int_field(3, value) + int_field(20, 2))
+
+
+def value_info(name, channels):
+    # ValueInfoProto > TypeProto.Tensor > TensorShapeProto.
+    dims = [bytes_field(1, int_field(1, 1)), bytes_field(1, int_field(1, channels)),
+            bytes_field(1, bytes_field(2, "H")), bytes_field(1, bytes_field(2, "W"))]
+    shape = b"".join(dims)
+    tensor_type = int_field(1, 1) + bytes_field(2, shape)
+    return bytes_field(1, name) + bytes_field(2, bytes_field(1, tensor_type))
+
+
+def metadata(key, value):
+    return bytes_field(14, bytes_field(1, key) + bytes_field(2, value))
+
+
+def main():
+    graph = b"".join([
+        node("Sub", ["image", "half"], ["centered"]),
+        node("Mul", ["centered", "gain"], ["logits"]),
+        node("Sigmoid", ["logits"], ["heatmap"]),
+        node("Mul", ["image", "zero"], ["zeros"]),
+        node("Sub", ["zeros", "one"], ["pole"]),
+        node("Concat", ["zeros", "zeros", "pole"], ["flow"], int_attribute("axis", 1)),
+        bytes_field(2, "tiny_spotiflow"),
+        bytes_field(5, scalar("half", 0.5)),
+        bytes_field(5, scalar("gain", 12.0)),
+        bytes_field(5, scalar("zero", 0.0)),
+        bytes_field(5, scalar("one", 1.0)),
+        bytes_field(11, value_info("image", 1)),
+        bytes_field(12, value_info("heatmap", 1)),
+        bytes_field(12, value_info("flow", 3)),
+    ])
+    model = b"".join([
+        int_field(1, 7),  # ir_version
+        bytes_field(2, "TrackMate-Spotiflow"),
+        bytes_field(7, graph),
+        bytes_field(8, bytes_field(1, "") + int_field(2, 13)),  # opset
+        metadata("sigma", "1"),
+        metadata("prob_thresh", "0.5"),
+        metadata("divisor", "1"),
+    ])
+    path = os.path.join(os.path.dirname(os.path.abspath(__file__)), "tiny_spotiflow.onnx")
+    with open(path, "wb") as f:
+        f.write(model)
+
+
+if __name__ == "__main__":
+    main()